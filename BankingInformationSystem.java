@@ -1,8 +1,31 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java. time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.stream.Collectors;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
 
 /**
  * Banking Information System - Core Java Implementation
@@ -24,7 +47,7 @@ class User implements Serializable {
 
     public User(String username, String passwordHash, 
                 String email, String role) {
-        this.userId = "U" + System.currentTimeMillis();
+        this.userId = IdGenerator.next("U");
         this.username = username;
         this.passwordHash = hashPassword(passwordHash);
         this.email = email;
@@ -33,6 +56,19 @@ class User implements Serializable {
         this.active = true;
     }
 
+    /**
+     * Rebuilds a user replicated from the primary; the hash is taken as is.
+     */
+    User(String userId, String username, String passwordHash, String email, String role) {
+        this.userId = userId;
+        this.username = username;
+        this.passwordHash = passwordHash;
+        this.email = email;
+        this.role = role;
+        this.createdAt = LocalDateTime.now();
+        this.active = true;
+    }
+
     private String hashPassword(String password) {
         // Simple hash (In production, use BCrypt)
         return Integer.toHexString(password. hashCode());
@@ -44,6 +80,7 @@ class User implements Serializable {
     public String getEmail() { return email; }
     public String getRole() { return role; }
     public boolean isActive() { return active; }
+    String getPasswordHash() { return passwordHash; }
 
     public boolean verifyPassword(String password) {
         return this.passwordHash.equals(hashPassword(password));
@@ -56,71 +93,175 @@ class User implements Serializable {
     }
 }
 
-class BankAccount implements Serializable {
-    private static final long serialVersionUID = 1L;
+/**
+ * A view of one row of an {@link AccountSegment}. It holds nothing but the row's
+ * address, so views are made freely on lookup and any number may exist for the same
+ * account. They all share the row's stripe lock, which is what {@link #lock()} returns
+ * and what anything that must see or change an account atomically synchronizes on.
+ */
+class BankAccount {
+    private final AccountSegment segment;
+    private final int slot;
     private String accountId;
-    private String userId;
-    private String accountNumber;
-    private String accountType; // SAVINGS, CHECKING, BUSINESS
-    private double balance;
-    private String status; // ACTIVE, CLOSED
-    private LocalDateTime createdAt;
-    private LocalDateTime lastTransactionTime;
 
-    public BankAccount(String userId, String accountType) {
-        this.accountId = "ACC" + System.currentTimeMillis();
-        this.userId = userId;
-        this.accountNumber = generateAccountNumber();
-        this.accountType = accountType;
-        this.balance = 0.0;
-        this.status = "ACTIVE";
-        this.createdAt = LocalDateTime.now();
-        this.lastTransactionTime = LocalDateTime.now();
+    BankAccount(AccountSegment segment, int slot) {
+        this.segment = segment;
+        this.slot = slot;
     }
 
-    private String generateAccountNumber() {
-        Random rand = new Random();
-        return String.format("%016d", Math.abs(rand.nextLong() % 10000000000000000L));
+    Object lock() {
+        return segment.lockFor(slot);
     }
 
-    // Getters and Setters
-    public String getAccountId() { return accountId; }
-    public String getUserId() { return userId; }
-    public String getAccountNumber() { return accountNumber; }
-    public String getAccountType() { return accountType; }
-    public double getBalance() { return balance; }
-    public String getStatus() { return status; }
+    // Getters
+    public String getAccountId() {
+        String id = accountId;
+        if (id == null) {
+            id = AccountSegment.ID_PREFIX + segment.id(slot);
+            accountId = id;
+        }
+        return id;
+    }
+
+    public String getUserId() { return segment.owner(slot); }
+    public String getAccountNumber() { return String.format("%016d", segment.number(slot)); }
+    public String getAccountType() { return segment.type(slot).name(); }
+    public String getStatus() { return segment.status(slot).name(); }
+
+    public LocalDateTime getCreatedAt() { return segment.createdAt(slot); }
+
+    public double getBalance() {
+        synchronized (lock()) {
+            return segment.balance(slot) / 100.0;
+        }
+    }
+
+    long getBalancePaise() {
+        synchronized (lock()) {
+            return segment.balance(slot);
+        }
+    }
 
     public void deposit(double amount) throws InvalidAmountException {
         if (amount <= 0) throw new InvalidAmountException("Amount must be positive");
-        if (!status.equals("ACTIVE")) throw new InvalidAmountException("Account is closed");
-        
-        this.balance += amount;
-        this.lastTransactionTime = LocalDateTime.now();
+        synchronized (lock()) {
+            if (segment.status(slot) != AccountStatus.ACTIVE) throw new InvalidAmountException("Account is closed");
+            
+            try {
+                segment.setBalance(slot, Math.addExact(segment.balance(slot), toPaise(amount)));
+            } catch (ArithmeticException e) {
+                throw new InvalidAmountException("Balance limit exceeded");
+            }
+        }
     }
 
     public void withdraw(double amount) throws InsufficientFundsException, 
                                                InvalidAmountException {
         if (amount <= 0) throw new InvalidAmountException("Amount must be positive");
-        if (amount > balance) throw new InsufficientFundsException
-                ("Insufficient balance.  Available: " + balance);
-        if (!status.equals("ACTIVE")) throw new InvalidAmountException("Account is closed");
-        
-        this.balance -= amount;
-        this.lastTransactionTime = LocalDateTime.now();
+        synchronized (lock()) {
+            long balance = segment.balance(slot);
+            long paise = toPaise(amount);
+            if (paise > balance) throw new InsufficientFundsException
+                    ("Insufficient balance.  Available: " + balance / 100.0);
+            if (segment.status(slot) != AccountStatus.ACTIVE) throw new InvalidAmountException("Account is closed");
+            
+            segment.setBalance(slot, Math.subtractExact(balance, paise));
+        }
+    }
+
+    LocalDate getLastInterestDate() {
+        synchronized (lock()) {
+            return segment.lastInterestDate(slot);
+        }
+    }
+
+    long getInterestCarry() {
+        synchronized (lock()) {
+            return segment.interestCarry(slot);
+        }
+    }
+
+    void setInterestState(LocalDate lastInterestDate, long interestCarry) {
+        synchronized (lock()) {
+            segment.setInterestState(slot, lastInterestDate, interestCarry);
+        }
+    }
+
+    /**
+     * Overwrites the balance and interest state with the primary's, from a snapshot.
+     */
+    void restoreState(long balancePaise, LocalDate lastInterestDate, long interestCarry) {
+        synchronized (lock()) {
+            segment.setBalance(slot, balancePaise);
+            segment.setInterestState(slot, lastInterestDate, interestCarry);
+        }
+    }
+
+    /**
+     * Applies a balance change that was already validated on the primary.
+     */
+    void applyDelta(double amount) {
+        synchronized (lock()) {
+            segment.setBalance(slot, Math.addExact(segment.balance(slot), toPaise(amount)));
+        }
     }
 
+    /**
+     * Both stripe locks are taken in a fixed order so concurrent transfers in opposite
+     * directions cannot deadlock (two accounts on one stripe just share the lock), and
+     * the target is checked first so a failed deposit never leaves the money withdrawn.
+     */
     public void transfer(BankAccount targetAccount, double amount) 
             throws InsufficientFundsException, InvalidAmountException {
-        this.withdraw(amount);
-        targetAccount.deposit(amount);
+        boolean thisFirst = segment.lockOrder(slot) <= targetAccount.segment.lockOrder(targetAccount.slot);
+        Object first = thisFirst ? lock() : targetAccount.lock();
+        Object second = thisFirst ? targetAccount.lock() : lock();
+        synchronized (first) {
+            synchronized (second) {
+                if (targetAccount.segment.status(targetAccount.slot) != AccountStatus.ACTIVE) {
+                    throw new InvalidAmountException("Target account is closed");
+                }
+                if (!equals(targetAccount)) {
+                    try {
+                        Math.addExact(targetAccount.segment.balance(targetAccount.slot), toPaise(amount));
+                    } catch (ArithmeticException e) {
+                        throw new InvalidAmountException("Balance limit exceeded");
+                    }
+                }
+                this.withdraw(amount);
+                targetAccount.deposit(amount);
+            }
+        }
+    }
+
+    /**
+     * Balances are whole paise; amounts are rounded to the nearest one. An amount with no
+     * value in a long fails instead of saturating.
+     */
+    static long toPaise(double amount) {
+        double paise = amount * 100;
+        if (!(Math.abs(paise) < 0x1p63)) {
+            throw new ArithmeticException("Amount out of range: " + amount);
+        }
+        return Math.round(paise);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof BankAccount
+            && ((BankAccount) other).segment == segment && ((BankAccount) other).slot == slot;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(segment) * 31 + slot;
     }
 
     @Override
     public String toString() {
         return String.format(
             "Account[ID: %s, Number: %s, Type: %s, Balance: ₹%.2f, Status: %s]",
-            accountId, accountNumber, accountType, balance, status);
+            getAccountId(), getAccountNumber(), getAccountType(), getBalance(), getStatus());
     }
 }
 
@@ -130,14 +271,14 @@ class Transaction implements Serializable {
     private String fromAccountId;
     private String toAccountId;
     private double amount;
-    private String type; // DEPOSIT, WITHDRAWAL, TRANSFER
-    private String status; // PENDING, COMPLETED, FAILED
+    private String type; // DEPOSIT, WITHDRAWAL, TRANSFER, INTEREST
+    private volatile String status; // PENDING, COMPLETED, FAILED
     private LocalDateTime timestamp;
     private String description;
 
     public Transaction(String fromAccountId, String toAccountId, 
                       double amount, String type) {
-        this.transactionId = "TXN" + System.currentTimeMillis();
+        this.transactionId = IdGenerator.next("TXN");
         this.fromAccountId = fromAccountId;
         this.toAccountId = toAccountId;
         this.amount = amount;
@@ -146,6 +287,17 @@ class Transaction implements Serializable {
         this.timestamp = LocalDateTime.now();
     }
 
+    Transaction(String transactionId, String fromAccountId, String toAccountId,
+                double amount, String type, LocalDateTime timestamp) {
+        this.transactionId = transactionId;
+        this.fromAccountId = fromAccountId;
+        this.toAccountId = toAccountId;
+        this.amount = amount;
+        this.type = type;
+        this.status = "COMPLETED";
+        this.timestamp = timestamp;
+    }
+
     // Getters
     public String getTransactionId() { return transactionId; }
     public String getFromAccountId() { return fromAccountId; }
@@ -154,6 +306,20 @@ class Transaction implements Serializable {
     public String getType() { return type; }
     public String getStatus() { return status; }
     public LocalDateTime getTimestamp() { return timestamp; }
+    public String getDescription() { return description; }
+
+    void hold(String reason) {
+        this.status = "PENDING";
+        this.description = reason;
+    }
+
+    void complete() {
+        this.status = "COMPLETED";
+    }
+
+    void decline() {
+        this.status = "FAILED";
+    }
 
     @Override
     public String toString() {
@@ -177,7 +343,7 @@ class Loan implements Serializable {
     private int paidMonths;
 
     public Loan(String accountId, double principal, double rate, int tenure) {
-        this.loanId = "LOAN" + System.currentTimeMillis();
+        this.loanId = IdGenerator.next("LOAN");
         this.accountId = accountId;
         this. principalAmount = principal;
         this.interestRate = rate;
@@ -189,297 +355,4506 @@ class Loan implements Serializable {
         this.paidMonths = 0;
     }
 
-    private double calculateEMI() {
-        double monthlyRate = interestRate / 12 / 100;
-        if (monthlyRate == 0) {
-            return principalAmount / tenureMonths;
-        }
-        return (principalAmount * monthlyRate * Math.pow(1 + monthlyRate, tenureMonths)) /
-               (Math.pow(1 + monthlyRate, tenureMonths) - 1);
+    Loan(String loanId, String accountId, double principal, double rate, int tenure) {
+        this(accountId, principal, rate, tenure);
+        this.loanId = loanId;
+    }
+
+    private double calculateEMI() {
+        double monthlyRate = interestRate / 12 / 100;
+        if (monthlyRate == 0) {
+            return principalAmount / tenureMonths;
+        }
+        return (principalAmount * monthlyRate * Math.pow(1 + monthlyRate, tenureMonths)) /
+               (Math.pow(1 + monthlyRate, tenureMonths) - 1);
+    }
+
+    public synchronized void payEMI() throws InvalidAmountException {
+        if (! status.equals("ACTIVE")) {
+            throw new InvalidAmountException("Loan is not active");
+        }
+        if (paidMonths >= tenureMonths) {
+            this.status = "CLOSED";
+            throw new InvalidAmountException("Loan already closed");
+        }
+
+        remainingBalance -= monthlyEMI;
+        paidMonths++;
+
+        if (paidMonths >= tenureMonths) {
+            this.status = "CLOSED";
+            remainingBalance = 0;
+        }
+    }
+
+    /**
+     * Replays the given number of instalments from the start, the same way payEMI does.
+     */
+    synchronized void restorePaidMonths(int months) {
+        remainingBalance = principalAmount;
+        paidMonths = 0;
+        status = "ACTIVE";
+        while (paidMonths < months && paidMonths < tenureMonths) {
+            remainingBalance -= monthlyEMI;
+            paidMonths++;
+        }
+        if (paidMonths >= tenureMonths) {
+            status = "CLOSED";
+            remainingBalance = 0;
+        }
+    }
+
+    // Getters
+    public String getLoanId() { return loanId; }
+    public String getAccountId() { return accountId; }
+    public double getPrincipalAmount() { return principalAmount; }
+    public double getInterestRate() { return interestRate; }
+    public int getTenureMonths() { return tenureMonths; }
+    public double getMonthlyEMI() { return monthlyEMI; }
+    public synchronized double getRemainingBalance() { return remainingBalance; }
+    public synchronized String getStatus() { return status; }
+    public synchronized int getPaidMonths() { return paidMonths; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+            "Loan[ID: %s, Principal: ₹%.2f, EMI: ₹%.2f, Status: %s, " +
+            "Paid:  %d/%d months]",
+            loanId, principalAmount, monthlyEMI, status, paidMonths, tenureMonths);
+    }
+}
+
+// ==================== CUSTOM EXCEPTIONS ====================
+
+class InvalidAmountException extends Exception {
+    public InvalidAmountException(String message) {
+        super(message);
+    }
+}
+
+class InsufficientFundsException extends Exception {
+    public InsufficientFundsException(String message) {
+        super(message);
+    }
+}
+
+class AccountNotFoundException extends Exception {
+    public AccountNotFoundException(String message) {
+        super(message);
+    }
+}
+
+class UserAuthenticationException extends Exception {
+    public UserAuthenticationException(String message) {
+        super(message);
+    }
+}
+
+class TransactionRejectedException extends Exception {
+    public TransactionRejectedException(String message) {
+        super(message);
+    }
+}
+
+class RateLimitExceededException extends Exception {
+    private final long retryAfterMillis;
+
+    public RateLimitExceededException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
+
+// ==================== UTILITIES ====================
+
+/**
+ * Hands out IDs of the form prefix + millis. IDs stay unique when many are created in
+ * the same millisecond by borrowing the next free number.
+ */
+final class IdGenerator {
+    private static final AtomicLong LAST = new AtomicLong();
+
+    private IdGenerator() {
+    }
+
+    static String next(String prefix) {
+        long now = System.currentTimeMillis();
+        return prefix + LAST.updateAndGet(last -> Math.max(last + 1, now));
+    }
+
+    /**
+     * Reserves count consecutive numbers and returns the first, so a bulk posting takes
+     * one update instead of one per ID.
+     */
+    static long reserve(int count) {
+        long now = System.currentTimeMillis();
+        return LAST.updateAndGet(last -> Math.max(last + count, now + count - 1)) - count + 1;
+    }
+
+    /**
+     * Moves the sequence past an ID issued elsewhere (by the primary, for a backup), so
+     * this process never hands the same number out again after promotion.
+     */
+    static void observe(String id) {
+        if (id == null) {
+            return;
+        }
+        int digits = id.length();
+        while (digits > 0 && Character.isDigit(id.charAt(digits - 1))) {
+            digits--;
+        }
+        if (digits < id.length() && id.length() - digits <= 18) {
+            long number = Long.parseLong(id.substring(digits));
+            LAST.accumulateAndGet(number, Math::max);
+        }
+    }
+}
+
+/**
+ * Console output of the services. Server mode turns it off, since thousands of
+ * requests a second all printing to stdout would serialize on the stream.
+ */
+final class ServiceLog {
+    private static volatile boolean enabled = true;
+
+    private ServiceLog() {
+    }
+
+    static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    static void info(String message) {
+        if (enabled) {
+            System.out.println(message);
+        }
+    }
+}
+
+/**
+ * Remembers the outcome of each posting under its client-supplied idempotency key, so a
+ * retried request gets the original transaction (or the original failure) back instead
+ * of moving money twice. A duplicate that arrives while the first attempt is still
+ * running waits for it. Entries expire after a TTL, and the oldest are evicted once the
+ * cache is full.
+ */
+class IdempotencyCache {
+    static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+    static final int DEFAULT_MAX_ENTRIES = 100_000;
+    private static final int MAX_REQUEUED = 64;
+
+    @FunctionalInterface
+    interface Posting {
+        Transaction post() throws AccountNotFoundException, InvalidAmountException,
+                                  InsufficientFundsException, TransactionRejectedException;
+    }
+
+    private static final class Entry {
+        final String key;
+        final String fingerprint;
+        final long createdAt;
+        final CompletableFuture<Transaction> outcome = new CompletableFuture<>();
+
+        Entry(String key, String fingerprint, long createdAt) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final long ttlMillis;
+    private final int maxEntries;
+
+    IdempotencyCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    IdempotencyCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    /** What a key is bound to: reusing it for a different request is a client error. */
+    static String fingerprint(String type, String fromAccountId, String toAccountId, double amount) {
+        return type + '|' + fromAccountId + '|' + toAccountId + '|' + amount;
+    }
+
+    /**
+     * Runs the posting once per key. Business failures are remembered like successes;
+     * anything unexpected forgets the key so the client can retry it.
+     */
+    Transaction execute(String key, String fingerprint, Posting posting)
+            throws AccountNotFoundException, InvalidAmountException, InsufficientFundsException,
+                   TransactionRejectedException {
+        if (key == null) {
+            return posting.post();
+        }
+        long now = System.currentTimeMillis();
+        Entry mine = new Entry(key, fingerprint, now);
+        Entry existing;
+        while ((existing = entries.putIfAbsent(key, mine)) != null
+                && existing.outcome.isDone() && now - existing.createdAt >= ttlMillis) {
+            entries.remove(key, existing);
+        }
+        if (existing != null) {
+            if (!existing.fingerprint.equals(fingerprint)) {
+                throw new IllegalStateException("Idempotency key " + key + " was already used for a different request");
+            }
+            return await(existing);
+        }
+        enqueue(mine);
+        inFlight.incrementAndGet();
+        evict(now);
+        try {
+            Transaction transaction = posting.post();
+            mine.outcome.complete(transaction);
+            return transaction;
+        } catch (AccountNotFoundException | InvalidAmountException | InsufficientFundsException
+                 | TransactionRejectedException e) {
+            mine.outcome.completeExceptionally(e);
+            throw e;
+        } catch (RuntimeException | Error e) {
+            entries.remove(key, mine);
+            mine.outcome.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /** Records a transaction posted elsewhere (on the primary) under its key. */
+    void remember(String key, String fingerprint, Transaction transaction) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(key, fingerprint, now);
+        entry.outcome.complete(transaction);
+        entries.put(key, entry);
+        enqueue(entry);
+        evict(now);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void enqueue(Entry entry) {
+        queued.incrementAndGet();
+        insertionOrder.add(entry);
+    }
+
+    /**
+     * Drops expired entries, and the oldest ones while more than maxEntries finished
+     * postings are queued. The bound is on the queue rather than the map, because an entry
+     * that was forgotten or replaced stays queued until it is polled here. An entry still
+     * posting is never dropped, or a retry arriving meanwhile would post again; it goes to
+     * the back of the queue instead, a bounded number of times per call.
+     */
+    private void evict(long now) {
+        int requeued = 0;
+        Entry oldest;
+        while ((oldest = insertionOrder.peek()) != null
+                && (queued.get() - inFlight.get() > maxEntries || now - oldest.createdAt >= ttlMillis)) {
+            oldest = insertionOrder.poll();
+            if (oldest == null) {
+                continue;
+            }
+            queued.decrementAndGet();
+            if (oldest.outcome.isDone()) {
+                entries.remove(oldest.key, oldest);
+            } else if (entries.get(oldest.key) == oldest) {
+                enqueue(oldest);
+                if (++requeued >= MAX_REQUEUED) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static Transaction await(Entry entry)
+            throws AccountNotFoundException, InvalidAmountException, InsufficientFundsException,
+                   TransactionRejectedException {
+        try {
+            return entry.outcome.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AccountNotFoundException) {
+                throw (AccountNotFoundException) cause;
+            }
+            if (cause instanceof InvalidAmountException) {
+                throw (InvalidAmountException) cause;
+            }
+            if (cause instanceof InsufficientFundsException) {
+                throw (InsufficientFundsException) cause;
+            }
+            if (cause instanceof TransactionRejectedException) {
+                throw (TransactionRejectedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+}
+
+// ==================== ACCOUNT STORE ====================
+
+enum AccountType { SAVINGS, CHECKING, BUSINESS }
+
+enum AccountStatus { ACTIVE, CLOSED }
+
+/**
+ * Dense int handles for user IDs, so an account stores a four-byte owner reference
+ * and each ID string is held once however many accounts its user has.
+ */
+final class UserRefs {
+    private final Map<String, Integer> refs = new ConcurrentHashMap<>();
+    private volatile String[] userIds = new String[64];
+    private int count;
+
+    int intern(String userId) {
+        Integer ref = refs.get(userId);
+        if (ref != null) {
+            return ref;
+        }
+        synchronized (this) {
+            ref = refs.get(userId);
+            if (ref != null) {
+                return ref;
+            }
+            if (count == userIds.length) {
+                userIds = Arrays.copyOf(userIds, count * 2);
+            }
+            userIds[count] = userId;
+            refs.put(userId, count);
+            return count++;
+        }
+    }
+
+    /** Returns -1 for a user that owns no accounts. */
+    int find(String userId) {
+        Integer ref = refs.get(userId);
+        return ref == null ? -1 : ref;
+    }
+
+    String get(int ref) {
+        return userIds[ref];
+    }
+}
+
+/**
+ * One shard's accounts as a struct of arrays: each field is a primitive column, with
+ * type and status as enum ordinals, money in paise, times as epoch millis or days and
+ * the owner as a {@link UserRefs} handle. About 80 bytes an account against 400-odd
+ * for an object graph, and a few thousand arrays for the GC to see in place of several
+ * objects per account. Columns live in fixed chunks that never move once allocated, so
+ * growth never copies rows out from under a reader.
+ *
+ * Rows are found through open-addressed int tables keyed by account ID and number.
+ * Inserts happen under the segment's monitor and publish the table entry with release
+ * semantics, so a lookup reads without locking; a miss is retried under the monitor in
+ * case it raced an insert. Row fields are guarded by striped locks, see
+ * {@link BankAccount#lock()}.
+ */
+final class AccountSegment {
+    static final String ID_PREFIX = "ACC";
+    private static final int CHUNK_BITS = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int LOCK_STRIPES = 256;
+    private static final int NO_DATE = Integer.MIN_VALUE;
+    private static final AccountType[] TYPES = AccountType.values();
+    private static final AccountStatus[] STATUSES = AccountStatus.values();
+    private static final VarHandle ENTRIES = MethodHandles.arrayElementVarHandle(int[].class);
+
+    /** A block of rows. */
+    private static final class Chunk {
+        final long[] ids = new long[CHUNK_SIZE];
+        final long[] numbers = new long[CHUNK_SIZE];
+        final int[] owners = new int[CHUNK_SIZE];
+        final int[] nextByOwner = new int[CHUNK_SIZE];
+        final byte[] types = new byte[CHUNK_SIZE];
+        final byte[] statuses = new byte[CHUNK_SIZE];
+        final long[] balances = new long[CHUNK_SIZE];
+        final long[] createdAt = new long[CHUNK_SIZE];
+        final int[] lastInterestDays = new int[CHUNK_SIZE];
+        final long[] interestCarries = new long[CHUNK_SIZE];
+    }
+
+    private final int index;
+    private final UserRefs users;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private volatile Chunk[] chunks = new Chunk[0];
+    private volatile int size;
+    private volatile int[] byId = new int[64];
+    private volatile int[] byNumber = new int[64];
+    private int[] ownerHeads = new int[16];
+
+    AccountSegment(int index, UserRefs users) {
+        this.index = index;
+        this.users = users;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    BankAccount view(int slot) {
+        return new BankAccount(this, slot);
+    }
+
+    /**
+     * Adds a row. An ID that is already here is only accepted as a replayed replication
+     * event, with the same owner and number; anything else would overwrite another
+     * customer's account and is refused.
+     */
+    synchronized BankAccount insert(long id, long number, String userId, AccountType type, long createdAt) {
+        int existing = probe(byId, id, true);
+        if (existing >= 0) {
+            if (number(existing) != number || !owner(existing).equals(userId)) {
+                throw new IllegalStateException("Duplicate account ID: " + ID_PREFIX + id);
+            }
+            return view(existing);
+        }
+        int slot = size;
+        if (slot >>> CHUNK_BITS == chunks.length) {
+            Chunk[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[chunks.length] = new Chunk();
+            chunks = grown;
+        }
+        int owner = users.intern(userId);
+        if (owner >= ownerHeads.length) {
+            ownerHeads = Arrays.copyOf(ownerHeads, Math.max(owner + 1, ownerHeads.length * 2));
+        }
+        Chunk chunk = chunk(slot);
+        int row = slot & CHUNK_MASK;
+        chunk.ids[row] = id;
+        chunk.numbers[row] = number;
+        chunk.owners[row] = owner;
+        chunk.types[row] = (byte) type.ordinal();
+        chunk.statuses[row] = (byte) AccountStatus.ACTIVE.ordinal();
+        chunk.createdAt[row] = createdAt;
+        chunk.lastInterestDays[row] = NO_DATE;
+        chunk.nextByOwner[row] = ownerHeads[owner];
+        ownerHeads[owner] = slot + 1;
+        byId = add(byId, slot, true);
+        byNumber = add(byNumber, slot, false);
+        size = slot + 1;
+        return view(slot);
+    }
+
+    /** Returns null if the ID is malformed or not in this segment. */
+    BankAccount find(String accountId) {
+        long id = parseId(accountId);
+        if (id < 0) {
+            return null;
+        }
+        int slot = probe(byId, id, true);
+        if (slot < 0) {
+            synchronized (this) {
+                slot = probe(byId, id, true);
+            }
+        }
+        return slot < 0 ? null : view(slot);
+    }
+
+    BankAccount findByNumber(long number) {
+        int slot = probe(byNumber, number, false);
+        if (slot < 0) {
+            synchronized (this) {
+                slot = probe(byNumber, number, false);
+            }
+        }
+        return slot < 0 ? null : view(slot);
+    }
+
+    /** The owner's accounts here, newest first. */
+    synchronized List<BankAccount> findByOwner(int owner) {
+        List<BankAccount> owned = new ArrayList<>();
+        for (int next = owner < ownerHeads.length ? ownerHeads[owner] : 0; next != 0; ) {
+            int slot = next - 1;
+            owned.add(view(slot));
+            next = chunk(slot).nextByOwner[slot & CHUNK_MASK];
+        }
+        return owned;
+    }
+
+    List<BankAccount> views() {
+        int count = size;
+        List<BankAccount> all = new ArrayList<>(count);
+        for (int slot = 0; slot < count; slot++) {
+            all.add(view(slot));
+        }
+        return all;
+    }
+
+    static long parseId(String accountId) {
+        if (accountId == null || !accountId.startsWith(ID_PREFIX) || accountId.length() == ID_PREFIX.length()) {
+            return -1;
+        }
+        long id = 0;
+        for (int i = ID_PREFIX.length(); i < accountId.length(); i++) {
+            char c = accountId.charAt(i);
+            if (c < '0' || c > '9' || id > (Long.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    // Row access. Fixed fields need no lock; balances, status and interest state are
+    // read and written under the row's stripe lock.
+
+    Object lockFor(int slot) {
+        return locks[slot & (LOCK_STRIPES - 1)];
+    }
+
+    long lockOrder(int slot) {
+        return (long) index << 32 | (slot & (LOCK_STRIPES - 1));
+    }
+
+    long id(int slot) { return chunk(slot).ids[slot & CHUNK_MASK]; }
+    long number(int slot) { return chunk(slot).numbers[slot & CHUNK_MASK]; }
+    String owner(int slot) { return users.get(chunk(slot).owners[slot & CHUNK_MASK]); }
+    AccountType type(int slot) { return TYPES[chunk(slot).types[slot & CHUNK_MASK]]; }
+    AccountStatus status(int slot) { return STATUSES[chunk(slot).statuses[slot & CHUNK_MASK]]; }
+    long balance(int slot) { return chunk(slot).balances[slot & CHUNK_MASK]; }
+    long interestCarry(int slot) { return chunk(slot).interestCarries[slot & CHUNK_MASK]; }
+
+    LocalDateTime createdAt(int slot) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(chunk(slot).createdAt[slot & CHUNK_MASK]),
+            ZoneId.systemDefault());
+    }
+
+    LocalDate lastInterestDate(int slot) {
+        int day = chunk(slot).lastInterestDays[slot & CHUNK_MASK];
+        return day == NO_DATE ? null : LocalDate.ofEpochDay(day);
+    }
+
+    void setBalance(int slot, long paise) {
+        chunk(slot).balances[slot & CHUNK_MASK] = paise;
+    }
+
+    void setInterestState(int slot, LocalDate lastInterestDate, long carry) {
+        Chunk chunk = chunk(slot);
+        chunk.lastInterestDays[slot & CHUNK_MASK] =
+            lastInterestDate == null ? NO_DATE : Math.toIntExact(lastInterestDate.toEpochDay());
+        chunk.interestCarries[slot & CHUNK_MASK] = carry;
+    }
+
+    private Chunk chunk(int slot) {
+        return chunks[slot >>> CHUNK_BITS];
+    }
+
+    private long keyOf(int slot, boolean byAccountId) {
+        return byAccountId ? id(slot) : number(slot);
+    }
+
+    private int probe(int[] table, long key, boolean byAccountId) {
+        int mask = table.length - 1;
+        for (int pos = spread(key) & mask; ; pos = (pos + 1) & mask) {
+            int entry = (int) ENTRIES.getAcquire(table, pos);
+            if (entry == 0) {
+                return -1;
+            }
+            if (keyOf(entry - 1, byAccountId) == key) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /** Called under the monitor; grows past two-thirds full into a fresh table. */
+    private int[] add(int[] table, int slot, boolean byAccountId) {
+        if ((size + 1) * 3L > table.length * 2L) {
+            int[] grown = new int[table.length * 2];
+            for (int existing = 0; existing < size; existing++) {
+                place(grown, existing, byAccountId);
+            }
+            place(grown, slot, byAccountId);
+            return grown;
+        }
+        place(table, slot, byAccountId);
+        return table;
+    }
+
+    private void place(int[] table, int slot, boolean byAccountId) {
+        int mask = table.length - 1;
+        int pos = spread(keyOf(slot, byAccountId)) & mask;
+        while (table[pos] != 0) {
+            pos = (pos + 1) & mask;
+        }
+        ENTRIES.setRelease(table, pos, slot + 1);
+    }
+
+    private static int spread(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
+
+// ==================== SHARDING ====================
+
+/**
+ * Consistent-hash ring mapping account IDs to shards. Each shard owns many virtual
+ * nodes so keys spread evenly, and changing the shard count only moves the keys that
+ * fall between the added or removed points.
+ */
+final class ShardRing {
+    private final long[] points;
+    private final int[] owners;
+
+    ShardRing(int shardCount, int virtualNodes) {
+        long[][] nodes = new long[shardCount * virtualNodes][];
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                nodes[shard * virtualNodes + v] = new long[] {hash("shard-" + shard + "#" + v), shard};
+            }
+        }
+        Arrays.sort(nodes, Comparator.comparingLong(node -> node[0]));
+        points = new long[nodes.length];
+        owners = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            points[i] = nodes[i][0];
+            owners[i] = (int) nodes[i][1];
+        }
+    }
+
+    int shardFor(String key) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * FNV-1a over the characters followed by a 64-bit finalizer, so IDs that differ only
+     * in their last digits still land far apart on the ring.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
+
+/**
+ * One partition of the accounts. Besides the accounts it remembers which saga steps it
+ * has applied, so a transfer step that is retried after a failure is applied at most once.
+ */
+class AccountShard {
+    private static final String APPLIED = "APPLIED";
+    private static final String ABORTED = "ABORTED";
+
+    private final int index;
+    private final AccountSegment accounts;
+    private final Map<String, String> sagaSteps = new ConcurrentHashMap<>();
+
+    AccountShard(int index, UserRefs users) {
+        this.index = index;
+        this.accounts = new AccountSegment(index, users);
+    }
+
+    public int getIndex() { return index; }
+    public int size() { return accounts.size(); }
+
+    AccountSegment getSegment() {
+        return accounts;
+    }
+
+    BankAccount get(String accountId) {
+        return accounts.find(accountId);
+    }
+
+    Collection<BankAccount> getAccounts() {
+        return accounts.views();
+    }
+
+    /**
+     * Credits or debits the account once per step key. A repeated call is a no-op, and a
+     * step that was aborted by recovery can no longer be applied.
+     */
+    void applyStep(String stepKey, BankAccount account, double amount, boolean credit)
+            throws InsufficientFundsException, InvalidAmountException {
+        synchronized (account.lock()) {
+            String previous = sagaSteps.putIfAbsent(stepKey, APPLIED);
+            if (previous != null) {
+                if (previous.equals(ABORTED)) {
+                    throw new InvalidAmountException("Transfer was cancelled");
+                }
+                return;
+            }
+            try {
+                if (credit) {
+                    account.deposit(amount);
+                } else {
+                    account.withdraw(amount);
+                }
+            } catch (InsufficientFundsException | InvalidAmountException | RuntimeException e) {
+                sagaSteps.remove(stepKey);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Fences off a step that has not run yet. Returns false if it was already applied.
+     */
+    boolean abortStep(String stepKey, BankAccount account) {
+        synchronized (account.lock()) {
+            String previous = sagaSteps.putIfAbsent(stepKey, ABORTED);
+            return previous == null || previous.equals(ABORTED);
+        }
+    }
+
+    void forgetStep(String stepKey) {
+        sagaSteps.remove(stepKey);
+    }
+}
+
+/**
+ * One cross-shard transfer: debit on the source shard, then credit on the target shard,
+ * or a refund to the source if the credit cannot be made.
+ */
+class TransferSaga {
+    enum State { STARTED, DEBITED, COMPLETED, COMPENSATED, FAILED }
+
+    final String sagaId = IdGenerator.next("SAGA");
+    final String debitKey = sagaId + ":debit";
+    final String creditKey = sagaId + ":credit";
+    final String refundKey = sagaId + ":refund";
+    final AccountShard sourceShard;
+    final BankAccount source;
+    final AccountShard targetShard;
+    final BankAccount target;
+    final double amount;
+    private State state = State.STARTED;
+    private long updatedAt = System.currentTimeMillis();
+    private boolean recovering;
+
+    TransferSaga(AccountShard sourceShard, BankAccount source,
+                 AccountShard targetShard, BankAccount target, double amount) {
+        this.sourceShard = sourceShard;
+        this.source = source;
+        this.targetShard = targetShard;
+        this.target = target;
+        this.amount = amount;
+    }
+
+
+    synchronized State getState() { return state; }
+    synchronized long getUpdatedAt() { return updatedAt; }
+
+    synchronized boolean advance(State expected, State next) {
+        if (state != expected) {
+            return false;
+        }
+        state = next;
+        updatedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    synchronized boolean isFinished() {
+        return state == State.COMPLETED || state == State.COMPENSATED || state == State.FAILED;
+    }
+
+    /**
+     * Marks the saga as taken over by recovery, unless it has already finished.
+     */
+    synchronized boolean claimForRecovery() {
+        if (isFinished()) {
+            return false;
+        }
+        recovering = true;
+        return true;
+    }
+
+    synchronized boolean isRecovering() {
+        return recovering;
+    }
+
+    void forgetSteps() {
+        sourceShard.forgetStep(debitKey);
+        sourceShard.forgetStep(refundKey);
+        targetShard.forgetStep(creditKey);
+    }
+}
+
+/**
+ * Runs transfers between accounts on different shards as sagas, so no thread ever holds
+ * locks on two shards at once. Every saga sits in the journal until it has finished; a
+ * background thread drives sagas whose coordinator stalled to completion or refund.
+ * Steps are idempotent, so the coordinator and recovery may both drive the same saga.
+ * Sagas that recovery never touched are dropped as soon as they finish; the others are
+ * kept for a while so a late step from the stalled coordinator still finds its fence.
+ */
+class CrossShardTransfers {
+    private static final long STALL_MILLIS = 2000;
+    private static final long RETENTION_MILLIS = 60_000;
+
+    private final Map<String, TransferSaga> journal = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService recovery = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "transfer-recovery");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    CrossShardTransfers() {
+        recovery.scheduleWithFixedDelay(this::recoverStalled, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void transfer(AccountShard sourceShard, BankAccount source,
+                         AccountShard targetShard, BankAccount target, double amount)
+            throws InsufficientFundsException, InvalidAmountException {
+        if (!target.getStatus().equals("ACTIVE")) {
+            throw new InvalidAmountException("Target account is closed");
+        }
+        TransferSaga saga = new TransferSaga(sourceShard, source, targetShard, target, amount);
+        journal.put(saga.sagaId, saga);
+        try {
+            sourceShard.applyStep(saga.debitKey, source, amount, false);
+            saga.advance(TransferSaga.State.STARTED, TransferSaga.State.DEBITED);
+            complete(saga);
+        } catch (InsufficientFundsException | InvalidAmountException e) {
+            saga.advance(TransferSaga.State.STARTED, TransferSaga.State.FAILED);
+            throw e;
+        } finally {
+            if (saga.isFinished() && !saga.isRecovering()) {
+                journal.remove(saga.sagaId);
+                saga.forgetSteps();
+            }
+        }
+    }
+
+    public int getPendingCount() {
+        int pending = 0;
+        for (TransferSaga saga : journal.values()) {
+            if (!saga.isFinished()) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    public void shutdown() {
+        recovery.shutdownNow();
+    }
+
+    /**
+     * Credits the target, or fences the credit off and refunds the source.
+     */
+    private void complete(TransferSaga saga) throws InsufficientFundsException, InvalidAmountException {
+        try {
+            saga.targetShard.applyStep(saga.creditKey, saga.target, saga.amount, true);
+            saga.advance(TransferSaga.State.DEBITED, TransferSaga.State.COMPLETED);
+            return;
+        } catch (InvalidAmountException e) {
+            if (!saga.targetShard.abortStep(saga.creditKey, saga.target)) {
+                saga.advance(TransferSaga.State.DEBITED, TransferSaga.State.COMPLETED);
+                return;
+            }
+            saga.sourceShard.applyStep(saga.refundKey, saga.source, saga.amount, true);
+            saga.advance(TransferSaga.State.DEBITED, TransferSaga.State.COMPENSATED);
+            throw new InvalidAmountException("Transfer reversed: " + e.getMessage());
+        }
+    }
+
+    private void recoverStalled() {
+        long now = System.currentTimeMillis();
+        for (TransferSaga saga : journal.values()) {
+            try {
+                if (saga.isFinished()) {
+                    if (now - saga.getUpdatedAt() > RETENTION_MILLIS) {
+                        journal.remove(saga.sagaId);
+                        saga.forgetSteps();
+                    }
+                    continue;
+                }
+                if (now - saga.getUpdatedAt() < STALL_MILLIS || !saga.claimForRecovery()) {
+                    continue;
+                }
+                if (saga.getState() == TransferSaga.State.STARTED) {
+                    if (saga.sourceShard.abortStep(saga.debitKey, saga.source)) {
+                        saga.advance(TransferSaga.State.STARTED, TransferSaga.State.FAILED);
+                        continue;
+                    }
+                    saga.advance(TransferSaga.State.STARTED, TransferSaga.State.DEBITED);
+                }
+                complete(saga);
+            } catch (InsufficientFundsException | InvalidAmountException e) {
+                // Reversed or still failing; the saga's state records the outcome
+            } catch (RuntimeException e) {
+                System.err.println("Transfer recovery failed for " + saga.sagaId + ": " + e.getMessage());
+            }
+        }
+    }
+}
+
+// ==================== METRICS ====================
+
+/**
+ * Latency histogram with log-linear buckets: 16 linear sub-buckets per power of two, so
+ * every recorded value is within about 6% of its bucket bounds from nanoseconds up to
+ * hours. Recording is a few shifts and atomic adds, with no locks and no allocation.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) | (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Largest value that falls into the bucket.
+     */
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long lower = (long) (SUB_BUCKETS | (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    long getCount() { return total.sum(); }
+    long getMax() { return max.get(); }
+
+    double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Percentiles (0-100) read from one pass over a copy of the buckets; concurrent
+     * recording may shift them by the few values that land during the copy.
+     */
+    long[] percentiles(double... percentiles) {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        long[] result = new long[percentiles.length];
+        if (count == 0) {
+            return result;
+        }
+        long ceiling = max.get();
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += copy[i];
+                if (seen >= rank) {
+                    result[p] = Math.min(bucketUpperBound(i), ceiling);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+}
+
+/**
+ * Calls, failures and latency of one service operation.
+ */
+final class OperationMetrics {
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+
+    OperationMetrics(String name) {
+        this.name = name;
+    }
+
+    String getName() { return name; }
+
+    /**
+     * Records an operation that began at startNanos (from System.nanoTime()).
+     */
+    void record(long startNanos, boolean succeeded) {
+        long elapsed = System.nanoTime() - startNanos;
+        latency.record(elapsed);
+        if (!succeeded) {
+            errors.increment();
+        }
+        if (elapsed >= BankMetrics.slowThresholdNanos) {
+            SlowOperationEvent event = new SlowOperationEvent();
+            if (event.isEnabled()) {
+                event.operation = name;
+                event.elapsed = elapsed;
+                event.succeeded = succeeded;
+                event.commit();
+            }
+        }
+    }
+
+    Map<String, Object> snapshot(double uptimeSeconds) {
+        long[] p = latency.percentiles(50, 90, 99, 99.9);
+        long count = latency.getCount();
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("count", count);
+        json.put("errors", errors.sum());
+        json.put("perSecond", uptimeSeconds > 0 ? Math.round(count / uptimeSeconds * 10) / 10.0 : 0.0);
+        json.put("meanMicros", Math.round(latency.getMean() / 100) / 10.0);
+        json.put("p50Micros", p[0] / 1000);
+        json.put("p90Micros", p[1] / 1000);
+        json.put("p99Micros", p[2] / 1000);
+        json.put("p999Micros", p[3] / 1000);
+        json.put("maxMicros", latency.getMax() / 1000);
+        return json;
+    }
+}
+
+/**
+ * JFR event for a service operation slower than the bis.slowOperationMillis threshold.
+ * Only slow calls allocate one, so the event costs nothing on the fast path.
+ */
+@Name("bis.SlowOperation")
+@Label("Slow Banking Operation")
+@Category("Banking")
+@StackTrace(false)
+class SlowOperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
+
+/**
+ * Metrics for every instrumented service operation, shared by the whole process.
+ */
+final class BankMetrics {
+    static final long slowThresholdNanos =
+        TimeUnit.MILLISECONDS.toNanos(Long.getLong("bis.slowOperationMillis", 10));
+    private static final long STARTED = System.nanoTime();
+    private static final Map<String, OperationMetrics> OPERATIONS = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentSkipListMap<>();
+
+    static final OperationMetrics REGISTER = register("user.register");
+    static final OperationMetrics LOGIN = register("user.login");
+    static final OperationMetrics CREATE_ACCOUNT = register("account.create");
+    static final OperationMetrics GET_ACCOUNT = register("account.get");
+    static final OperationMetrics DEPOSIT = register("transaction.deposit");
+    static final OperationMetrics WITHDRAW = register("transaction.withdraw");
+    static final OperationMetrics TRANSFER = register("transaction.transfer");
+    static final OperationMetrics APPLY_LOAN = register("loan.apply");
+    static final OperationMetrics PAY_EMI = register("loan.payEMI");
+    static final OperationMetrics RISK_CHECK = register("risk.check");
+    static final OperationMetrics INTEREST_BATCH = register("interest.batch");
+    static final OperationMetrics HTTP_REQUEST = register("http.request");
+
+    private BankMetrics() {
+    }
+
+    static OperationMetrics register(String name) {
+        return OPERATIONS.computeIfAbsent(name, OperationMetrics::new);
+    }
+
+    /** A plain event count, for things that have no latency of their own. */
+    static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    static Map<String, Object> snapshot() {
+        double uptimeSeconds = (System.nanoTime() - STARTED) / 1e9;
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("uptimeSeconds", Math.round(uptimeSeconds));
+        Map<String, Object> operations = new LinkedHashMap<>();
+        for (OperationMetrics operation : OPERATIONS.values()) {
+            operations.put(operation.getName(), operation.snapshot(uptimeSeconds));
+        }
+        json.put("operations", operations);
+        Map<String, Object> counters = new LinkedHashMap<>();
+        COUNTERS.forEach((name, count) -> counters.put(name, count.sum()));
+        json.put("counters", counters);
+        return json;
+    }
+}
+
+// ==================== RISK ====================
+
+/**
+ * The windows velocity rules look at. Each is a ring of twelve or twenty-four buckets,
+ * so "the last hour" slides forward five minutes at a time.
+ */
+enum RiskWindow {
+    MINUTE(TimeUnit.SECONDS.toMillis(5), 12),
+    HOUR(TimeUnit.MINUTES.toMillis(5), 12),
+    DAY(TimeUnit.HOURS.toMillis(1), 24);
+
+    final long bucketMillis;
+    final int buckets;
+
+    RiskWindow(long bucketMillis, int buckets) {
+        this.bucketMillis = bucketMillis;
+        this.buckets = buckets;
+    }
+}
+
+/**
+ * One configurable check, written as {@code ACTION:WINDOW:METRIC>threshold}, for example
+ * {@code HOLD:HOUR:AMOUNT>500000}. A rule fires when the account's activity in the
+ * window, counting the transaction being checked, goes over the threshold.
+ */
+final class RiskRule {
+    enum Metric { COUNT, AMOUNT, COUNTERPARTIES }
+    enum Action { HOLD, REJECT }
+
+    final Action action;
+    final RiskWindow window;
+    final Metric metric;
+    final double threshold;
+
+    RiskRule(Action action, RiskWindow window, Metric metric, double threshold) {
+        this.action = action;
+        this.window = window;
+        this.metric = metric;
+        this.threshold = threshold;
+    }
+
+    static List<RiskRule> parseAll(String spec) {
+        List<RiskRule> rules = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            if (!part.isBlank()) {
+                rules.add(parse(part.trim()));
+            }
+        }
+        return rules;
+    }
+
+    static RiskRule parse(String rule) {
+        String[] parts = rule.split("[:>]");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Bad risk rule (want ACTION:WINDOW:METRIC>threshold): " + rule);
+        }
+        return new RiskRule(Action.valueOf(parts[0].trim().toUpperCase()),
+            RiskWindow.valueOf(parts[1].trim().toUpperCase()),
+            Metric.valueOf(parts[2].trim().toUpperCase()), Double.parseDouble(parts[3].trim()));
+    }
+
+    @Override
+    public String toString() {
+        return action + ":" + window + ":" + metric + ">" + 
+            (threshold == Math.rint(threshold) ? String.valueOf((long) threshold) : String.valueOf(threshold));
+    }
+}
+
+/**
+ * An account's recent activity in each risk window. Counts and amounts are kept as
+ * running totals that drop a bucket as it slides out, and counterparties as one 64-bit
+ * bitmap per bucket, so a check costs the same however busy the account is.
+ */
+final class AccountActivity {
+    private final Ring[] rings = new Ring[RiskWindow.values().length];
+    private boolean retired;
+
+    AccountActivity() {
+        for (RiskWindow window : RiskWindow.values()) {
+            rings[window.ordinal()] = new Ring(window);
+        }
+    }
+
+    /**
+     * Returns the strictest rule the transaction would break, recording it unless that
+     * rule rejects it. Held transactions count, so an account under review stays there.
+     */
+    synchronized RiskRule check(RiskRule[] rules, long now, double amount, long counterpartyBit) {
+        for (Ring ring : rings) {
+            ring.advance(now);
+        }
+        RiskRule fired = null;
+        for (RiskRule rule : rules) {
+            if (rings[rule.window.ordinal()].projected(rule.metric, amount, counterpartyBit) > rule.threshold
+                    && (fired == null || rule.action == RiskRule.Action.REJECT)) {
+                fired = rule;
+                if (rule.action == RiskRule.Action.REJECT) {
+                    return rule;
+                }
+            }
+        }
+        for (Ring ring : rings) {
+            ring.add(amount, counterpartyBit);
+        }
+        return fired;
+    }
+
+    synchronized void record(long now, double amount, long counterpartyBit) {
+        for (Ring ring : rings) {
+            ring.advance(now);
+            ring.add(amount, counterpartyBit);
+        }
+    }
+
+    /**
+     * Retires this activity if nothing is left in the longest window, which holds every
+     * shorter one. A retired activity is dropped from the engine and never used again.
+     */
+    synchronized boolean retireIfIdle(long now) {
+        Ring day = rings[RiskWindow.DAY.ordinal()];
+        day.advance(now);
+        if (day.count == 0) {
+            retired = true;
+        }
+        return retired;
+    }
+
+    synchronized boolean isRetired() {
+        return retired;
+    }
+
+    private static final class Ring {
+        private final long bucketMillis;
+        private final int[] counts;
+        private final double[] amounts;
+        private final long[] counterparties;
+        private long head = Long.MIN_VALUE;
+        private int count;
+        private double amount;
+
+        Ring(RiskWindow window) {
+            bucketMillis = window.bucketMillis;
+            counts = new int[window.buckets];
+            amounts = new double[window.buckets];
+            counterparties = new long[window.buckets];
+        }
+
+        /** Clears the buckets that have slid out of the window since the last call. */
+        void advance(long now) {
+            long bucket = now / bucketMillis;
+            if (head == Long.MIN_VALUE) {
+                head = bucket;
+                return;
+            }
+            long steps = Math.min(bucket - head, counts.length);
+            for (long i = 1; i <= steps; i++) {
+                int slot = (int) ((head + i) % counts.length);
+                count -= counts[slot];
+                amount -= amounts[slot];
+                counts[slot] = 0;
+                amounts[slot] = 0;
+                counterparties[slot] = 0;
+            }
+            if (count == 0) {
+                amount = 0; // drop accumulated rounding once the window is empty
+            }
+            head = Math.max(head, bucket);
+        }
+
+        void add(double value, long counterpartyBit) {
+            int slot = (int) (head % counts.length);
+            counts[slot]++;
+            amounts[slot] += value;
+            counterparties[slot] |= counterpartyBit;
+            count++;
+            amount += value;
+        }
+
+        double projected(RiskRule.Metric metric, double value, long counterpartyBit) {
+            switch (metric) {
+                case COUNT:
+                    return count + 1;
+                case AMOUNT:
+                    return amount + value;
+                default:
+                    long seen = counterpartyBit;
+                    for (long bits : counterparties) {
+                        seen |= bits;
+                    }
+                    return distinct(seen);
+            }
+        }
+
+        /**
+         * Linear counting: with z of the 64 bits still clear, about 64·ln(64/z) distinct
+         * values were hashed in. Within about ten percent up to a few dozen, which is
+         * the range counterparty thresholds sit in.
+         */
+        private static double distinct(long bitmap) {
+            int zeros = 64 - Long.bitCount(bitmap);
+            return zeros == 0 ? 64 * Math.log(64) : 64 * Math.log(64.0 / zeros);
+        }
+    }
+}
+
+/**
+ * The screening stage between validating a posting and applying it. Keeps an
+ * {@link AccountActivity} per account that has transacted and runs every rule against
+ * it; no transaction history is read. Activity is swept once its day window is empty,
+ * so only accounts that posted in the last day are held. Rules come from
+ * {@code -Dbis.riskRules}.
+ */
+class RiskEngine {
+    static final String DEFAULT_RULES =
+        "REJECT:MINUTE:COUNT>30,HOLD:HOUR:AMOUNT>500000,HOLD:DAY:AMOUNT>2000000,HOLD:HOUR:COUNTERPARTIES>10";
+
+    static final long SWEEP_INTERVAL_MILLIS = RiskWindow.DAY.bucketMillis;
+
+    private final RiskRule[] rules;
+    private final Map<String, AccountActivity> activity = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    RiskEngine(List<RiskRule> rules) {
+        this.rules = rules.toArray(new RiskRule[0]);
+    }
+
+    static RiskEngine fromSystemProperties() {
+        return new RiskEngine(RiskRule.parseAll(System.getProperty("bis.riskRules", DEFAULT_RULES)));
+    }
+
+    /**
+     * Screens a posting by {@code accountId}. Returns the hold rule it tripped, or null
+     * if it may go straight through.
+     */
+    RiskRule screen(String accountId, String counterparty, double amount) throws TransactionRejectedException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            long now = System.currentTimeMillis();
+            RiskRule fired;
+            while (true) {
+                AccountActivity account = activity.computeIfAbsent(accountId, id -> new AccountActivity());
+                synchronized (account) {
+                    if (account.isRetired()) {
+                        continue; // swept between lookup and lock; the map holds a fresh one now
+                    }
+                    fired = account.check(rules, now, amount, bit(counterparty));
+                    break;
+                }
+            }
+            maybeSweep(now);
+            succeeded = true;
+            if (fired != null && fired.action == RiskRule.Action.REJECT) {
+                throw new TransactionRejectedException("Transaction rejected by risk rule " + fired);
+            }
+            return fired;
+        } finally {
+            BankMetrics.RISK_CHECK.record(start, succeeded);
+        }
+    }
+
+    /** Counts a posting that was already screened elsewhere, such as on the primary. */
+    void record(String accountId, String counterparty, double amount) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            AccountActivity account = activity.computeIfAbsent(accountId, id -> new AccountActivity());
+            synchronized (account) {
+                if (!account.isRetired()) {
+                    account.record(now, amount, bit(counterparty));
+                    break;
+                }
+            }
+        }
+        maybeSweep(now);
+    }
+
+    /** Drops the activity of every account with nothing left in its day window. */
+    void sweep(long now) {
+        activity.values().removeIf(account -> account.retireIfIdle(now));
+    }
+
+    int getTrackedAccountCount() {
+        return activity.size();
+    }
+
+    private void maybeSweep(long now) {
+        long swept = lastSweep.get();
+        if (now - swept > SWEEP_INTERVAL_MILLIS && lastSweep.compareAndSet(swept, now)) {
+            sweep(now);
+        }
+    }
+
+    List<RiskRule> getRules() {
+        return Arrays.asList(rules);
+    }
+
+    /** Deposits and withdrawals have no counterparty and set no bit. */
+    private static long bit(String counterparty) {
+        return counterparty == null ? 0 : 1L << ((counterparty.hashCode() * 0x9E3779B9) >>> 26);
+    }
+}
+
+// ==================== RATE LIMITING ====================
+
+/**
+ * How fast one role may go: a sustained rate and a burst it may spend at once. Written
+ * as {@code ROLE=rate/burst}, for example {@code CUSTOMER=20/40}.
+ */
+final class RateLimitPolicy {
+    final double ratePerSecond;
+    final int burst;
+    final long intervalNanos;
+    final long toleranceNanos;
+
+    RateLimitPolicy(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate limits need a positive rate and a burst of at least 1");
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        this.intervalNanos = Math.max(1, Math.round(1e9 / ratePerSecond));
+        this.toleranceNanos = intervalNanos * burst;
+    }
+
+    static Map<String, RateLimitPolicy> parseAll(String spec) {
+        Map<String, RateLimitPolicy> policies = new HashMap<>();
+        for (String part : spec.split(",")) {
+            if (part.isBlank()) {
+                continue;
+            }
+            String[] pieces = part.trim().split("[=/]");
+            if (pieces.length != 3) {
+                throw new IllegalArgumentException("Bad rate limit (want ROLE=rate/burst): " + part);
+            }
+            policies.put(pieces[0].trim().toUpperCase(),
+                new RateLimitPolicy(Double.parseDouble(pieces[1].trim()), Integer.parseInt(pieces[2].trim())));
+        }
+        return policies;
+    }
+}
+
+/**
+ * Token buckets keyed by scope and ID, such as {@code user:U…} or {@code account:ACC…}.
+ * Each bucket is a single AtomicLong holding the time it will next be full (the GCRA
+ * form of a token bucket), so taking a token is one compare-and-set with no lock and
+ * no refill thread. Buckets are made on first use and swept once they have sat full
+ * for the idle timeout. Policies come from {@code -Dbis.rateLimits}; a role without
+ * one is limited as a CUSTOMER.
+ */
+class RateLimiter {
+    static final String DEFAULT_POLICIES = "CUSTOMER=20/40,MANAGER=100/200,ADMIN=500/1000";
+    static final long DEFAULT_IDLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final Map<String, RateLimitPolicy> policies;
+    private final RateLimitPolicy defaultPolicy;
+    private final long idleNanos;
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    RateLimiter(Map<String, RateLimitPolicy> policies, long idleNanos) {
+        this.policies = new HashMap<>(policies);
+        this.defaultPolicy = policies.getOrDefault("CUSTOMER", new RateLimitPolicy(20, 40));
+        this.idleNanos = idleNanos;
+    }
+
+    static RateLimiter fromSystemProperties() {
+        return new RateLimiter(RateLimitPolicy.parseAll(System.getProperty("bis.rateLimits", DEFAULT_POLICIES)),
+            DEFAULT_IDLE_NANOS);
+    }
+
+    /**
+     * Takes one token from the bucket for {@code scope:id}, or throws with the wait
+     * until one is free.
+     */
+    void acquire(String scope, String id, String role) throws RateLimitExceededException {
+        RateLimitPolicy policy = role == null ? defaultPolicy : policies.getOrDefault(role, defaultPolicy);
+        long now = System.nanoTime();
+        AtomicLong bucket = buckets.computeIfAbsent(scope + ':' + id, key -> new AtomicLong(now));
+        while (true) {
+            long fullAt = bucket.get();
+            long next = Math.max(fullAt, now) + policy.intervalNanos;
+            if (next - now > policy.toleranceNanos) {
+                BankMetrics.counter("rateLimit.rejected." + scope).increment();
+                throw new RateLimitExceededException("Too many requests; try again shortly",
+                    TimeUnit.NANOSECONDS.toMillis(next - now - policy.toleranceNanos) + 1);
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                break;
+            }
+        }
+        long swept = lastSweep.get();
+        if (now - swept > idleNanos && lastSweep.compareAndSet(swept, now)) {
+            long cutoff = now - idleNanos;
+            buckets.values().removeIf(idle -> idle.get() - cutoff < 0);
+        }
+    }
+
+    /**
+     * Gives back a token taken by {@link #acquire} for a request that was then turned
+     * away by another bucket.
+     */
+    void release(String scope, String id, String role) {
+        RateLimitPolicy policy = role == null ? defaultPolicy : policies.getOrDefault(role, defaultPolicy);
+        AtomicLong bucket = buckets.get(scope + ':' + id);
+        if (bucket != null) {
+            bucket.addAndGet(-policy.intervalNanos);
+        }
+    }
+
+    int getBucketCount() {
+        return buckets.size();
+    }
+}
+
+// ==================== SERVICES ====================
+
+class UserService implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private Map<String, User> users = new ConcurrentHashMap<>();
+    private Map<String, User> usersById = new ConcurrentHashMap<>();
+    private User currentUser = null;
+    private transient volatile ReplicationLog ledger;
+    private transient volatile RateLimiter rateLimiter = RateLimiter.fromSystemProperties();
+
+    public User registerUser(String username, String password, 
+                            String email, String role) throws Exception {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            User user = new User(username, password, email, role);
+            if (users.putIfAbsent(username, user) != null) {
+                throw new Exception("Username already exists");
+            }
+            usersById.put(user.getUserId(), user);
+            ReplicationLog log = ledger;
+            if (log != null) {
+                log.append(LedgerEvent.userRegistered(user));
+            }
+            ServiceLog.info("✓ User registered successfully");
+            succeeded = true;
+            return user;
+        } finally {
+            BankMetrics.REGISTER.record(start, succeeded);
+        }
+    }
+
+    void restoreUser(User user) {
+        IdGenerator.observe(user.getUserId());
+        if (users.putIfAbsent(user.getUsername(), user) == null) {
+            usersById.put(user.getUserId(), user);
+        }
+    }
+
+    public User getUserById(String userId) {
+        return usersById.get(userId);
+    }
+
+    /** Null turns login rate limiting off. */
+    void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    void setLedger(ReplicationLog ledger) {
+        this.ledger = ledger;
+    }
+
+    public User login(String username, String password)
+            throws UserAuthenticationException, RateLimitExceededException {
+        User user = authenticate(username, password);
+        this.currentUser = user;
+        ServiceLog.info("✓ Login successful.  Welcome, " + username);
+        return user;
+    }
+
+    /**
+     * Checks the credentials without changing the console's current user. Attempts are
+     * rate limited per user, and per username for names that don't exist, so a password
+     * can't be guessed in a tight loop.
+     */
+    public User authenticate(String username, String password)
+            throws UserAuthenticationException, RateLimitExceededException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            User user = users.get(username);
+            RateLimiter limiter = rateLimiter;
+            if (limiter != null) {
+                limiter.acquire("login", user == null ? username : user.getUserId(),
+                    user == null ? null : user.getRole());
+            }
+            if (user == null || !user.verifyPassword(password)) {
+                throw new UserAuthenticationException("Invalid username or password");
+            }
+            succeeded = true;
+            return user;
+        } finally {
+            BankMetrics.LOGIN.record(start, succeeded);
+        }
+    }
+
+    public void logout() {
+        if (currentUser != null) {
+            ServiceLog.info("✓ Logged out successfully");
+            currentUser = null;
+        }
+    }
+
+    public User getCurrentUser() {
+        return currentUser;
+    }
+
+    public List<User> getAllUsers() {
+        return new ArrayList<>(users.values());
+    }
+}
+
+class AccountService {
+    static final int DEFAULT_SHARDS = 8;
+    private static final int VIRTUAL_NODES = 64;
+    private AccountShard[] shards;
+    private ShardRing ring;
+    private volatile CrossShardTransfers crossShardTransfers;
+    private volatile ReplicationLog ledger;
+    private final UserRefs owners = new UserRefs();
+
+    public AccountService() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /**
+     * Accounts are spread over the shards by consistent hashing of the account ID; each
+     * shard keeps its accounts in its own {@link AccountSegment}.
+     */
+    public AccountService(int shardCount) {
+        this.shards = new AccountShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new AccountShard(i, owners);
+        }
+        this.ring = new ShardRing(shardCount, VIRTUAL_NODES);
+    }
+
+    public BankAccount createAccount(String userId, String accountType) throws Exception {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            AccountType type = accountType(accountType);
+            long id = IdGenerator.reserve(1);
+            BankAccount account = shardFor(AccountSegment.ID_PREFIX + id).getSegment().insert(id,
+                ThreadLocalRandom.current().nextLong(10_000_000_000_000_000L), userId, type,
+                System.currentTimeMillis());
+            ReplicationLog log = ledger;
+            if (log != null) {
+                log.append(LedgerEvent.accountOpened(account));
+            }
+            ServiceLog.info("✓ Account created:  " + account. getAccountNumber());
+            succeeded = true;
+            return account;
+        } finally {
+            BankMetrics.CREATE_ACCOUNT.record(start, succeeded);
+        }
+    }
+
+    public BankAccount getAccountById(String accountId) throws AccountNotFoundException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            BankAccount account = shardFor(accountId).get(accountId);
+            if (account == null) {
+                throw new AccountNotFoundException("Account not found: " + accountId);
+            }
+            succeeded = true;
+            return account;
+        } finally {
+            BankMetrics.GET_ACCOUNT.record(start, succeeded);
+        }
+    }
+
+    public BankAccount getAccountByNumber(String accountNumber) 
+            throws AccountNotFoundException {
+        try {
+            long number = Long.parseLong(accountNumber);
+            for (AccountShard shard : shards) {
+                BankAccount account = shard.getSegment().findByNumber(number);
+                if (account != null) {
+                    return account;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Not a number we could have issued
+        }
+        throw new AccountNotFoundException("Account not found: " + accountNumber);
+    }
+
+    /** Oldest first. */
+    public List<BankAccount> getUserAccounts(String userId) {
+        int owner = owners.find(userId);
+        if (owner < 0) {
+            return new ArrayList<>();
+        }
+        List<BankAccount> owned = new ArrayList<>();
+        for (AccountShard shard : shards) {
+            owned.addAll(shard.getSegment().findByOwner(owner));
+        }
+        owned.sort(Comparator.comparingLong(account -> AccountSegment.parseId(account.getAccountId())));
+        return owned;
+    }
+
+    public void closeAccount(String accountId) throws AccountNotFoundException {
+        BankAccount account = getAccountById(accountId);
+        if (account.getBalance() > 0) {
+            ServiceLog.info("⚠ Please withdraw remaining balance before closing");
+            return;
+        }
+        // In real implementation, would update account object
+        ServiceLog.info("✓ Account closed: " + account.getAccountNumber());
+    }
+
+    /**
+     * Accounts on the same shard are transferred under both account locks; accounts on
+     * different shards go through a saga so neither shard waits on the other.
+     */
+    public void transfer(String fromAccountId, String toAccountId, double amount)
+            throws AccountNotFoundException, InvalidAmountException, InsufficientFundsException {
+        AccountShard sourceShard = shardFor(fromAccountId);
+        AccountShard targetShard = shardFor(toAccountId);
+        BankAccount fromAccount = getAccountById(fromAccountId);
+        BankAccount toAccount = getAccountById(toAccountId);
+        if (sourceShard == targetShard) {
+            fromAccount.transfer(toAccount, amount);
+        } else {
+            getCrossShardTransfers().transfer(sourceShard, fromAccount, targetShard, toAccount, amount);
+        }
+    }
+
+    /**
+     * Rebuilds an account replicated from the primary, with a zero balance that the
+     * replicated transactions then bring up to date.
+     */
+    void restoreAccount(String accountId, String userId, String accountNumber, String accountType)
+            throws Exception {
+        long id = AccountSegment.parseId(accountId);
+        if (id < 0) {
+            throw new Exception("Malformed account ID: " + accountId);
+        }
+        IdGenerator.observe(accountId);
+        shardFor(accountId).getSegment().insert(id, Long.parseLong(accountNumber), userId,
+            accountType(accountType), System.currentTimeMillis());
+    }
+
+    void restoreAccountState(String accountId, String userId, String accountNumber, String accountType,
+                             LocalDate lastInterestDate, long balancePaise, long interestCarry) throws Exception {
+        restoreAccount(accountId, userId, accountNumber, accountType);
+        getAccountById(accountId).restoreState(balancePaise, lastInterestDate, interestCarry);
+    }
+
+    private static AccountType accountType(String accountType) throws Exception {
+        try {
+            return AccountType.valueOf(accountType);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new Exception("Unknown account type: " + accountType);
+        }
+    }
+
+    List<AccountSegment> getSegments() {
+        List<AccountSegment> segments = new ArrayList<>();
+        for (AccountShard shard : shards) {
+            segments.add(shard.getSegment());
+        }
+        return segments;
+    }
+
+    void setLedger(ReplicationLog ledger) {
+        this.ledger = ledger;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public int getShardIndex(String accountId) {
+        return ring.shardFor(accountId);
+    }
+
+    public int getPendingTransfers() {
+        CrossShardTransfers transfers = crossShardTransfers;
+        return transfers == null ? 0 : transfers.getPendingCount();
+    }
+
+    public List<BankAccount> getAllAccounts() {
+        List<BankAccount> all = new ArrayList<>();
+        for (AccountShard shard : shards) {
+            all.addAll(shard.getAccounts());
+        }
+        return all;
+    }
+
+    AccountShard shardFor(String accountId) {
+        return shards[ring.shardFor(accountId)];
+    }
+
+    /**
+     * Created on first use, so the recovery thread only runs once a transfer crosses shards.
+     */
+    private CrossShardTransfers getCrossShardTransfers() {
+        CrossShardTransfers transfers = crossShardTransfers;
+        if (transfers == null) {
+            synchronized (this) {
+                transfers = crossShardTransfers;
+                if (transfers == null) {
+                    transfers = new CrossShardTransfers();
+                    crossShardTransfers = transfers;
+                }
+            }
+        }
+        return transfers;
+    }
+}
+
+class TransactionService implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private Queue<Transaction> transactions = new ConcurrentLinkedQueue<>();
+    private Map<String, Queue<Transaction>> transactionsByAccount = new ConcurrentHashMap<>();
+    private transient AccountService accountService;
+    private transient volatile ReplicationLog ledger;
+    private final transient IdempotencyCache idempotency = new IdempotencyCache();
+    private transient volatile RiskEngine riskEngine = RiskEngine.fromSystemProperties();
+    private transient volatile RateLimiter rateLimiter = RateLimiter.fromSystemProperties();
+    private transient volatile UserService userService;
+    private final transient Map<String, HeldPosting> heldTransactions = new ConcurrentHashMap<>();
+
+    /** A posting parked by the risk stage, with the key it arrived under. */
+    private static final class HeldPosting {
+        final Transaction transaction;
+        final String idempotencyKey;
+
+        HeldPosting(Transaction transaction, String idempotencyKey) {
+            this.transaction = transaction;
+            this.idempotencyKey = idempotencyKey;
+        }
+    }
+
+    /** The most a single deposit, withdrawal or transfer may move: ₹100 crore. */
+    static final double MAX_POSTING_AMOUNT = 1_000_000_000.00;
+
+    public TransactionService(AccountService accountService) {
+        this.accountService = accountService;
+    }
+
+    /** Rounds a requested amount to whole paise, refusing one over the posting limit. */
+    static double postingAmount(double requestedAmount) throws InvalidAmountException {
+        if (!(Math.abs(requestedAmount) <= MAX_POSTING_AMOUNT)) {
+            throw new InvalidAmountException(String.format("Amount must not exceed ₹%.2f", MAX_POSTING_AMOUNT));
+        }
+        return BankAccount.toPaise(requestedAmount) / 100.0;
+    }
+
+    public Transaction deposit(String accountId, double amount) 
+            throws AccountNotFoundException, InvalidAmountException, TransactionRejectedException,
+                   RateLimitExceededException {
+        return deposit(accountId, amount, null);
+    }
+
+    /**
+     * A repeated call with the same idempotency key returns the original transaction
+     * (or failure) without posting again. A null key disables the check. A posting the
+     * risk stage holds comes back PENDING with the balances untouched. Amounts are
+     * rounded to whole paise and checked against the posting limit before anything else
+     * sees them.
+     */
+    public Transaction deposit(String accountId, double requestedAmount, String idempotencyKey) 
+            throws AccountNotFoundException, InvalidAmountException, TransactionRejectedException,
+                   RateLimitExceededException {
+        double amount = postingAmount(requestedAmount);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            throttle(accountId);
+            Transaction transaction = idempotency.execute(idempotencyKey,
+                IdempotencyCache.fingerprint("DEPOSIT", accountId, accountId, amount), () -> {
+                    BankAccount account = accountService.getAccountById(accountId);
+                    Transaction posted = new Transaction(accountId, accountId, amount, "DEPOSIT");
+                    if (held(posted, null, idempotencyKey)) {
+                        return posted;
+                    }
+                    account.deposit(amount);
+                    record(posted, idempotencyKey);
+                    ServiceLog.info("✓ Deposit successful.  New balance: ₹" + 
+                        String.format("%.2f", account.getBalance()));
+                    return posted;
+                });
+            succeeded = true;
+            return transaction;
+        } catch (InsufficientFundsException e) {
+            throw new AssertionError("deposits never check funds", e);
+        } finally {
+            BankMetrics.DEPOSIT.record(start, succeeded);
+        }
+    }
+
+    public Transaction withdraw(String accountId, double amount) 
+            throws AccountNotFoundException, InvalidAmountException, 
+                   InsufficientFundsException, TransactionRejectedException,
+                   RateLimitExceededException {
+        return withdraw(accountId, amount, null);
+    }
+
+    public Transaction withdraw(String accountId, double requestedAmount, String idempotencyKey) 
+            throws AccountNotFoundException, InvalidAmountException, 
+                   InsufficientFundsException, TransactionRejectedException,
+                   RateLimitExceededException {
+        double amount = postingAmount(requestedAmount);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            throttle(accountId);
+            Transaction transaction = idempotency.execute(idempotencyKey,
+                IdempotencyCache.fingerprint("WITHDRAWAL", accountId, null, amount), () -> {
+                    BankAccount account = accountService.getAccountById(accountId);
+                    Transaction posted = new Transaction(accountId, null, amount, "WITHDRAWAL");
+                    if (held(posted, null, idempotencyKey)) {
+                        return posted;
+                    }
+                    account.withdraw(amount);
+                    record(posted, idempotencyKey);
+                    ServiceLog.info("✓ Withdrawal successful. New balance: ₹" + 
+                        String.format("%.2f", account.getBalance()));
+                    return posted;
+                });
+            succeeded = true;
+            return transaction;
+        } finally {
+            BankMetrics.WITHDRAW.record(start, succeeded);
+        }
+    }
+
+    public Transaction transfer(String fromAccountId, String toAccountId, double amount) 
+            throws AccountNotFoundException, InvalidAmountException, 
+                   InsufficientFundsException, TransactionRejectedException,
+                   RateLimitExceededException {
+        return transfer(fromAccountId, toAccountId, amount, null);
+    }
+
+    public Transaction transfer(String fromAccountId, String toAccountId, double requestedAmount,
+                                String idempotencyKey) 
+            throws AccountNotFoundException, InvalidAmountException, 
+                   InsufficientFundsException, TransactionRejectedException,
+                   RateLimitExceededException {
+        double amount = postingAmount(requestedAmount);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            throttle(fromAccountId);
+            Transaction transaction = idempotency.execute(idempotencyKey,
+                IdempotencyCache.fingerprint("TRANSFER", fromAccountId, toAccountId, amount), () -> {
+                    BankAccount fromAccount = accountService.getAccountById(fromAccountId);
+                    accountService.getAccountById(toAccountId);
+                    Transaction posted = new Transaction(fromAccountId, toAccountId, amount, "TRANSFER");
+                    if (held(posted, toAccountId, idempotencyKey)) {
+                        return posted;
+                    }
+                    accountService.transfer(fromAccountId, toAccountId, amount);
+                    record(posted, idempotencyKey);
+                    ServiceLog.info("✓ Transfer successful. From account balance: ₹" + 
+                        String.format("%.2f", fromAccount.getBalance()));
+                    return posted;
+                });
+            succeeded = true;
+            return transaction;
+        } finally {
+            BankMetrics.TRANSFER.record(start, succeeded);
+        }
+    }
+
+    /**
+     * Charges the posting to both the owner's and the account's bucket, at the owner's
+     * role's rate; if the account's bucket is empty the owner's token is given back, so a
+     * rejected posting costs nothing. Retries of an idempotent request are charged too:
+     * they still cost a round trip.
+     */
+    private void throttle(String accountId) throws AccountNotFoundException, RateLimitExceededException {
+        RateLimiter limiter = rateLimiter;
+        if (limiter == null) {
+            return;
+        }
+        BankAccount account = accountService.getAccountById(accountId);
+        UserService users = userService;
+        User owner = users == null ? null : users.getUserById(account.getUserId());
+        String role = owner == null ? null : owner.getRole();
+        limiter.acquire("user", account.getUserId(), role);
+        try {
+            limiter.acquire("account", accountId, role);
+        } catch (RateLimitExceededException e) {
+            limiter.release("user", account.getUserId(), role);
+            throw e;
+        }
+    }
+
+    /**
+     * The risk stage, run once the accounts are known to exist and before any balance
+     * moves. Returns true if the posting was parked for review instead.
+     */
+    private boolean held(Transaction transaction, String counterparty, String idempotencyKey)
+            throws InvalidAmountException, TransactionRejectedException {
+        RiskEngine engine = riskEngine;
+        if (engine == null) {
+            return false;
+        }
+        if (transaction.getAmount() <= 0) {
+            throw new InvalidAmountException("Amount must be positive");
+        }
+        RiskRule rule = engine.screen(transaction.getFromAccountId(), counterparty, transaction.getAmount());
+        if (rule == null) {
+            return false;
+        }
+        transaction.hold("Held by risk rule " + rule);
+        heldTransactions.put(transaction.getTransactionId(), new HeldPosting(transaction, idempotencyKey));
+        index(transaction);
+        ServiceLog.info("⏸ Transaction " + transaction.getTransactionId() + " held for review (" + rule + ")");
+        return true;
+    }
+
+    /**
+     * Posts a held transaction as it was submitted. If it can no longer go through,
+     * for example because the funds have since been spent, it stays held.
+     */
+    public Transaction releaseHeldTransaction(String transactionId) throws Exception {
+        HeldPosting posting = heldTransactions.remove(transactionId);
+        if (posting == null) {
+            throw new Exception("Held transaction not found");
+        }
+        Transaction transaction = posting.transaction;
+        try {
+            switch (transaction.getType()) {
+                case "DEPOSIT":
+                    accountService.getAccountById(transaction.getFromAccountId()).deposit(transaction.getAmount());
+                    break;
+                case "WITHDRAWAL":
+                    accountService.getAccountById(transaction.getFromAccountId()).withdraw(transaction.getAmount());
+                    break;
+                default:
+                    accountService.transfer(transaction.getFromAccountId(), transaction.getToAccountId(),
+                        transaction.getAmount());
+            }
+        } catch (Exception e) {
+            heldTransactions.put(transactionId, posting);
+            throw e;
+        }
+        transaction.complete();
+        ReplicationLog log = ledger;
+        if (log != null) {
+            log.append(LedgerEvent.transaction(transaction, posting.idempotencyKey));
+        }
+        ServiceLog.info("✓ Held transaction " + transactionId + " released");
+        return transaction;
+    }
+
+    public Transaction declineHeldTransaction(String transactionId) throws Exception {
+        HeldPosting posting = heldTransactions.remove(transactionId);
+        if (posting == null) {
+            throw new Exception("Held transaction not found");
+        }
+        posting.transaction.decline();
+        ServiceLog.info("✓ Held transaction " + transactionId + " declined");
+        return posting.transaction;
+    }
+
+    public List<Transaction> getHeldTransactions() {
+        List<Transaction> held = new ArrayList<>();
+        for (HeldPosting posting : heldTransactions.values()) {
+            held.add(posting.transaction);
+        }
+        return held;
+    }
+
+    /** Null turns the risk stage off. */
+    void setRiskEngine(RiskEngine riskEngine) {
+        this.riskEngine = riskEngine;
+    }
+
+    /** Null turns rate limiting off. */
+    void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /** Lets rate limits follow the account owner's role; without it everyone is a CUSTOMER. */
+    void setUserService(UserService userService) {
+        this.userService = userService;
+    }
+
+    private void record(Transaction transaction, String idempotencyKey) {
+        index(transaction);
+        ReplicationLog log = ledger;
+        if (log != null) {
+            log.append(LedgerEvent.transaction(transaction, idempotencyKey));
+        }
+    }
+
+    /**
+     * Records a batch of postings whose balances have already moved, such as interest,
+     * taking the ledger lock once for the whole batch.
+     */
+    void recordAll(List<Transaction> posted, List<LedgerEvent> events) {
+        transactions.addAll(posted);
+        for (Transaction transaction : posted) {
+            transactionsByAccount.computeIfAbsent(transaction.getFromAccountId(),
+                id -> new ConcurrentLinkedQueue<>()).add(transaction);
+        }
+        ReplicationLog log = ledger;
+        if (log != null && !events.isEmpty()) {
+            log.appendAll(events);
+        }
+    }
+
+    void restoreInterest(Transaction transaction, LocalDate businessDate, long carry)
+            throws AccountNotFoundException {
+        IdGenerator.observe(transaction.getTransactionId());
+        BankAccount account = accountService.getAccountById(transaction.getFromAccountId());
+        synchronized (account.lock()) {
+            account.applyDelta(transaction.getAmount());
+            account.setInterestState(businessDate, carry);
+        }
+        index(transaction);
+    }
+
+    /**
+     * Applies a transaction that already happened on the primary: the balances move by
+     * the recorded amount without being checked again. Its idempotency key is remembered
+     * too, so a client retrying against a promoted backup is still deduplicated.
+     */
+    void restoreTransaction(Transaction transaction, String idempotencyKey) throws AccountNotFoundException {
+        IdGenerator.observe(transaction.getTransactionId());
+        double amount = transaction.getAmount();
+        switch (transaction.getType()) {
+            case "DEPOSIT":
+                accountService.getAccountById(transaction.getFromAccountId()).applyDelta(amount);
+                break;
+            case "WITHDRAWAL":
+                accountService.getAccountById(transaction.getFromAccountId()).applyDelta(-amount);
+                break;
+            default:
+                accountService.getAccountById(transaction.getFromAccountId()).applyDelta(-amount);
+                accountService.getAccountById(transaction.getToAccountId()).applyDelta(amount);
+        }
+        index(transaction);
+        RiskEngine engine = riskEngine;
+        if (engine != null) {
+            engine.record(transaction.getFromAccountId(),
+                transaction.getType().equals("TRANSFER") ? transaction.getToAccountId() : null, amount);
+        }
+        if (idempotencyKey != null) {
+            idempotency.remember(idempotencyKey, IdempotencyCache.fingerprint(transaction.getType(),
+                transaction.getFromAccountId(), transaction.getToAccountId(), amount), transaction);
+        }
+    }
+
+    void setLedger(ReplicationLog ledger) {
+        this.ledger = ledger;
+    }
+
+    private void index(Transaction transaction) {
+        transactions.add(transaction);
+        String from = transaction.getFromAccountId();
+        String to = transaction.getToAccountId();
+        transactionsByAccount.computeIfAbsent(from, id -> new ConcurrentLinkedQueue<>()).add(transaction);
+        if (to != null && !to.equals(from)) {
+            transactionsByAccount.computeIfAbsent(to, id -> new ConcurrentLinkedQueue<>()).add(transaction);
+        }
+    }
+
+    public List<Transaction> getAccountTransactions(String accountId) throws AccountNotFoundException {
+        accountService.getAccountById(accountId);
+        return new ArrayList<>(transactionsByAccount.getOrDefault(accountId, new ArrayDeque<>()));
+    }
+
+    public void printStatement(String accountId) throws AccountNotFoundException {
+        BankAccount account = accountService.getAccountById(accountId);
+        List<Transaction> accountTransactions = getAccountTransactions(accountId);
+
+        System.out.println("\n" + "=". repeat(70));
+        System.out.println("ACCOUNT STATEMENT");
+        System.out.println("=".repeat(70));
+        System.out.printf("Account:  %s | Balance: ₹%.2f\n", 
+            account.getAccountNumber(), account.getBalance());
+        System.out.println("-".repeat(70));
+        System.out.printf("%-15s %-15s %-15s %-20s\n", 
+            "Transaction ID", "Type", "Amount", "Time");
+        System.out.println("-".repeat(70));
+
+        for (Transaction t : accountTransactions) {
+            System.out.printf("%-15s %-15s ₹%-14.2f %s\n", 
+                t.getTransactionId(), t.getType(), t.getAmount(), 
+                t.getTimestamp());
+        }
+        System.out.println("=".repeat(70) + "\n");
+    }
+
+    public List<Transaction> getAllTransactions() {
+        return new ArrayList<>(transactions);
+    }
+}
+
+class LoanService implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private Map<String, Loan> loans = new ConcurrentHashMap<>();
+    private Map<String, List<Loan>> loansByAccount = new ConcurrentHashMap<>();
+    private transient AccountService accountService;
+    private transient volatile ReplicationLog ledger;
+
+    public LoanService(AccountService accountService) {
+        this.accountService = accountService;
+    }
+
+    public Loan applyForLoan(String accountId, double principal, 
+                             double rate, int tenure) throws AccountNotFoundException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            BankAccount account = accountService.getAccountById(accountId);
+            Loan loan = new Loan(accountId, principal, rate, tenure);
+            restoreLoan(loan);
+            ReplicationLog log = ledger;
+            if (log != null) {
+                log.append(LedgerEvent.loanApproved(loan));
+            }
+            ServiceLog.info("✓ Loan approved:  " + loan.getLoanId());
+            ServiceLog.info("  Monthly EMI: ₹" + String.format("%.2f", loan.getMonthlyEMI()));
+            succeeded = true;
+            return loan;
+        } finally {
+            BankMetrics.APPLY_LOAN.record(start, succeeded);
+        }
+    }
+
+    public Loan getLoan(String loanId) throws Exception {
+        Loan loan = loans.get(loanId);
+        if (loan == null) {
+            throw new Exception("Loan not found");
+        }
+        return loan;
+    }
+
+    public void payEMI(String loanId) throws Exception {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            Loan loan = getLoan(loanId);
+
+            loan.payEMI();
+            ReplicationLog log = ledger;
+            if (log != null) {
+                log.append(LedgerEvent.emiPaid(loan));
+            }
+            ServiceLog.info("✓ EMI paid successfully");
+            ServiceLog.info("  Remaining balance: ₹" + 
+                String.format("%.2f", loan.getRemainingBalance()));
+            succeeded = true;
+        } finally {
+            BankMetrics.PAY_EMI.record(start, succeeded);
+        }
+    }
+
+    void restoreLoan(Loan loan) {
+        IdGenerator.observe(loan.getLoanId());
+        loans.put(loan.getLoanId(), loan);
+        loansByAccount.computeIfAbsent(loan.getAccountId(), id -> new CopyOnWriteArrayList<>()).add(loan);
+    }
+
+    /**
+     * Brings a loan to the primary's state from a snapshot, creating it if this is the
+     * first the backup hears of it.
+     */
+    void restoreLoanState(Loan loan, int paidMonths) {
+        Loan existing = loans.get(loan.getLoanId());
+        if (existing == null) {
+            restoreLoan(loan);
+            existing = loan;
+        }
+        existing.restorePaidMonths(paidMonths);
+    }
+
+    void setLedger(ReplicationLog ledger) {
+        this.ledger = ledger;
+    }
+
+    public void getLoanStatus(String loanId) throws Exception {
+        Loan loan = getLoan(loanId);
+
+        System.out.println("\n" + "=".repeat(50));
+        System.out.println("LOAN STATUS");
+        System.out.println("=".repeat(50));
+        System.out.println(loan);
+        System.out.println("=".repeat(50) + "\n");
+    }
+
+    public List<Loan> getUserLoans(String accountId) {
+        return new ArrayList<>(loansByAccount.getOrDefault(accountId, Collections.emptyList()));
+    }
+
+    public List<Loan> getAllLoans() {
+        return new ArrayList<>(loans.values());
+    }
+}
+
+// ==================== INTEREST ====================
+
+/**
+ * Credits daily interest to savings accounts. The arithmetic is in whole paise: a
+ * day's interest on P paise at R basis points a year is P·R / 3,650,000 paise, and the
+ * remainder of that division is carried on the account to the next day, so nothing is
+ * rounded away however small the balance. Each shard's account segment is split into
+ * fork-join partitions of rows; each leaf credits its accounts, then indexes and logs
+ * its transactions in one batch.
+ * Every account remembers the last day it was paid for, so a batch that stopped part
+ * way can be run again for the same date and only pays the accounts it missed.
+ */
+class InterestAccrualEngine {
+    static final long DAY_DIVISOR = 10_000L * 365;
+    static final long DEFAULT_RATE_BPS = Long.getLong("bis.savingsRateBps", 350);
+    private static final int LEAF_SIZE = 4096;
+
+    private final AccountService accountService;
+    private final TransactionService transactionService;
+    private final long rateBps;
+    private final ForkJoinPool pool;
+    private volatile LocalDate lastCompletedDate;
+
+    InterestAccrualEngine(AccountService accountService, TransactionService transactionService) {
+        this(accountService, transactionService, DEFAULT_RATE_BPS, ForkJoinPool.commonPool());
+    }
+
+    InterestAccrualEngine(AccountService accountService, TransactionService transactionService,
+                          long rateBps, ForkJoinPool pool) {
+        this.accountService = accountService;
+        this.transactionService = transactionService;
+        this.rateBps = rateBps;
+        this.pool = pool;
+    }
+
+    /**
+     * Pays every active savings account for each day after its last accrual (or from the
+     * day it was opened) up to and including businessDate, which must be a day that has
+     * already ended. Only one batch runs at a time.
+     */
+    synchronized Map<String, Object> run(LocalDate businessDate) {
+        if (!businessDate.isBefore(LocalDate.now())) {
+            throw new IllegalArgumentException("Interest can only be run for a day that has ended");
+        }
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            long[] totals = pool.invoke(new Batch(accountService.getSegments(), businessDate));
+            if (lastCompletedDate == null || businessDate.isAfter(lastCompletedDate)) {
+                lastCompletedDate = businessDate;
+            }
+            succeeded = true;
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("businessDate", businessDate.toString());
+            summary.put("savingsAccounts", totals[0]);
+            summary.put("credited", totals[1]);
+            summary.put("interest", totals[2] / 100.0);
+            summary.put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            ServiceLog.info("✓ Interest for " + businessDate + " credited to " + totals[1] + " accounts");
+            return summary;
+        } finally {
+            BankMetrics.INTEREST_BATCH.record(start, succeeded);
+        }
+    }
+
+    /** Runs the batch for yesterday unless that day is already done. */
+    void runIfDue() {
+        LocalDate yesterday = LocalDate.now().minusDays(1);
+        if (lastCompletedDate == null || lastCompletedDate.isBefore(yesterday)) {
+            run(yesterday);
+        }
+    }
+
+    LocalDate getLastCompletedDate() {
+        return lastCompletedDate;
+    }
+
+    /**
+     * Credits one account and returns the paise credited, 0 if nothing was due. Runs
+     * under the account's lock so the balance it reads is the one it credits.
+     */
+    private long accrue(BankAccount account, LocalDate businessDate) {
+        synchronized (account.lock()) {
+            LocalDate last = account.getLastInterestDate();
+            if (last == null) {
+                // Never accrued: the account earns from the day it was opened
+                last = account.getCreatedAt().toLocalDate().minusDays(1);
+            }
+            if (!account.getStatus().equals("ACTIVE") || !last.isBefore(businessDate)) {
+                return 0;
+            }
+            long days = ChronoUnit.DAYS.between(last, businessDate);
+            long principal = account.getBalancePaise();
+            long carry = account.getInterestCarry();
+            long interest = 0;
+            for (long day = 0; day < days && principal > 0; day++) {
+                long numerator = Math.addExact(Math.multiplyExact(principal + interest, rateBps), carry);
+                interest += numerator / DAY_DIVISOR;
+                carry = numerator % DAY_DIVISOR;
+            }
+            account.setInterestState(businessDate, carry);
+            if (interest > 0) {
+                account.applyDelta(interest / 100.0);
+            }
+            return interest;
+        }
+    }
+
+    /** One partition per segment, summed. */
+    private final class Batch extends RecursiveTask<long[]> {
+        private final List<AccountSegment> segments;
+        private final LocalDate businessDate;
+
+        Batch(List<AccountSegment> segments, LocalDate businessDate) {
+            this.segments = segments;
+            this.businessDate = businessDate;
+        }
+
+        @Override
+        protected long[] compute() {
+            List<Partition> partitions = new ArrayList<>();
+            for (AccountSegment segment : segments) {
+                partitions.add(new Partition(segment, 0, segment.size(), businessDate));
+            }
+            long[] totals = new long[3];
+            for (Partition partition : invokeAll(partitions)) {
+                long[] part = partition.join();
+                for (int i = 0; i < totals.length; i++) {
+                    totals[i] += part[i];
+                }
+            }
+            return totals;
+        }
+    }
+
+    /** Returns {savings accounts, accounts credited, paise credited} for its rows. */
+    private final class Partition extends RecursiveTask<long[]> {
+        private final AccountSegment segment;
+        private final int from;
+        private final int to;
+        private final LocalDate businessDate;
+
+        Partition(AccountSegment segment, int from, int to, LocalDate businessDate) {
+            this.segment = segment;
+            this.from = from;
+            this.to = to;
+            this.businessDate = businessDate;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from > LEAF_SIZE) {
+                int middle = (from + to) >>> 1;
+                Partition left = new Partition(segment, from, middle, businessDate);
+                left.fork();
+                long[] right = new Partition(segment, middle, to, businessDate).compute();
+                long[] sum = left.join();
+                for (int i = 0; i < sum.length; i++) {
+                    sum[i] += right[i];
+                }
+                return sum;
+            }
+            long[] credited = new long[to - from];
+            int savings = 0;
+            int count = 0;
+            long paise = 0;
+            for (int slot = from; slot < to; slot++) {
+                if (segment.type(slot) != AccountType.SAVINGS) {
+                    continue;
+                }
+                savings++;
+                credited[slot - from] = accrue(segment.view(slot), businessDate);
+                if (credited[slot - from] > 0) {
+                    count++;
+                    paise += credited[slot - from];
+                }
+            }
+            if (count == 0) {
+                return new long[] {savings, 0, 0};
+            }
+            List<Transaction> posted = new ArrayList<>(count);
+            List<LedgerEvent> events = new ArrayList<>(count);
+            long id = IdGenerator.reserve(count);
+            LocalDateTime now = LocalDateTime.now();
+            for (int slot = from; slot < to; slot++) {
+                if (credited[slot - from] > 0) {
+                    BankAccount account = segment.view(slot);
+                    Transaction transaction = new Transaction("TXN" + id++, account.getAccountId(),
+                        account.getAccountId(), credited[slot - from] / 100.0, "INTEREST", now);
+                    posted.add(transaction);
+                    events.add(LedgerEvent.interestPosted(transaction, businessDate, account.getInterestCarry()));
+                }
+            }
+            transactionService.recordAll(posted, events);
+            return new long[] {savings, count, paise};
+        }
+    }
+}
+
+// ==================== REPLICATION ====================
+
+/**
+ * One entry of the primary's mutation log. Events carry their data as strings and
+ * numbers so they can be written to a socket without Java serialization.
+ */
+class LedgerEvent {
+    enum Type { USER_REGISTERED, ACCOUNT_OPENED, TRANSACTION, LOAN_APPROVED, EMI_PAID, INTEREST_POSTED,
+        ACCOUNT_STATE, LOAN_STATE }
+
+    long sequence;
+    final Type type;
+    final String[] fields;
+    final double[] values;
+
+    LedgerEvent(Type type, String[] fields, double[] values) {
+        this.type = type;
+        this.fields = fields;
+        this.values = values;
+    }
+
+    static LedgerEvent userRegistered(User user) {
+        return new LedgerEvent(Type.USER_REGISTERED, new String[] {user.getUserId(), user.getUsername(),
+            user.getPasswordHash(), user.getEmail(), user.getRole()}, new double[0]);
+    }
+
+    static LedgerEvent accountOpened(BankAccount account) {
+        return new LedgerEvent(Type.ACCOUNT_OPENED, new String[] {account.getAccountId(), account.getUserId(),
+            account.getAccountNumber(), account.getAccountType()}, new double[0]);
+    }
+
+    static LedgerEvent transaction(Transaction transaction, String idempotencyKey) {
+        return new LedgerEvent(Type.TRANSACTION, new String[] {transaction.getTransactionId(),
+            transaction.getFromAccountId(), transaction.getToAccountId(), transaction.getType(),
+            transaction.getTimestamp().toString(), idempotencyKey}, new double[] {transaction.getAmount()});
+    }
+
+    static LedgerEvent loanApproved(Loan loan) {
+        return new LedgerEvent(Type.LOAN_APPROVED, new String[] {loan.getLoanId(), loan.getAccountId()},
+            new double[] {loan.getPrincipalAmount(), loan.getInterestRate(), loan.getTenureMonths()});
+    }
+
+    static LedgerEvent emiPaid(Loan loan) {
+        return new LedgerEvent(Type.EMI_PAID, new String[] {loan.getLoanId()}, new double[0]);
+    }
+
+    /** Carries the accrual date and carried remainder so a promoted backup won't pay twice. */
+    static LedgerEvent interestPosted(Transaction transaction, LocalDate businessDate, long carry) {
+        return new LedgerEvent(Type.INTEREST_POSTED, new String[] {transaction.getTransactionId(),
+            transaction.getFromAccountId(), businessDate.toString(), transaction.getTimestamp().toString()},
+            new double[] {transaction.getAmount(), carry});
+    }
+
+    /** An account as it stands, for a snapshot; applying it overwrites rather than adds. */
+    static LedgerEvent accountState(String accountId, String userId, String accountNumber, String accountType,
+                                    String lastInterestDate, long balancePaise, long carry) {
+        return new LedgerEvent(Type.ACCOUNT_STATE, new String[] {accountId, userId, accountNumber, accountType,
+            lastInterestDate}, new double[] {balancePaise, carry});
+    }
+
+    /** A loan as it stands, for a snapshot. */
+    static LedgerEvent loanState(String loanId, String accountId, double principal, double rate, int tenure,
+                                 int paidMonths) {
+        return new LedgerEvent(Type.LOAN_STATE, new String[] {loanId, accountId},
+            new double[] {principal, rate, tenure, paidMonths});
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(sequence);
+        out.writeByte(type.ordinal());
+        out.writeByte(fields.length);
+        for (String field : fields) {
+            out.writeBoolean(field != null);
+            if (field != null) {
+                out.writeUTF(field);
+            }
+        }
+        out.writeByte(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    static LedgerEvent read(DataInputStream in) throws IOException {
+        long sequence = in.readLong();
+        Type type = Type.values()[in.readByte()];
+        String[] fields = new String[in.readByte()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = in.readBoolean() ? in.readUTF() : null;
+        }
+        double[] values = new double[in.readByte()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        LedgerEvent event = new LedgerEvent(type, fields, values);
+        event.sequence = sequence;
+        return event;
+    }
+}
+
+/**
+ * The primary's ordered mutation log. Events stay in memory until every connected backup
+ * has acknowledged them, and never more than a fixed number of them; older ones are
+ * folded into a base holding only the latest state of each user, account and loan. A
+ * backup that needs an event already folded away resyncs from that base as a snapshot
+ * and continues with the first retained event. Transaction history and idempotency keys
+ * are not part of the base. Appending assigns the sequence number.
+ */
+class ReplicationLog {
+    static final int DEFAULT_MAX_RETAINED = Integer.getInteger("bis.replicationLogMax", 1_000_000);
+
+    /** The base state up to and including a sequence number, as events to apply in order. */
+    static final class Snapshot {
+        final long sequence;
+        final List<LedgerEvent> events;
+
+        Snapshot(long sequence, List<LedgerEvent> events) {
+            this.sequence = sequence;
+            this.events = events;
+        }
+    }
+
+    private static final class AccountBase {
+        final String accountId;
+        final String userId;
+        final String accountNumber;
+        final String accountType;
+        long balancePaise;
+        String lastInterestDate;
+        long carry;
+
+        AccountBase(String accountId, String userId, String accountNumber, String accountType) {
+            this.accountId = accountId;
+            this.userId = userId;
+            this.accountNumber = accountNumber;
+            this.accountType = accountType;
+        }
+    }
+
+    private static final class LoanBase {
+        final String loanId;
+        final String accountId;
+        final double principal;
+        final double rate;
+        final int tenure;
+        int paidMonths;
+
+        LoanBase(String loanId, String accountId, double principal, double rate, int tenure) {
+            this.loanId = loanId;
+            this.accountId = accountId;
+            this.principal = principal;
+            this.rate = rate;
+            this.tenure = tenure;
+        }
+    }
+
+    private final List<LedgerEvent> events = new ArrayList<>();
+    private final int maxRetained;
+    private final Map<String, LedgerEvent> baseUsers = new LinkedHashMap<>();
+    private final Map<String, AccountBase> baseAccounts = new LinkedHashMap<>();
+    private final Map<String, LoanBase> baseLoans = new LinkedHashMap<>();
+    private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final long parentEpoch;
+    private final long forkSequence;
+    private long firstSequence;
+
+    ReplicationLog(long firstSequence) {
+        this(firstSequence, 0, DEFAULT_MAX_RETAINED);
+    }
+
+    ReplicationLog(long firstSequence, int maxRetained) {
+        this(firstSequence, 0, maxRetained);
+    }
+
+    /**
+     * A log that continues the one with parentEpoch (0 for none) after its event
+     * firstSequence - 1, as a promoted backup's does.
+     */
+    ReplicationLog(long firstSequence, long parentEpoch, int maxRetained) {
+        this.firstSequence = firstSequence;
+        this.parentEpoch = parentEpoch;
+        this.forkSequence = firstSequence - 1;
+        this.maxRetained = Math.max(1, maxRetained);
+    }
+
+    /** Identifies this log; sequence numbers only mean something together with it. */
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns why a backup whose history is the given epoch up to next - 1 cannot follow
+     * this log, or null if it can. It can when it is new, when it has a prefix of this
+     * log, or when it has a prefix of the parent log up to the fork. Anything else holds
+     * events this log never had, such as a backup of an earlier run of the primary.
+     */
+    synchronized String admit(long followerEpoch, long next) {
+        if (followerEpoch == 0) {
+            return next == 1 ? null : "backup has state but no log epoch";
+        }
+        if (followerEpoch == epoch) {
+            return next <= firstSequence + events.size() ? null
+                : "backup is at " + (next - 1) + ", past the end of the log at " + getLastSequence();
+        }
+        if (followerEpoch == parentEpoch && parentEpoch != 0) {
+            return next <= forkSequence + 1 ? null
+                : "backup is at " + (next - 1) + ", past where this log took over at " + forkSequence;
+        }
+        return "backup follows a different log";
+    }
+
+    synchronized void append(LedgerEvent event) {
+        event.sequence = firstSequence + events.size();
+        events.add(event);
+        trimToCap();
+        notifyAll();
+    }
+
+    synchronized void appendAll(List<LedgerEvent> batch) {
+        for (LedgerEvent event : batch) {
+            event.sequence = firstSequence + events.size();
+            events.add(event);
+        }
+        trimToCap();
+        notifyAll();
+    }
+
+    /**
+     * Adds state that predates the log to its base, such as what a promoted backup had
+     * already replicated.
+     */
+    synchronized void seed(LedgerEvent event) {
+        fold(event);
+    }
+
+    /** Folds every event up to and including the given sequence number into the base. */
+    synchronized void truncate(long sequence) {
+        long count = Math.min(sequence - firstSequence + 1, events.size());
+        if (count > 0) {
+            foldOldest((int) count);
+        }
+    }
+
+    /**
+     * Returns up to max events starting at the given sequence number, waiting up to
+     * waitMillis for the first one. An empty list means nothing new arrived; null means
+     * the sequence was already folded into the base and the caller needs a snapshot.
+     */
+    synchronized List<LedgerEvent> readFrom(long sequence, int max, long waitMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        long remaining = waitMillis;
+        while (sequence >= firstSequence + events.size() && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        if (sequence < firstSequence) {
+            return null;
+        }
+        int from = (int) Math.min(sequence - firstSequence, events.size());
+        int to = Math.min(events.size(), from + max);
+        return new ArrayList<>(events.subList(from, to));
+    }
+
+    /** Users first, then accounts, then loans, so each refers only to what came before. */
+    synchronized Snapshot snapshot() {
+        List<LedgerEvent> state = new ArrayList<>(baseUsers.size() + baseAccounts.size() + baseLoans.size());
+        state.addAll(baseUsers.values());
+        for (AccountBase account : baseAccounts.values()) {
+            state.add(LedgerEvent.accountState(account.accountId, account.userId, account.accountNumber,
+                account.accountType, account.lastInterestDate, account.balancePaise, account.carry));
+        }
+        for (LoanBase loan : baseLoans.values()) {
+            state.add(LedgerEvent.loanState(loan.loanId, loan.accountId, loan.principal, loan.rate,
+                loan.tenure, loan.paidMonths));
+        }
+        return new Snapshot(firstSequence - 1, state);
+    }
+
+    synchronized long getFirstSequence() {
+        return firstSequence;
+    }
+
+    synchronized long getLastSequence() {
+        return firstSequence + events.size() - 1;
+    }
+
+    // Folds a quarter of the cap past it at a time, so each copy of the list is paid for
+    // by many appends
+    private void trimToCap() {
+        if (events.size() > maxRetained) {
+            foldOldest(Math.min(events.size(), events.size() - maxRetained + maxRetained / 4));
+        }
+    }
+
+    private void foldOldest(int count) {
+        List<LedgerEvent> oldest = events.subList(0, count);
+        for (LedgerEvent event : oldest) {
+            fold(event);
+        }
+        oldest.clear();
+        firstSequence += count;
+    }
+
+    // Mirrors LogFollower.apply, on the reduced state
+    private void fold(LedgerEvent event) {
+        String[] f = event.fields;
+        double[] v = event.values;
+        switch (event.type) {
+            case USER_REGISTERED:
+                baseUsers.putIfAbsent(f[0], event);
+                break;
+            case ACCOUNT_OPENED:
+                baseAccounts.putIfAbsent(f[0], new AccountBase(f[0], f[1], f[2], f[3]));
+                break;
+            case ACCOUNT_STATE: {
+                AccountBase account = baseAccounts.computeIfAbsent(f[0], id -> new AccountBase(f[0], f[1], f[2], f[3]));
+                account.balancePaise = (long) v[0];
+                account.lastInterestDate = f[4];
+                account.carry = (long) v[1];
+                break;
+            }
+            case TRANSACTION: {
+                long paise = BankAccount.toPaise(v[0]);
+                switch (f[3]) {
+                    case "DEPOSIT":
+                        credit(f[1], paise);
+                        break;
+                    case "WITHDRAWAL":
+                        credit(f[1], -paise);
+                        break;
+                    default:
+                        credit(f[1], -paise);
+                        credit(f[2], paise);
+                }
+                break;
+            }
+            case INTEREST_POSTED: {
+                AccountBase account = credit(f[1], BankAccount.toPaise(v[0]));
+                if (account != null) {
+                    account.lastInterestDate = f[2];
+                    account.carry = (long) v[1];
+                }
+                break;
+            }
+            case LOAN_APPROVED:
+                baseLoans.putIfAbsent(f[0], new LoanBase(f[0], f[1], v[0], v[1], (int) v[2]));
+                break;
+            case EMI_PAID: {
+                LoanBase loan = baseLoans.get(f[0]);
+                if (loan != null) {
+                    loan.paidMonths++;
+                }
+                break;
+            }
+            case LOAN_STATE:
+                baseLoans.computeIfAbsent(f[0], id -> new LoanBase(f[0], f[1], v[0], v[1], (int) v[2]))
+                    .paidMonths = (int) v[3];
+                break;
+        }
+    }
+
+    private AccountBase credit(String accountId, long paise) {
+        AccountBase account = baseAccounts.get(accountId);
+        if (account != null) {
+            account.balancePaise = Math.addExact(account.balancePaise, paise);
+        }
+        return account;
+    }
+}
+
+/**
+ * Primary side of replication: streams the log to every backup that connects, in batches
+ * of whatever accumulated since the last one. Each backup opens with the epoch of the log
+ * it has been following and the next sequence it needs, and is refused if that history
+ * is not a prefix of this log. It then acknowledges every batch, which also paces the stream; what all of them
+ * have acknowledged is folded out of the log. A backup that needs folded events gets a
+ * snapshot first. Idle connections get an empty batch as a heartbeat.
+ */
+class LogShipper {
+    /** Sent in place of a batch size when a snapshot follows. */
+    static final int SNAPSHOT = -1;
+    private static final int MAX_BATCH = 512;
+    private static final long HEARTBEAT_MILLIS = 1000;
+
+    private final ReplicationLog log;
+    private final int port;
+    private final Map<Socket, Long> followers = new ConcurrentHashMap<>();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean running;
+
+    LogShipper(ReplicationLog log, int port) {
+        this.log = log;
+        this.port = port;
+    }
+
+    void start() throws IOException {
+        serverSocket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        running = true;
+        Thread acceptor = new Thread(this::accept, "replication-shipper");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    void stop() {
+        running = false;
+        ServerSocket listening = serverSocket;
+        if (listening != null) {
+            try {
+                listening.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        for (Socket socket : followers.keySet()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Highest sequence number acknowledged by each connected backup.
+     */
+    List<Long> getAcknowledged() {
+        return new ArrayList<>(followers.values());
+    }
+
+    // Nothing below this is needed by any connected backup
+    private long lowestAcknowledged() {
+        long lowest = Long.MAX_VALUE;
+        for (long acknowledged : followers.values()) {
+            lowest = Math.min(lowest, acknowledged);
+        }
+        return lowest;
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread thread = new Thread(() -> ship(socket), "replication-to-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Replication accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void ship(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            long epoch = in.readLong();
+            long next = in.readLong();
+            String refusal = log.admit(epoch, next);
+            if (refusal != null) {
+                out.writeBoolean(false);
+                out.writeUTF(refusal);
+                out.flush();
+                System.err.println("Replication refused a backup: " + refusal);
+                return;
+            }
+            out.writeBoolean(true);
+            out.writeLong(log.getEpoch());
+            followers.put(socket, next - 1);
+            while (running) {
+                List<LedgerEvent> batch = log.readFrom(next, MAX_BATCH, HEARTBEAT_MILLIS);
+                if (batch == null) {
+                    ReplicationLog.Snapshot snapshot = log.snapshot();
+                    out.writeInt(SNAPSHOT);
+                    out.writeLong(snapshot.sequence);
+                    out.writeInt(snapshot.events.size());
+                    for (LedgerEvent event : snapshot.events) {
+                        event.write(out);
+                    }
+                    next = snapshot.sequence + 1;
+                } else {
+                    out.writeInt(batch.size());
+                    for (LedgerEvent event : batch) {
+                        event.write(out);
+                    }
+                    next += batch.size();
+                }
+                out.flush();
+                followers.put(socket, in.readLong());
+                log.truncate(lowestAcknowledged());
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Replication to backup stopped: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.remove(socket);
+        }
+    }
+}
+
+/**
+ * Backup side of replication: pulls the primary's log and applies it to the local
+ * services, reconnecting after failures and resuming after the last applied event.
+ */
+class LogFollower {
+    private static final int READ_TIMEOUT_MILLIS = 10_000;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final UserService userService;
+    private final AccountService accountService;
+    private final TransactionService transactionService;
+    private final LoanService loanService;
+    private final Thread thread = new Thread(this::run, "replication-follower");
+    private volatile long lastApplied;
+    private volatile long epoch;
+    private volatile String refusal;
+    private volatile boolean running;
+    private volatile boolean connected;
+    private volatile Socket socket;
+
+    LogFollower(String host, int port, UserService userService, AccountService accountService,
+                TransactionService transactionService, LoanService loanService) {
+        this.host = host;
+        this.port = port;
+        this.userService = userService;
+        this.accountService = accountService;
+        this.transactionService = transactionService;
+        this.loanService = loanService;
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops following and returns the sequence number of the last event applied.
+     */
+    long stop() {
+        running = false;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return lastApplied;
+    }
+
+    long getLastApplied() {
+        return lastApplied;
+    }
+
+    /** The epoch of the log the applied events came from; 0 before the first connection. */
+    long getEpoch() {
+        return epoch;
+    }
+
+    /** Why the primary refused this backup, or null; a refused backup stops following. */
+    String getRefusal() {
+        return refusal;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    private void run() {
+        while (running) {
+            try (Socket current = new Socket(host, port)) {
+                socket = current;
+                current.setTcpNoDelay(true);
+                current.setSoTimeout(READ_TIMEOUT_MILLIS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(current.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(current.getOutputStream()));
+                out.writeLong(epoch);
+                out.writeLong(lastApplied + 1);
+                out.flush();
+                if (!in.readBoolean()) {
+                    // Applying this log on top of our state would silently diverge from it
+                    refusal = in.readUTF();
+                    running = false;
+                    System.err.println("Replication from " + host + ":" + port + " refused: " + refusal
+                        + "; restart this backup empty to resync");
+                    return;
+                }
+                epoch = in.readLong();
+                connected = true;
+                while (running) {
+                    int count = in.readInt();
+                    if (count == LogShipper.SNAPSHOT) {
+                        // Too far behind for the log: overwrite with the primary's state as of the sequence
+                        long sequence = in.readLong();
+                        int size = in.readInt();
+                        for (int i = 0; i < size; i++) {
+                            apply(LedgerEvent.read(in));
+                        }
+                        lastApplied = sequence;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        LedgerEvent event = LedgerEvent.read(in);
+                        apply(event);
+                        lastApplied = event.sequence;
+                    }
+                    out.writeLong(lastApplied);
+                    out.flush();
+                }
+            } catch (EOFException e) {
+                if (running) {
+                    System.err.println("Replication from " + host + ":" + port + " interrupted: connection closed");
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Replication from " + host + ":" + port + " interrupted: " + e.getMessage());
+                }
+            } finally {
+                connected = false;
+                socket = null;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void apply(LedgerEvent event) throws IOException {
+        String[] f = event.fields;
+        double[] v = event.values;
+        try {
+            switch (event.type) {
+                case USER_REGISTERED:
+                    userService.restoreUser(new User(f[0], f[1], f[2], f[3], f[4]));
+                    break;
+                case ACCOUNT_OPENED:
+                    accountService.restoreAccount(f[0], f[1], f[2], f[3]);
+                    break;
+                case TRANSACTION:
+                    transactionService.restoreTransaction(
+                        new Transaction(f[0], f[1], f[2], v[0], f[3], LocalDateTime.parse(f[4])), f[5]);
+                    break;
+                case LOAN_APPROVED:
+                    loanService.restoreLoan(new Loan(f[0], f[1], v[0], v[1], (int) v[2]));
+                    break;
+                case EMI_PAID:
+                    loanService.getLoan(f[0]).payEMI();
+                    break;
+                case INTEREST_POSTED:
+                    transactionService.restoreInterest(
+                        new Transaction(f[0], f[1], f[1], v[0], "INTEREST", LocalDateTime.parse(f[3])),
+                        LocalDate.parse(f[2]), (long) v[1]);
+                    break;
+                case ACCOUNT_STATE:
+                    accountService.restoreAccountState(f[0], f[1], f[2], f[3],
+                        f[4] == null ? null : LocalDate.parse(f[4]), (long) v[0], (long) v[1]);
+                    break;
+                case LOAN_STATE:
+                    loanService.restoreLoanState(new Loan(f[0], f[1], v[0], v[1], (int) v[2]), (int) v[3]);
+                    break;
+            }
+        } catch (Exception e) {
+            throw new IOException("Cannot apply event " + event.sequence + ": " + e.getMessage(), e);
+        }
+    }
+}
+
+/**
+ * Replication role of this process. A primary writes every mutation to its log and,
+ * when given a replication port, ships it to backups. A backup follows a primary and is
+ * read-only until promoted; promotion stops following and continues the sequence from
+ * the last applied event, so other backups can then follow the new primary.
+ */
+class ReplicationNode {
+    private final UserService userService;
+    private final AccountService accountService;
+    private final TransactionService transactionService;
+    private final LoanService loanService;
+    private final int replicationPort;
+    private volatile ReplicationLog log;
+    private volatile LogFollower follower;
+    private LogShipper shipper;
+
+    /**
+     * A replication port of 0 runs without a log, as a standalone primary.
+     */
+    ReplicationNode(UserService userService, AccountService accountService,
+                    TransactionService transactionService, LoanService loanService, int replicationPort) {
+        this.userService = userService;
+        this.accountService = accountService;
+        this.transactionService = transactionService;
+        this.loanService = loanService;
+        this.replicationPort = replicationPort;
+    }
+
+    synchronized void startPrimary() throws IOException {
+        startLog(1, 0, false);
+    }
+
+    synchronized void startBackup(String primaryHost, int primaryPort) {
+        follower = new LogFollower(primaryHost, primaryPort, userService, accountService,
+            transactionService, loanService);
+        follower.start();
+    }
+
+    synchronized void promote() throws IOException {
+        if (follower == null) {
+            throw new IllegalStateException("Already the primary");
+        }
+        long lastApplied = follower.stop();
+        long parentEpoch = follower.getEpoch();
+        follower = null;
+        startLog(lastApplied + 1, parentEpoch, true);
+    }
+
+    boolean isReadOnly() {
+        return follower != null;
+    }
+
+    synchronized void stop() {
+        if (follower != null) {
+            follower.stop();
+        }
+        if (shipper != null) {
+            shipper.stop();
+        }
+    }
+
+    Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        LogFollower currentFollower = follower;
+        if (currentFollower != null) {
+            status.put("role", "backup");
+            status.put("connected", currentFollower.isConnected());
+            status.put("lastApplied", currentFollower.getLastApplied());
+            if (currentFollower.getRefusal() != null) {
+                status.put("refused", currentFollower.getRefusal());
+            }
+        } else {
+            status.put("role", "primary");
+            status.put("lastSequence", log == null ? 0 : log.getLastSequence());
+            status.put("firstRetained", log == null ? 0 : log.getFirstSequence());
+            status.put("backups", shipper == null ? Collections.emptyList() : shipper.getAcknowledged());
+        }
+        return status;
+    }
+
+    /**
+     * Without a replication port nobody could read the log, so none is kept. A promoted
+     * backup seeds the log's base with everything it replicated, so backups that were
+     * further behind can resync from it.
+     */
+    private void startLog(long firstSequence, long parentEpoch, boolean seed) throws IOException {
+        if (replicationPort <= 0) {
+            return;
+        }
+        ReplicationLog newLog = new ReplicationLog(firstSequence, parentEpoch, ReplicationLog.DEFAULT_MAX_RETAINED);
+        if (seed) {
+            for (User user : userService.getAllUsers()) {
+                newLog.seed(LedgerEvent.userRegistered(user));
+            }
+            for (BankAccount account : accountService.getAllAccounts()) {
+                LocalDate lastInterestDate = account.getLastInterestDate();
+                newLog.seed(LedgerEvent.accountState(account.getAccountId(), account.getUserId(),
+                    account.getAccountNumber(), account.getAccountType(),
+                    lastInterestDate == null ? null : lastInterestDate.toString(),
+                    account.getBalancePaise(), account.getInterestCarry()));
+            }
+            for (Loan loan : loanService.getAllLoans()) {
+                newLog.seed(LedgerEvent.loanState(loan.getLoanId(), loan.getAccountId(),
+                    loan.getPrincipalAmount(), loan.getInterestRate(), loan.getTenureMonths(),
+                    loan.getPaidMonths()));
+            }
+        }
+        // Only a shipper that is listening is one stop() has to close
+        LogShipper newShipper = new LogShipper(newLog, replicationPort);
+        newShipper.start();
+        shipper = newShipper;
+        log = newLog;
+        userService.setLedger(newLog);
+        accountService.setLedger(newLog);
+        transactionService.setLedger(newLog);
+        loanService.setLedger(newLog);
+    }
+}
+
+// ==================== SERVER ====================
+
+/**
+ * Minimal JSON reader and writer for the server's request and response bodies.
+ * Objects parse to LinkedHashMap, arrays to ArrayList, numbers to Double.
+ */
+final class Json {
+    private final String text;
+    private int pos;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    static Object parse(String text) {
+        Json parser = new Json(text);
+        Object value = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.pos != text.length()) {
+            throw parser.error("Unexpected data");
+        }
+        return value;
+    }
+
+    static String write(Object value) {
+        StringBuilder out = new StringBuilder();
+        append(out, value);
+        return out.toString();
+    }
+
+    private static void append(StringBuilder out, Object value) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof String) {
+            appendString(out, (String) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            out.append(Double.isFinite(number) ? String.valueOf(number) : "null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value);
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendString(out, String.valueOf(entry.getKey()));
+                out.append(':');
+                append(out, entry.getValue());
+            }
+            out.append('}');
+        } else if (value instanceof Collection) {
+            out.append('[');
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                append(out, item);
+            }
+            out.append(']');
+        } else {
+            appendString(out, value.toString());
+        }
+    }
+
+    private static void appendString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    private Object readValue() {
+        skipWhitespace();
+        if (pos >= text.length()) {
+            throw error("Unexpected end of input");
+        }
+        char c = text.charAt(pos);
+        if (c == '{') {
+            return readObject();
+        } else if (c == '[') {
+            return readArray();
+        } else if (c == '"') {
+            return readString();
+        } else if (text.startsWith("true", pos)) {
+            pos += 4;
+            return Boolean.TRUE;
+        } else if (text.startsWith("false", pos)) {
+            pos += 5;
+            return Boolean.FALSE;
+        } else if (text.startsWith("null", pos)) {
+            pos += 4;
+            return null;
+        }
+        return readNumber();
+    }
+
+    private Map<String, Object> readObject() {
+        Map<String, Object> object = new LinkedHashMap<>();
+        pos++;
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return object;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw error("Expected a key");
+            }
+            String key = readString();
+            skipWhitespace();
+            expect(':');
+            object.put(key, readValue());
+            skipWhitespace();
+            if (peek() == ',') {
+                pos++;
+            } else {
+                expect('}');
+                return object;
+            }
+        }
+    }
+
+    private List<Object> readArray() {
+        List<Object> array = new ArrayList<>();
+        pos++;
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return array;
+        }
+        while (true) {
+            array.add(readValue());
+            skipWhitespace();
+            if (peek() == ',') {
+                pos++;
+            } else {
+                expect(']');
+                return array;
+            }
+        }
+    }
+
+    private String readString() {
+        StringBuilder out = new StringBuilder();
+        pos++;
+        while (pos < text.length()) {
+            char c = text.charAt(pos++);
+            if (c == '"') {
+                return out.toString();
+            }
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+            if (pos >= text.length()) {
+                break;
+            }
+            char escape = text.charAt(pos++);
+            switch (escape) {
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'u':
+                    if (pos + 4 > text.length()) {
+                        throw error("Bad unicode escape");
+                    }
+                    try {
+                        out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Bad unicode escape");
+                    }
+                    pos += 4;
+                    break;
+                default: out.append(escape);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Double readNumber() {
+        int start = pos;
+        while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+            pos++;
+        }
+        try {
+            return Double.valueOf(text.substring(start, pos));
+        } catch (NumberFormatException e) {
+            throw error("Unexpected character");
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private char peek() {
+        return pos < text.length() ? text.charAt(pos) : '\0';
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos);
+    }
+}
+
+/**
+ * HTTP/JSON front end for the banking services, built on the JDK's HttpServer.
+ * Each request runs on its own virtual thread when the runtime has them, otherwise on a
+ * fixed pool. At most maxInFlight requests are admitted at once, counting ones still
+ * waiting for a thread; the rest get 503 with Retry-After straight away instead of
+ * queueing without bound. Clients log in for a bearer token. On shutdown new requests
+ * are refused and in-flight ones get a few seconds to finish.
+ */
+class BankingServer {
+    static final int DEFAULT_PORT = 8080;
+    static final int DEFAULT_MAX_IN_FLIGHT = 2048;
+    private static final int BACKLOG = 4096;
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final int SHUTDOWN_GRACE_SECONDS = 5;
+    private static final long SESSION_IDLE_MILLIS = 30 * 60 * 1000L;
+    private static final ThreadLocal<Boolean> OVERLOADED = new ThreadLocal<>();
+
+    /**
+     * Request failure carrying the HTTP status to answer with
+     */
+    static class ApiException extends Exception {
+        final int status;
+
+        ApiException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private static class Reply {
+        final int status;
+        final Object body;
+
+        Reply(int status, Object body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static class Session {
+        final User user;
+        volatile long lastSeen = System.currentTimeMillis();
+
+        Session(User user) {
+            this.user = user;
+        }
+    }
+
+    private final UserService userService;
+    private final AccountService accountService;
+    private final TransactionService transactionService;
+    private final LoanService loanService;
+    private final InterestAccrualEngine interest;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile ReplicationNode replication;
+    private HttpServer server;
+    private ExecutorService workers;
+    private ScheduledExecutorService housekeeping;
+    private volatile boolean draining;
+
+    public BankingServer(UserService userService, AccountService accountService,
+                         TransactionService transactionService, LoanService loanService,
+                         int maxInFlight) {
+        this.userService = userService;
+        this.accountService = accountService;
+        this.transactionService = transactionService;
+        this.loanService = loanService;
+        this.interest = new InterestAccrualEngine(accountService, transactionService);
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public void start(int port) throws IOException {
+        workers = createWorkerExecutor();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        server.setExecutor(this::dispatch);
+        server.createContext("/api/", this::handle);
+        housekeeping = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bank-sessions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        housekeeping.scheduleAtFixedRate(this::expireSessions, 1, 1, TimeUnit.MINUTES);
+        housekeeping.scheduleAtFixedRate(this::accrueInterest, 1, 60, TimeUnit.MINUTES);
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * While the node is a backup, requests that would change data are refused.
+     */
+    public void setReplication(ReplicationNode replication) {
+        this.replication = replication;
     }
 
-    public void payEMI() throws InvalidAmountException {
-        if (! status.equals("ACTIVE")) {
-            throw new InvalidAmountException("Loan is not active");
-        }
-        if (paidMonths >= tenureMonths) {
-            this.status = "CLOSED";
-            throw new InvalidAmountException("Loan already closed");
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Refuses new requests, waits up to the grace period for in-flight ones and stops.
+     */
+    public void stop() {
+        draining = true;
+        server.stop(SHUTDOWN_GRACE_SECONDS);
+        workers.shutdown();
+        try {
+            workers.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        housekeeping.shutdownNow();
+    }
 
-        remainingBalance -= monthlyEMI;
-        paidMonths++;
+    private static ExecutorService createWorkerExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            int threads = Math.max(32, Runtime.getRuntime().availableProcessors() * 8);
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "bank-http-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
 
-        if (paidMonths >= tenureMonths) {
-            this.status = "CLOSED";
-            remainingBalance = 0;
+    /**
+     * Admission happens here, on the server's dispatcher thread. A request over the limit
+     * is answered with a 503 right here, without reading its body; handing it to the
+     * workers would queue it behind the admitted requests on a fixed pool, which is the
+     * wait the limit exists to avoid.
+     */
+    private void dispatch(Runnable exchangeTask) {
+        if (draining || !inFlight.tryAcquire()) {
+            OVERLOADED.set(Boolean.TRUE);
+            try {
+                exchangeTask.run();
+            } finally {
+                OVERLOADED.remove();
+            }
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    exchangeTask.run();
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw e;
         }
     }
 
-    // Getters
-    public String getLoanId() { return loanId; }
-    public String getAccountId() { return accountId; }
-    public double getMonthlyEMI() { return monthlyEMI; }
-    public double getRemainingBalance() { return remainingBalance; }
-    public String getStatus() { return status; }
-    public int getPaidMonths() { return paidMonths; }
+    private void handle(HttpExchange exchange) {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try (exchange) {
+            Reply reply;
+            if (Boolean.TRUE.equals(OVERLOADED.get())) {
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                reply = new Reply(503, error(draining ? "Server shutting down" : "Server busy"));
+            } else {
+                reply = execute(exchange);
+            }
+            send(exchange, reply);
+            succeeded = reply.status < 500;
+        } catch (IOException e) {
+            // Client went away; nothing left to answer
+        } finally {
+            BankMetrics.HTTP_REQUEST.record(start, succeeded);
+        }
+    }
 
-    @Override
-    public String toString() {
-        return String.format(
-            "Loan[ID: %s, Principal: ₹%.2f, EMI: ₹%.2f, Status: %s, " +
-            "Paid:  %d/%d months]",
-            loanId, principalAmount, monthlyEMI, status, paidMonths, tenureMonths);
+    private Reply execute(HttpExchange exchange) {
+        try {
+            return route(exchange);
+        } catch (ApiException e) {
+            return new Reply(e.status, error(e.getMessage()));
+        } catch (AccountNotFoundException e) {
+            return new Reply(404, error(e.getMessage()));
+        } catch (UserAuthenticationException e) {
+            return new Reply(401, error(e.getMessage()));
+        } catch (InsufficientFundsException e) {
+            return new Reply(409, error(e.getMessage()));
+        } catch (TransactionRejectedException e) {
+            return new Reply(422, error(e.getMessage()));
+        } catch (RateLimitExceededException e) {
+            long seconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(e.getRetryAfterMillis() + 999));
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(seconds));
+            return new Reply(429, error(e.getMessage()));
+        } catch (InvalidAmountException | IllegalArgumentException e) {
+            return new Reply(400, error(e.getMessage()));
+        } catch (RuntimeException e) {
+            // A bug, not a bad request: its message is for the operator, not the client
+            System.err.println("Request " + exchange.getRequestURI().getPath() + " failed: " + e);
+            return new Reply(500, error("Internal error"));
+        } catch (Exception e) {
+            // The services report business failures as plain exceptions worded for the client
+            int status = e.getMessage() != null && e.getMessage().endsWith("not found") ? 404 : 400;
+            return new Reply(status, error(e.getMessage()));
+        }
     }
-}
 
-// ==================== CUSTOM EXCEPTIONS ====================
+    private Reply route(HttpExchange exchange) throws Exception {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().substring("/api/".length()).split("/");
+        ReplicationNode node = replication;
+        if (node != null && node.isReadOnly() && method.equals("POST")
+                && !path[0].equals("login") && !path[0].equals("logout") && !path[0].equals("replication")) {
+            throw new ApiException(503, "Read-only backup; send changes to the primary");
+        }
+        switch (path[0]) {
+            case "health":
+                requireMethod(method, "GET");
+                return ok(Map.of("status", draining ? "draining" : "ok",
+                    "inFlight", maxInFlight - inFlight.availablePermits()));
+            case "users":
+                requireMethod(method, "POST");
+                return register(readBody(exchange));
+            case "login":
+                requireMethod(method, "POST");
+                return login(readBody(exchange));
+            case "logout":
+                requireMethod(method, "POST");
+                String token = token(exchange);
+                if (token == null) {
+                    throw new ApiException(401, "Login required");
+                }
+                sessions.remove(token);
+                return ok(Map.of("status", "logged out"));
+            case "accounts":
+                return routeAccounts(exchange, method, path, authenticate(exchange));
+            case "deposit":
+            case "withdraw":
+            case "transfer":
+                requireMethod(method, "POST");
+                User user = authenticate(exchange);
+                return post(path[0], readBody(exchange), user, idempotencyKey(exchange, user));
+            case "loans":
+                return routeLoans(exchange, method, path, authenticate(exchange));
+            case "replication":
+                return routeReplication(method, path, node);
+            case "metrics":
+                requireMethod(method, "GET");
+                return ok(BankMetrics.snapshot());
+            case "holds":
+                return routeHolds(method, path, authenticate(exchange));
+            case "interest":
+                return routeInterest(exchange, method, path, authenticate(exchange));
+            default:
+                throw new ApiException(404, "No such endpoint");
+        }
+    }
 
-class InvalidAmountException extends Exception {
-    public InvalidAmountException(String message) {
-        super(message);
+    private Reply routeAccounts(HttpExchange exchange, String method, String[] path, User user)
+            throws Exception {
+        if (path.length == 1) {
+            if (method.equals("POST")) {
+                String type = text(readBody(exchange), "accountType").toUpperCase();
+                return new Reply(201, accountJson(accountService.createAccount(user.getUserId(), type)));
+            }
+            requireMethod(method, "GET");
+            List<Object> accounts = new ArrayList<>();
+            for (BankAccount account : accountService.getUserAccounts(user.getUserId())) {
+                accounts.add(accountJson(account));
+            }
+            return ok(accounts);
+        }
+        requireMethod(method, "GET");
+        BankAccount account = requireAccount(user, path[1]);
+        if (path.length == 2) {
+            return ok(accountJson(account));
+        }
+        if (path.length == 3 && path[2].equals("transactions")) {
+            List<Object> transactions = new ArrayList<>();
+            for (Transaction transaction : transactionService.getAccountTransactions(account.getAccountId())) {
+                transactions.add(transactionJson(transaction));
+            }
+            return ok(transactions);
+        }
+        if (path.length == 3 && path[2].equals("loans")) {
+            List<Object> loans = new ArrayList<>();
+            for (Loan loan : loanService.getUserLoans(account.getAccountId())) {
+                loans.add(loanJson(loan));
+            }
+            return ok(loans);
+        }
+        throw new ApiException(404, "No such endpoint");
     }
-}
 
-class InsufficientFundsException extends Exception {
-    public InsufficientFundsException(String message) {
-        super(message);
+    private Reply routeLoans(HttpExchange exchange, String method, String[] path, User user)
+            throws Exception {
+        if (path.length == 1) {
+            requireMethod(method, "POST");
+            Map<String, Object> body = readBody(exchange);
+            BankAccount account = requireAccount(user, text(body, "accountId"));
+            Loan loan = loanService.applyForLoan(account.getAccountId(), number(body, "principal"),
+                number(body, "rate"), (int) number(body, "tenureMonths"));
+            return new Reply(201, loanJson(loan));
+        }
+        Loan loan = loanService.getLoan(path[1]);
+        requireAccount(user, loan.getAccountId());
+        if (path.length == 2) {
+            requireMethod(method, "GET");
+            return ok(loanJson(loan));
+        }
+        if (path.length == 3 && path[2].equals("pay")) {
+            requireMethod(method, "POST");
+            loanService.payEMI(loan.getLoanId());
+            return ok(loanJson(loan));
+        }
+        throw new ApiException(404, "No such endpoint");
     }
-}
 
-class AccountNotFoundException extends Exception {
-    public AccountNotFoundException(String message) {
-        super(message);
+    /**
+     * Status is open to anyone who can reach the loopback port, as is promotion: the
+     * operator promoting a backup is expected to be on the same machine.
+     */
+    private Reply routeReplication(String method, String[] path, ReplicationNode node) throws Exception {
+        if (node == null) {
+            throw new ApiException(404, "Replication is not enabled");
+        }
+        if (path.length == 1) {
+            requireMethod(method, "GET");
+            return ok(node.getStatus());
+        }
+        if (path.length == 2 && path[1].equals("promote")) {
+            requireMethod(method, "POST");
+            try {
+                node.promote();
+            } catch (IllegalStateException e) {
+                throw new ApiException(409, e.getMessage());
+            }
+            return ok(node.getStatus());
+        }
+        throw new ApiException(404, "No such endpoint");
     }
-}
 
-class UserAuthenticationException extends Exception {
-    public UserAuthenticationException(String message) {
-        super(message);
+    private Reply register(Map<String, Object> body) throws Exception {
+        User user = userService.registerUser(text(body, "username"), text(body, "password"),
+            text(body, "email"), "CUSTOMER");
+        return new Reply(201, Map.of("userId", user.getUserId(), "username", user.getUsername()));
     }
-}
 
-// ==================== SERVICES ====================
+    private Reply login(Map<String, Object> body) throws Exception {
+        User user = userService.authenticate(text(body, "username"), text(body, "password"));
+        byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(user));
+        return ok(Map.of("token", token, "userId", user.getUserId(), "role", user.getRole()));
+    }
 
-class UserService implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private List<User> users = new ArrayList<>();
-    private User currentUser = null;
+    private Reply post(String operation, Map<String, Object> body, User user, String idempotencyKey)
+            throws Exception {
+        double amount = TransactionService.postingAmount(number(body, "amount"));
+        BankAccount account;
+        Transaction transaction;
+        try {
+            switch (operation) {
+                case "deposit":
+                    account = requireAccount(user, text(body, "accountId"));
+                    transaction = transactionService.deposit(account.getAccountId(), amount, idempotencyKey);
+                    break;
+                case "withdraw":
+                    account = requireAccount(user, text(body, "accountId"));
+                    transaction = transactionService.withdraw(account.getAccountId(), amount, idempotencyKey);
+                    break;
+                default:
+                    account = requireAccount(user, text(body, "fromAccountId"));
+                    transaction = transactionService.transfer(account.getAccountId(),
+                        text(body, "toAccountId"), amount, idempotencyKey);
+            }
+        } catch (IllegalStateException e) {
+            throw new ApiException(409, e.getMessage());
+        }
+        return new Reply(transaction.getStatus().equals("PENDING") ? 202 : 200,
+            Map.of("accountId", account.getAccountId(), "balance", account.getBalance(),
+                "transaction", transactionJson(transaction)));
+    }
 
-    public void registerUser(String username, String password, 
-                            String email, String role) throws Exception {
-        if (users.stream().anyMatch(u -> u.getUsername().equals(username))) {
-            throw new Exception("Username already exists");
+    /**
+     * Status of the daily interest batch, and a manual run for a given business date
+     * (yesterday if none is given). Staff only.
+     */
+    private Reply routeInterest(HttpExchange exchange, String method, String[] path, User user)
+            throws Exception {
+        if (!user.getRole().equals("ADMIN") && !user.getRole().equals("MANAGER")) {
+            throw new ApiException(403, "Access denied");
+        }
+        if (path.length == 1) {
+            requireMethod(method, "GET");
+            LocalDate last = interest.getLastCompletedDate();
+            return ok(Map.of("lastCompletedDate", last == null ? "never" : last.toString()));
+        }
+        if (path.length == 2 && path[1].equals("run")) {
+            requireMethod(method, "POST");
+            Object date = readBody(exchange).get("businessDate");
+            try {
+                return ok(interest.run(date == null ? LocalDate.now().minusDays(1) : LocalDate.parse(date.toString())));
+            } catch (DateTimeParseException e) {
+                throw new ApiException(400, "businessDate must be YYYY-MM-DD");
+            }
         }
-        users.add(new User(username, password, email, role));
-        System.out.println("✓ User registered successfully");
+        throw new ApiException(404, "No such endpoint");
     }
 
-    public User login(String username, String password) throws UserAuthenticationException {
-        User user = users.stream()
-            .filter(u -> u.getUsername().equals(username) && u.verifyPassword(password))
-            .findFirst()
-            .orElse(null);
+    /** Hourly; does nothing once yesterday is paid, and nothing at all on a backup. */
+    private void accrueInterest() {
+        ReplicationNode node = replication;
+        if (node != null && node.isReadOnly()) {
+            return;
+        }
+        try {
+            interest.runIfDue();
+        } catch (RuntimeException e) {
+            System.err.println("Interest accrual failed: " + e.getMessage());
+        }
+    }
 
-        if (user == null) {
-            throw new UserAuthenticationException("Invalid username or password");
+    /**
+     * The review queue for postings the risk stage held: list, release or decline.
+     * Staff only.
+     */
+    private Reply routeHolds(String method, String[] path, User user) throws Exception {
+        if (!user.getRole().equals("ADMIN") && !user.getRole().equals("MANAGER")) {
+            throw new ApiException(403, "Access denied");
         }
-        this.currentUser = user;
-        System.out.println("✓ Login successful.  Welcome, " + username);
-        return user;
+        if (path.length == 1) {
+            requireMethod(method, "GET");
+            List<Object> held = new ArrayList<>();
+            for (Transaction transaction : transactionService.getHeldTransactions()) {
+                held.add(transactionJson(transaction));
+            }
+            return ok(Map.of("held", held));
+        }
+        if (path.length == 3 && path[2].equals("release")) {
+            requireMethod(method, "POST");
+            return ok(transactionJson(transactionService.releaseHeldTransaction(path[1])));
+        }
+        if (path.length == 3 && path[2].equals("decline")) {
+            requireMethod(method, "POST");
+            return ok(transactionJson(transactionService.declineHeldTransaction(path[1])));
+        }
+        throw new ApiException(404, "No such endpoint");
     }
 
-    public void logout() {
-        if (currentUser != null) {
-            System.out.println("✓ Logged out successfully");
-            currentUser = null;
+    /** Keys are scoped to the caller, so two users can't collide on (or probe) each other's. */
+    private static String idempotencyKey(HttpExchange exchange, User user) throws ApiException {
+        String key = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+        if (key == null) {
+            return null;
         }
+        key = key.trim();
+        if (key.isEmpty() || key.length() > 255) {
+            throw new ApiException(400, "Idempotency-Key must be 1-255 characters");
+        }
+        return user.getUserId() + ":" + key;
     }
 
-    public User getCurrentUser() {
-        return currentUser;
+    private User authenticate(HttpExchange exchange) throws ApiException {
+        String token = token(exchange);
+        Session session = token == null ? null : sessions.get(token);
+        long now = System.currentTimeMillis();
+        if (session == null || now - session.lastSeen > SESSION_IDLE_MILLIS) {
+            throw new ApiException(401, "Login required");
+        }
+        session.lastSeen = now;
+        return session.user;
     }
 
-    public List<User> getAllUsers() {
-        return new ArrayList<>(users);
+    private static String token(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        return header != null && header.startsWith("Bearer ") ? header.substring(7).trim() : null;
     }
-}
 
-class AccountService implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private List<BankAccount> accounts = new ArrayList<>();
+    private void expireSessions() {
+        long cutoff = System.currentTimeMillis() - SESSION_IDLE_MILLIS;
+        sessions.values().removeIf(session -> session.lastSeen < cutoff);
+    }
 
-    public BankAccount createAccount(String userId, String accountType) throws Exception {
-        if (accounts. stream().anyMatch(a -> a.getUserId().equals(userId) && 
-            a.getStatus().equals("ACTIVE"))) {
-            // Allow multiple accounts
+    /**
+     * Customers may only use their own accounts; admins and managers may use any.
+     */
+    private BankAccount requireAccount(User user, String accountId) throws Exception {
+        BankAccount account = accountService.getAccountById(accountId);
+        if (!account.getUserId().equals(user.getUserId())
+                && !user.getRole().equals("ADMIN") && !user.getRole().equals("MANAGER")) {
+            throw new ApiException(403, "Access denied");
         }
-        BankAccount account = new BankAccount(userId, accountType);
-        accounts.add(account);
-        System.out. println("✓ Account created:  " + account. getAccountNumber());
         return account;
     }
 
-    public BankAccount getAccountById(String accountId) throws AccountNotFoundException {
-        return accounts.stream()
-            .filter(a -> a.getAccountId().equals(accountId))
-            .findFirst()
-            .orElseThrow(() -> new AccountNotFoundException
-                ("Account not found: " + accountId));
+    private static void requireMethod(String method, String expected) throws ApiException {
+        if (!method.equals(expected)) {
+            throw new ApiException(405, "Use " + expected);
+        }
     }
 
-    public BankAccount getAccountByNumber(String accountNumber) 
-            throws AccountNotFoundException {
-        return accounts.stream()
-            .filter(a -> a.getAccountNumber().equals(accountNumber))
-            .findFirst()
-            .orElseThrow(() -> new AccountNotFoundException
-                ("Account not found: " + accountNumber));
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> readBody(HttpExchange exchange) throws IOException, ApiException {
+        byte[] bytes = exchange.getRequestBody().readNBytes(MAX_BODY_BYTES + 1);
+        if (bytes.length > MAX_BODY_BYTES) {
+            throw new ApiException(413, "Request body too large");
+        }
+        Object body = Json.parse(new String(bytes, StandardCharsets.UTF_8));
+        if (!(body instanceof Map)) {
+            throw new ApiException(400, "Expected a JSON object");
+        }
+        return (Map<String, Object>) body;
     }
 
-    public List<BankAccount> getUserAccounts(String userId) {
-        return accounts.stream()
-            .filter(a -> a.getUserId().equals(userId))
-            .collect(Collectors.toList());
+    private static String text(Map<String, Object> body, String key) throws ApiException {
+        Object value = body.get(key);
+        if (!(value instanceof String) || ((String) value).isEmpty()) {
+            throw new ApiException(400, "Missing field: " + key);
+        }
+        return (String) value;
     }
 
-    public void closeAccount(String accountId) throws AccountNotFoundException {
-        BankAccount account = getAccountById(accountId);
-        if (account.getBalance() > 0) {
-            System.out.println("⚠ Please withdraw remaining balance before closing");
-            return;
+    private static double number(Map<String, Object> body, String key) throws ApiException {
+        Object value = body.get(key);
+        if (!(value instanceof Number)) {
+            throw new ApiException(400, "Missing number: " + key);
         }
-        accounts.stream()
-            .filter(a -> a.getAccountId().equals(accountId))
-            .forEach(a -> {
-                // In real implementation, would update account object
-                System.out.println("✓ Account closed: " + a.getAccountNumber());
-            });
+        double number = ((Number) value).doubleValue();
+        if (!Double.isFinite(number)) {
+            throw new ApiException(400, "Out of range: " + key);
+        }
+        return number;
     }
 
-    public List<BankAccount> getAllAccounts() {
-        return new ArrayList<>(accounts);
+    private static Reply ok(Object body) {
+        return new Reply(200, body);
     }
-}
 
-class TransactionService implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private List<Transaction> transactions = new ArrayList<>();
-    private AccountService accountService;
+    private static Map<String, Object> error(String message) {
+        return Map.of("error", message == null ? "Request failed" : message);
+    }
 
-    public TransactionService(AccountService accountService) {
-        this.accountService = accountService;
+    private static void send(HttpExchange exchange, Reply reply) throws IOException {
+        byte[] bytes = Json.write(reply.body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(reply.status, bytes.length);
+        exchange.getResponseBody().write(bytes);
     }
 
-    public void deposit(String accountId, double amount) 
-            throws AccountNotFoundException, InvalidAmountException {
-        BankAccount account = accountService.getAccountById(accountId);
-        account.deposit(amount);
-        transactions.add(new Transaction(accountId, accountId, amount, "DEPOSIT"));
-        System.out.println("✓ Deposit successful.  New balance: ₹" + 
-            String.format("%.2f", account.getBalance()));
+    static Map<String, Object> accountJson(BankAccount account) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("accountId", account.getAccountId());
+        json.put("accountNumber", account.getAccountNumber());
+        json.put("accountType", account.getAccountType());
+        json.put("balance", account.getBalance());
+        json.put("status", account.getStatus());
+        return json;
     }
 
-    public void withdraw(String accountId, double amount) 
-            throws AccountNotFoundException, InvalidAmountException, 
-                   InsufficientFundsException {
-        BankAccount account = accountService.getAccountById(accountId);
-        account.withdraw(amount);
-        transactions.add(new Transaction(accountId, null, amount, "WITHDRAWAL"));
-        System.out.println("✓ Withdrawal successful. New balance: ₹" + 
-            String.format("%.2f", account.getBalance()));
+    static Map<String, Object> transactionJson(Transaction transaction) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("transactionId", transaction.getTransactionId());
+        json.put("type", transaction.getType());
+        json.put("fromAccountId", transaction.getFromAccountId());
+        json.put("toAccountId", transaction.getToAccountId());
+        json.put("amount", transaction.getAmount());
+        json.put("status", transaction.getStatus());
+        json.put("timestamp", transaction.getTimestamp().toString());
+        if (transaction.getDescription() != null) {
+            json.put("description", transaction.getDescription());
+        }
+        return json;
     }
 
-    public void transfer(String fromAccountId, String toAccountId, double amount) 
-            throws AccountNotFoundException, InvalidAmountException, 
-                   InsufficientFundsException {
-        BankAccount fromAccount = accountService.getAccountById(fromAccountId);
-        BankAccount toAccount = accountService.getAccountById(toAccountId);
-        
-        fromAccount.transfer(toAccount, amount);
-        transactions.add(new Transaction(fromAccountId, toAccountId, amount, "TRANSFER"));
-        System.out.println("✓ Transfer successful. From account balance: ₹" + 
-            String.format("%.2f", fromAccount.getBalance()));
+    static Map<String, Object> loanJson(Loan loan) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("loanId", loan.getLoanId());
+        json.put("accountId", loan.getAccountId());
+        json.put("principal", loan.getPrincipalAmount());
+        json.put("rate", loan.getInterestRate());
+        json.put("tenureMonths", loan.getTenureMonths());
+        json.put("monthlyEMI", loan.getMonthlyEMI());
+        json.put("remainingBalance", loan.getRemainingBalance());
+        json.put("paidMonths", loan.getPaidMonths());
+        json.put("status", loan.getStatus());
+        return json;
     }
+}
 
-    public void printStatement(String accountId) throws AccountNotFoundException {
-        BankAccount account = accountService.getAccountById(accountId);
-        List<Transaction> accountTransactions = transactions.stream()
-            .filter(t -> t.getFromAccountId().equals(accountId) || 
-                        t.getToAccountId().equals(accountId))
-            .collect(Collectors.toList());
+// ==================== LOAD TEST ====================
 
-        System.out.println("\n" + "=". repeat(70));
-        System.out.println("ACCOUNT STATEMENT");
-        System.out.println("=".repeat(70));
-        System.out.printf("Account:  %s | Balance: ₹%.2f\n", 
-            account.getAccountNumber(), account.getBalance());
-        System.out.println("-".repeat(70));
-        System.out.printf("%-15s %-15s %-15s %-20s\n", 
-            "Transaction ID", "Type", "Amount", "Time");
-        System.out.println("-".repeat(70));
+/**
+ * Samples ranks 0..n-1 with Zipf probabilities: rank k is drawn in proportion to
+ * 1 / (k + 1)^skew. A skew of 0 is uniform. Sampling is a binary search over a
+ * precomputed CDF, so it neither locks nor allocates.
+ */
+final class ZipfSampler {
+    private final double[] cdf;
 
-        for (Transaction t : accountTransactions) {
-            System.out.printf("%-15s %-15s ₹%-14.2f %s\n", 
-                t.getTransactionId(), t.getType(), t.getAmount(), 
-                t.getTimestamp());
+    ZipfSampler(int n, double skew) {
+        cdf = new double[n];
+        double total = 0;
+        for (int k = 0; k < n; k++) {
+            total += 1.0 / Math.pow(k + 1, skew);
+            cdf[k] = total;
+        }
+        for (int k = 0; k < n; k++) {
+            cdf[k] /= total;
         }
-        System.out.println("=".repeat(70) + "\n");
     }
 
-    public List<Transaction> getAllTransactions() {
-        return new ArrayList<>(transactions);
+    int sample(SplittableRandom random) {
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(index < 0 ? -index - 1 : index, cdf.length - 1);
     }
 }
 
-class LoanService implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private List<Loan> loans = new ArrayList<>();
+/**
+ * Drives the services directly with a synthetic workload and checks the books
+ * afterwards. Options (key=value): users, accountsPerUser, threads, seconds,
+ * mix (e.g. deposit:20,withdraw:20,transfer:55,loan:5), skew (Zipf exponent for
+ * picking accounts, 0 for uniform), initialBalance, shards, seed and risk (true to
+ * run the risk stage with its configured rules). Amounts are whole rupees so the
+ * money totals compare exactly.
+ */
+class LoadTestHarness {
+    private static final String[] OPERATIONS = {"deposit", "withdraw", "transfer", "loan"};
+    private static final int LOAN_SLOTS = 1024;
+
+    private final int users;
+    private final int accountsPerUser;
+    private final int threads;
+    private final int seconds;
+    private final int shards;
+    private final double skew;
+    private final long initialBalance;
+    private final long seed;
+    private final boolean risk;
+    private final int[] weights = new int[OPERATIONS.length];
+    private final int totalWeight;
+
+    private final LatencyHistogram[] latency = new LatencyHistogram[OPERATIONS.length];
+    private final LongAdder[] succeeded = new LongAdder[OPERATIONS.length];
+    private final LongAdder[] rejected = new LongAdder[OPERATIONS.length];
+    private final LongAdder unexpected = new LongAdder();
+    private final LongAdder held = new LongAdder();
+    private final LongAdder deposited = new LongAdder();
+    private final LongAdder withdrawn = new LongAdder();
+    private final AtomicReferenceArray<String> loans = new AtomicReferenceArray<>(LOAN_SLOTS);
+    private final AtomicLong loanCount = new AtomicLong();
+
+    private UserService userService;
     private AccountService accountService;
+    private TransactionService transactionService;
+    private LoanService loanService;
+    private String[] accountIds;
+    private ZipfSampler sampler;
 
-    public LoanService(AccountService accountService) {
-        this.accountService = accountService;
+    LoadTestHarness(Map<String, String> options) {
+        users = Integer.parseInt(options.getOrDefault("users", "1000"));
+        accountsPerUser = Integer.parseInt(options.getOrDefault("accountsPerUser", "2"));
+        threads = Integer.parseInt(options.getOrDefault("threads",
+            String.valueOf(Runtime.getRuntime().availableProcessors() * 2)));
+        seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+        shards = Integer.parseInt(options.getOrDefault("shards", String.valueOf(AccountService.DEFAULT_SHARDS)));
+        skew = Double.parseDouble(options.getOrDefault("skew", "0.99"));
+        initialBalance = Long.parseLong(options.getOrDefault("initialBalance", "1000"));
+        seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        // Off by default: hot accounts trip the velocity rules and most of the run would be holds
+        risk = Boolean.parseBoolean(options.getOrDefault("risk", "false"));
+        for (String part : options.getOrDefault("mix", "deposit:20,withdraw:20,transfer:55,loan:5").split(",")) {
+            String[] pair = part.split(":");
+            int op = Arrays.asList(OPERATIONS).indexOf(pair[0].trim());
+            if (op < 0 || pair.length != 2) {
+                throw new IllegalArgumentException("Bad mix entry: " + part);
+            }
+            weights[op] = Integer.parseInt(pair[1].trim());
+        }
+        totalWeight = Arrays.stream(weights).sum();
+        if (totalWeight <= 0) {
+            throw new IllegalArgumentException("The mix needs at least one operation");
+        }
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            latency[op] = new LatencyHistogram();
+            succeeded[op] = new LongAdder();
+            rejected[op] = new LongAdder();
+        }
     }
 
-    public Loan applyForLoan(String accountId, double principal, 
-                             double rate, int tenure) throws AccountNotFoundException {
-        BankAccount account = accountService.getAccountById(accountId);
-        Loan loan = new Loan(accountId, principal, rate, tenure);
-        loans.add(loan);
-        System.out.println("✓ Loan approved:  " + loan.getLoanId());
-        System.out.println("  Monthly EMI: ₹" + String.format("%.2f", loan.getMonthlyEMI()));
-        return loan;
+    /**
+     * Runs the scenario and prints the report. Returns false if an invariant failed.
+     */
+    boolean run() throws Exception {
+        ServiceLog.setEnabled(false);
+        setUp();
+        System.out.printf("Load test: %d accounts on %d shards, %d threads, %d s, skew %.2f%n",
+            accountIds.length, shards, threads, seconds, skew);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch ready = new CountDownLatch(1);
+        long started = System.nanoTime();
+        long deadline = started + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            SplittableRandom random = new SplittableRandom(seed + t);
+            workers.add(pool.submit(() -> {
+                ready.await();
+                while (System.nanoTime() < deadline) {
+                    runOne(random);
+                }
+                return null;
+            }));
+        }
+        ready.countDown();
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        double elapsedSeconds = (System.nanoTime() - started) / 1e9;
+        pool.shutdown();
+
+        long waitUntil = System.currentTimeMillis() + 10_000;
+        while (accountService.getPendingTransfers() > 0 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(100);
+        }
+        printReport(elapsedSeconds);
+        return checkInvariants();
     }
 
-    public void payEMI(String loanId) throws Exception {
-        Loan loan = loans.stream()
-            .filter(l -> l.getLoanId().equals(loanId))
-            .findFirst()
-            .orElseThrow(() -> new Exception("Loan not found"));
+    private void setUp() throws Exception {
+        accountService = new AccountService(shards);
+        userService = new UserService();
+        transactionService = new TransactionService(accountService);
+        transactionService.setRateLimiter(null);
+        if (!risk) {
+            transactionService.setRiskEngine(null);
+        }
+        loanService = new LoanService(accountService);
+        List<String> ids = new ArrayList<>();
+        for (int u = 0; u < users; u++) {
+            User user = userService.registerUser("load" + u, "secret", "load" + u + "@example.com", "CUSTOMER");
+            for (int a = 0; a < accountsPerUser; a++) {
+                BankAccount account = accountService.createAccount(user.getUserId(), "SAVINGS");
+                if (initialBalance > 0) {
+                    transactionService.deposit(account.getAccountId(), initialBalance);
+                }
+                ids.add(account.getAccountId());
+            }
+        }
+        // Hot ranks land on random accounts, not on the oldest ones
+        Collections.shuffle(ids, new Random(seed));
+        accountIds = ids.toArray(new String[0]);
+        sampler = new ZipfSampler(accountIds.length, skew);
+    }
 
-        loan.payEMI();
-        System.out.println("✓ EMI paid successfully");
-        System.out.println("  Remaining balance: ₹" + 
-            String.format("%.2f", loan.getRemainingBalance()));
+    private void runOne(SplittableRandom random) {
+        int op = pickOperation(random);
+        String accountId = accountIds[sampler.sample(random)];
+        long amount = 1 + random.nextInt(100);
+        long start = System.nanoTime();
+        try {
+            switch (op) {
+                case 0:
+                    if (posted(transactionService.deposit(accountId, amount))) {
+                        deposited.add(amount);
+                    }
+                    break;
+                case 1:
+                    if (posted(transactionService.withdraw(accountId, amount))) {
+                        withdrawn.add(amount);
+                    }
+                    break;
+                case 2:
+                    String target = accountIds[sampler.sample(random)];
+                    if (target.equals(accountId)) {
+                        target = accountIds[random.nextInt(accountIds.length)];
+                    }
+                    posted(transactionService.transfer(accountId, target, amount));
+                    break;
+                default:
+                    runLoanOperation(random, accountId);
+            }
+            succeeded[op].increment();
+        } catch (InsufficientFundsException | InvalidAmountException | TransactionRejectedException e) {
+            rejected[op].increment();
+        } catch (Exception e) {
+            rejected[op].increment();
+            unexpected.increment();
+        } finally {
+            latency[op].record(System.nanoTime() - start);
+        }
     }
 
-    public void getLoanStatus(String loanId) throws Exception {
-        Loan loan = loans.stream()
-            .filter(l -> l.getLoanId().equals(loanId))
-            .findFirst()
-            .orElseThrow(() -> new Exception("Loan not found"));
+    /**
+     * Half the loan operations apply for a loan, the other half pay an EMI on a recent one.
+     */
+    private void runLoanOperation(SplittableRandom random, String accountId) throws Exception {
+        long known = loanCount.get();
+        if (known == 0 || random.nextBoolean()) {
+            Loan loan = loanService.applyForLoan(accountId, 1000 + random.nextInt(99_000),
+                8 + random.nextInt(8), 12 + random.nextInt(49));
+            loans.set((int) (loanCount.getAndIncrement() % LOAN_SLOTS), loan.getLoanId());
+        } else {
+            String loanId = loans.get(random.nextInt((int) Math.min(known, LOAN_SLOTS)));
+            if (loanId != null) {
+                loanService.payEMI(loanId);
+            }
+        }
+    }
 
-        System.out.println("\n" + "=".repeat(50));
-        System.out.println("LOAN STATUS");
-        System.out.println("=".repeat(50));
-        System.out.println(loan);
-        System.out.println("=".repeat(50) + "\n");
+    /** Held postings leave the balances alone and are counted apart. */
+    private boolean posted(Transaction transaction) {
+        if (transaction.getStatus().equals("PENDING")) {
+            held.increment();
+            return false;
+        }
+        return true;
     }
 
-    public List<Loan> getUserLoans(String accountId) {
-        return loans. stream()
-            .filter(l -> l.getAccountId().equals(accountId))
-            .collect(Collectors.toList());
+    private int pickOperation(SplittableRandom random) {
+        int roll = random.nextInt(totalWeight);
+        for (int op = 0; op < weights.length; op++) {
+            roll -= weights[op];
+            if (roll < 0) {
+                return op;
+            }
+        }
+        return weights.length - 1;
+    }
+
+    private void printReport(double elapsedSeconds) {
+        long totalOps = 0;
+        System.out.println("\n" + "=".repeat(86));
+        System.out.println("LOAD TEST RESULTS");
+        System.out.println("=".repeat(86));
+        System.out.printf("%-10s %10s %10s %12s %10s %10s %10s %10s%n",
+            "Operation", "OK", "Rejected", "Ops/s", "p50 µs", "p99 µs", "p99.9 µs", "max µs");
+        System.out.println("-".repeat(86));
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            long count = latency[op].getCount();
+            if (count == 0) {
+                continue;
+            }
+            totalOps += count;
+            long[] p = latency[op].percentiles(50, 99, 99.9);
+            System.out.printf("%-10s %10d %10d %12.0f %10.1f %10.1f %10.1f %10.1f%n",
+                OPERATIONS[op], succeeded[op].sum(), rejected[op].sum(), count / elapsedSeconds,
+                p[0] / 1000.0, p[1] / 1000.0, p[2] / 1000.0, latency[op].getMax() / 1000.0);
+        }
+        System.out.println("-".repeat(86));
+        System.out.printf("Total: %d operations in %.1f s = %.0f ops/s%n", totalOps, elapsedSeconds,
+            totalOps / elapsedSeconds);
+        if (risk) {
+            System.out.printf("Held for review: %d (included in OK)%n", held.sum());
+        }
+    }
+
+    private boolean checkInvariants() {
+        double total = 0;
+        int negative = 0;
+        for (BankAccount account : accountService.getAllAccounts()) {
+            double balance = account.getBalance();
+            total += balance;
+            if (balance < 0) {
+                negative++;
+            }
+        }
+        double expected = initialBalance * (double) accountIds.length + deposited.sum() - withdrawn.sum();
+        long expectedTransactions = (initialBalance > 0 ? accountIds.length : 0)
+            + succeeded[0].sum() + succeeded[1].sum() + succeeded[2].sum();
+        long transactions = transactionService.getAllTransactions().size();
+        int pending = accountService.getPendingTransfers();
+
+        boolean ok = true;
+        ok &= check("Money conserved", total == expected,
+            String.format("₹%.2f held, ₹%.2f expected", total, expected));
+        ok &= check("No negative balances", negative == 0, negative + " negative");
+        ok &= check("Every success recorded", transactions == expectedTransactions,
+            transactions + " transactions, " + expectedTransactions + " expected");
+        ok &= check("No pending transfers", pending == 0, pending + " pending");
+        ok &= check("No unexpected errors", unexpected.sum() == 0, unexpected.sum() + " unexpected");
+        System.out.println("=".repeat(86) + "\n");
+        return ok;
+    }
+
+    private static boolean check(String name, boolean passed, String detail) {
+        System.out.printf("%s %-24s %s%n", passed ? "✓" : "❌", name, detail);
+        return passed;
     }
 }
 
@@ -496,6 +4871,7 @@ public class BankingInformationSystem {
         this.userService = new UserService();
         this.accountService = new AccountService();
         this.transactionService = new TransactionService(accountService);
+        this.transactionService.setUserService(userService);
         this.loanService = new LoanService(accountService);
         this.scanner = new Scanner(System.in);
     }
@@ -554,7 +4930,7 @@ public class BankingInformationSystem {
 
         try {
             userService.login(username, password);
-        } catch (UserAuthenticationException e) {
+        } catch (UserAuthenticationException | RateLimitExceededException e) {
             System.out. println("❌ " + e.getMessage());
         }
     }
@@ -850,9 +5226,81 @@ public class BankingInformationSystem {
         }
     }
 
+    /**
+     * Serves the same services over HTTP on localhost until the process is stopped.
+     * With a primary address the process starts as a read-only backup of that primary;
+     * with a replication port it ships its own log to backups (after promotion, for a backup).
+     */
+    public void startServer(int port, int replicationPort, String primary) {
+        ServiceLog.setEnabled(false);
+        ReplicationNode node = new ReplicationNode(userService, accountService,
+            transactionService, loanService, replicationPort);
+        BankingServer server = new BankingServer(userService, accountService,
+            transactionService, loanService, BankingServer.DEFAULT_MAX_IN_FLIGHT);
+        server.setReplication(node);
+        try {
+            if (primary == null) {
+                node.startPrimary();
+            } else {
+                int colon = primary.lastIndexOf(':');
+                node.startBackup(colon < 0 ? "127.0.0.1" : primary.substring(0, colon),
+                    Integer.parseInt(primary.substring(colon + 1)));
+            }
+            server.start(port);
+        } catch (IOException e) {
+            System.out.println("❌ Could not start server: " + e.getMessage());
+            node.stop();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            node.stop();
+        }, "bank-http-shutdown"));
+        System.out.println("✓ BIS " + (primary == null ? "primary" : "backup of " + primary)
+            + " listening on http://127.0.0.1:" + server.getPort() + "/api/"
+            + (replicationPort > 0 ? ", replication port " + replicationPort : ""));
+    }
+
+    /**
+     * Reads key=value options; a bare number is taken as the port.
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals > 0) {
+                options.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+            } else {
+                options.put("port", args[i]);
+            }
+        }
+        return options;
+    }
+
     // ==================== MAIN METHOD ====================
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--loadtest")) {
+            try {
+                boolean passed = new LoadTestHarness(parseOptions(args)).run();
+                System.exit(passed ? 0 : 1);
+            } catch (Exception e) {
+                System.out.println("❌ Load test failed: " + e);
+                System.exit(2);
+            }
+        }
         BankingInformationSystem bis = new BankingInformationSystem();
+        if (args.length > 0 && (args[0].equals("--server") || args[0].equals("--backup"))) {
+            Map<String, String> options = parseOptions(args);
+            String primary = options.get("primary");
+            if (args[0].equals("--backup") && primary == null) {
+                System.out.println("❌ --backup needs primary=host:port");
+                return;
+            }
+            bis.startServer(Integer.parseInt(options.getOrDefault("port", String.valueOf(BankingServer.DEFAULT_PORT))),
+                Integer.parseInt(options.getOrDefault("replication", "0")),
+                args[0].equals("--backup") ? primary : null);
+            return;
+        }
         bis.start();
     }
 }
\ No newline at end of file
@@ -1,10 +1,61 @@
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.table.AbstractTableModel;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
 
 /**
  * Music Player Application
@@ -15,17 +66,39 @@ import java.util.*;
  * @version 1.0
  */
 public class MusicPlayerApp extends JFrame {
+    private static final int PROGRESS_STEPS = 1000;
+    private static final int SEARCH_RESULT_LIMIT = 50;
+    private static final long LOG_FILE_MAX_BYTES = 1024 * 1024;
+    private static final int LOG_FILE_COUNT = 3;
+
     private MusicPlayer musicPlayer;
     private PlaylistManager playlistManager;
     private DatabaseManager databaseManager;
     private JButton playButton, pauseButton, stopButton, previousButton, nextButton;
-    private JButton addSongButton, createPlaylistButton, deletePlaylistButton;
+    private JButton addSongButton, createPlaylistButton, deletePlaylistButton, findDuplicatesButton;
     private JLabel currentSongLabel, timeLabel, statusLabel;
-    private JSlider progressSlider, volumeSlider;
+    private WaveformSlider progressSlider;
+    private JSlider volumeSlider;
     private JComboBox<String> playlistComboBox;
     private JTable songTable;
-    private DefaultTableModel tableModel;
+    private SongTableModel tableModel;
     private JTextArea logArea;
+    private final ActivityLog activityLog = new ActivityLog(ActivityLog.DEFAULT_CAPACITY, createLogSink(), this::refreshLogArea);
+    private long logLinesShown;
+    private JTextField searchField;
+    private JPopupMenu searchPopup;
+    private JList<SongSearchIndex.SearchResult> searchResultList;
+    private final SongSearchIndex searchIndex = new SongSearchIndex();
+    private final PlayQueue playQueue = new PlayQueue();
+    private MetadataIndexer metadataIndexer;
+    private WaveformService waveformService;
+    private DuplicateDetector duplicateDetector;
+    private LibrarySyncService librarySync;
+    private String waveformFilePath;
+    private Song queuedNextSong;
+    private long queuedNextToken;
+    private JDialog soundDialog;
+    private boolean seekingWithSlider;
 
     public MusicPlayerApp() {
         setTitle("Music Player Application");
@@ -39,10 +112,32 @@ public class MusicPlayerApp extends JFrame {
         databaseManager.initializeDatabase();
         
         musicPlayer = new MusicPlayer();
+        musicPlayer.setPlaybackListener(new PlaybackListener() {
+            @Override
+            public void trackStarted(String filePath, long token) {
+                SwingUtilities.invokeLater(() -> onTrackStarted(token));
+            }
+
+            @Override
+            public void positionChanged(long positionMicros, long durationMicros) {
+                SwingUtilities.invokeLater(() -> onPositionChanged(positionMicros, durationMicros));
+            }
+
+            @Override
+            public void playbackFinished() {
+                SwingUtilities.invokeLater(() -> onPlaybackFinished());
+            }
+        });
         playlistManager = new PlaylistManager(databaseManager);
+        metadataIndexer = new MetadataIndexer(playlistManager, this::onMetadataIndexed);
+        waveformService = new WaveformService(playlistManager);
+        duplicateDetector = new DuplicateDetector(playlistManager);
+        librarySync = new LibrarySyncService(playlistManager, this::onLibrarySynced);
 
         // Create UI
         initializeUI();
+        buildSearchIndex();
+        startLibrarySync();
         
         // Set window close listener
         addWindowListener(new WindowAdapter() {
@@ -90,11 +185,14 @@ public class MusicPlayerApp extends JFrame {
         infoPanel.add(timeLabel);
         infoPanel.add(statusLabel);
 
-        // Progress slider
-        progressSlider = new JSlider(0, 100, 0);
+        // Progress slider - seeks once the user releases the knob
+        progressSlider = new WaveformSlider(0, PROGRESS_STEPS, 0);
         progressSlider.addChangeListener(e -> {
-            if (musicPlayer.isPlaying() && progressSlider.getModel().getValueIsAdjusting()) {
-                musicPlayer.setProgress(progressSlider.getValue());
+            if (progressSlider.getModel().getValueIsAdjusting()) {
+                seekingWithSlider = true;
+            } else if (seekingWithSlider) {
+                seekingWithSlider = false;
+                musicPlayer.seekTo(progressSlider.getValue() / (double) PROGRESS_STEPS);
             }
         });
 
@@ -128,7 +226,7 @@ public class MusicPlayerApp extends JFrame {
     }
 
     private JPanel createPlaylistPanel() {
-        JPanel panel = new JPanel(new GridLayout(5, 1, 5, 5));
+        JPanel panel = new JPanel(new GridLayout(7, 1, 5, 5));
         panel.setBorder(BorderFactory.createTitledBorder("Playlists"));
         panel.setPreferredSize(new Dimension(200, 0));
 
@@ -151,6 +249,14 @@ public class MusicPlayerApp extends JFrame {
         addSongButton.addActionListener(e -> addSongToPlaylist());
         panel.add(addSongButton);
 
+        JButton watchFolderButton = new JButton("Watch Folder");
+        watchFolderButton.addActionListener(e -> watchFolder());
+        panel.add(watchFolderButton);
+
+        findDuplicatesButton = new JButton("Find Duplicates");
+        findDuplicatesButton.addActionListener(e -> findDuplicates());
+        panel.add(findDuplicatesButton);
+
         // Load playlists
         refreshPlaylistComboBox();
 
@@ -162,7 +268,7 @@ public class MusicPlayerApp extends JFrame {
         panel.setBorder(BorderFactory.createTitledBorder("Playlist Songs"));
 
         // Table
-        tableModel = new DefaultTableModel(new String[]{"Song Name", "Duration", "Artist"}, 0);
+        tableModel = new SongTableModel(playlistManager);
         songTable = new JTable(tableModel);
         songTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         songTable.addMouseListener(new MouseAdapter() {
@@ -173,14 +279,21 @@ public class MusicPlayerApp extends JFrame {
                 }
             }
         });
+        JPopupMenu songMenu = new JPopupMenu();
+        JMenuItem playNextItem = new JMenuItem("Play Next");
+        playNextItem.addActionListener(e -> enqueueSelectedSong());
+        songMenu.add(playNextItem);
+        songTable.setComponentPopupMenu(songMenu);
 
         JScrollPane scrollPane = new JScrollPane(songTable);
         panel.add(scrollPane, BorderLayout.CENTER);
+        panel.add(createSearchPanel(), BorderLayout.NORTH);
 
         // Log area
         logArea = new JTextArea(3, 20);
         logArea.setEditable(false);
         logArea.setLineWrap(true);
+        refreshLogArea();
         JScrollPane logScrollPane = new JScrollPane(logArea);
         logScrollPane.setBorder(BorderFactory.createTitledBorder("Activity Log"));
         panel.add(logScrollPane, BorderLayout.SOUTH);
@@ -188,6 +301,53 @@ public class MusicPlayerApp extends JFrame {
         return panel;
     }
 
+    private JPanel createSearchPanel() {
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        panel.add(new JLabel("Search Library:"), BorderLayout.WEST);
+        searchField = new JTextField();
+        panel.add(searchField, BorderLayout.CENTER);
+
+        searchResultList = new JList<>(new DefaultListModel<>());
+        searchResultList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        searchResultList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    playSearchResult(searchResultList.getSelectedValue());
+                }
+            }
+        });
+        searchPopup = new JPopupMenu();
+        searchPopup.setFocusable(false);
+        searchPopup.add(new JScrollPane(searchResultList));
+
+        searchField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override
+            public void insertUpdate(javax.swing.event.DocumentEvent e) { updateSearchResults(); }
+            @Override
+            public void removeUpdate(javax.swing.event.DocumentEvent e) { updateSearchResults(); }
+            @Override
+            public void changedUpdate(javax.swing.event.DocumentEvent e) { updateSearchResults(); }
+        });
+        searchField.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                int size = searchResultList.getModel().getSize();
+                int selected = searchResultList.getSelectedIndex();
+                if (e.getKeyCode() == KeyEvent.VK_DOWN && size > 0) {
+                    searchResultList.setSelectedIndex(Math.min(size - 1, selected + 1));
+                } else if (e.getKeyCode() == KeyEvent.VK_UP && size > 0) {
+                    searchResultList.setSelectedIndex(Math.max(0, selected - 1));
+                } else if (e.getKeyCode() == KeyEvent.VK_ENTER && size > 0) {
+                    playSearchResult(searchResultList.getModel().getElementAt(Math.max(0, selected)));
+                } else if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
+                    searchPopup.setVisible(false);
+                }
+            }
+        });
+        return panel;
+    }
+
     private JPanel createBottomPanel() {
         JPanel panel = new JPanel(new FlowLayout(FlowLayout.CENTER, 10, 10));
         panel.setBorder(BorderFactory.createTitledBorder("Playback Controls"));
@@ -212,9 +372,183 @@ public class MusicPlayerApp extends JFrame {
         nextButton.addActionListener(e -> nextSong());
         panel.add(nextButton);
 
+        JToggleButton shuffleButton = new JToggleButton("🔀 Shuffle");
+        shuffleButton.addActionListener(e -> {
+            playQueue.setShuffle(shuffleButton.isSelected());
+            queueNextSong();
+            log("Shuffle " + (shuffleButton.isSelected() ? "on." : "off."));
+        });
+        panel.add(shuffleButton);
+
+        JComboBox<PlayQueue.RepeatMode> repeatComboBox = new JComboBox<>(PlayQueue.RepeatMode.values());
+        repeatComboBox.addActionListener(e -> {
+            playQueue.setRepeatMode((PlayQueue.RepeatMode) repeatComboBox.getSelectedItem());
+            queueNextSong();
+        });
+        panel.add(new JLabel("Repeat:"));
+        panel.add(repeatComboBox);
+
+        JButton soundButton = new JButton("🎚 Sound");
+        soundButton.addActionListener(e -> showSoundDialog());
+        panel.add(soundButton);
+
         return panel;
     }
 
+    private void showSoundDialog() {
+        if (soundDialog != null) {
+            soundDialog.setVisible(true);
+            return;
+        }
+        BiquadEqualizer equalizer = musicPlayer.getEqualizer();
+        JPanel bandsPanel = new JPanel(new GridLayout(1, equalizer.getBandCount(), 5, 5));
+        bandsPanel.setBorder(BorderFactory.createTitledBorder("Equalizer (dB)"));
+        JSlider[] bandSliders = new JSlider[equalizer.getBandCount()];
+        for (int band = 0; band < bandSliders.length; band++) {
+            int index = band;
+            JSlider slider = new JSlider(JSlider.VERTICAL, -12, 12, Math.round(equalizer.getBandGain(band)));
+            slider.setMajorTickSpacing(6);
+            slider.setPaintTicks(true);
+            slider.setPaintLabels(true);
+            slider.addChangeListener(e -> equalizer.setBandGain(index, slider.getValue()));
+            float frequency = equalizer.getFrequency(band);
+            String label = frequency >= 1000 ? String.format("%.1fk", frequency / 1000) : String.format("%.0f", frequency);
+            JPanel bandPanel = new JPanel(new BorderLayout());
+            bandPanel.add(slider, BorderLayout.CENTER);
+            bandPanel.add(new JLabel(label + " Hz", SwingConstants.CENTER), BorderLayout.SOUTH);
+            bandsPanel.add(bandPanel);
+            bandSliders[band] = slider;
+        }
+
+        JPanel optionsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 5));
+        JButton resetButton = new JButton("Flat");
+        resetButton.addActionListener(e -> {
+            for (JSlider slider : bandSliders) {
+                slider.setValue(0);
+            }
+        });
+        optionsPanel.add(resetButton);
+        JComboBox<Integer> crossfadeComboBox = new JComboBox<>(new Integer[] {0, 2, 4, 8});
+        crossfadeComboBox.setRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, 
+                                                          boolean isSelected, boolean cellHasFocus) {
+                Object text = Integer.valueOf(0).equals(value) ? "Off" : value + " s";
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        crossfadeComboBox.addActionListener(e -> {
+            int seconds = (Integer) crossfadeComboBox.getSelectedItem();
+            musicPlayer.setCrossfadeSeconds(seconds);
+            log(seconds == 0 ? "Crossfade off." : "Crossfade set to " + seconds + " s.");
+        });
+        optionsPanel.add(new JLabel("Crossfade:"));
+        optionsPanel.add(crossfadeComboBox);
+        JLabel loadLabel = new JLabel();
+        optionsPanel.add(loadLabel);
+
+        soundDialog = new JDialog(this, "Sound", false);
+        soundDialog.setLayout(new BorderLayout(5, 5));
+        soundDialog.add(bandsPanel, BorderLayout.CENTER);
+        soundDialog.add(optionsPanel, BorderLayout.SOUTH);
+        soundDialog.pack();
+        soundDialog.setLocationRelativeTo(this);
+
+        // DSP cost is only polled while the dialog is open
+        javax.swing.Timer loadTimer = new javax.swing.Timer(500, e -> 
+            loadLabel.setText(String.format("DSP load: %.2f%%", musicPlayer.getProcessingLoad() * 100)));
+        soundDialog.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentShown(ComponentEvent e) {
+                loadTimer.start();
+            }
+
+            @Override
+            public void componentHidden(ComponentEvent e) {
+                loadTimer.stop();
+            }
+        });
+        soundDialog.setVisible(true);
+    }
+
+    // Loads every song into the search index off the UI thread
+    private void buildSearchIndex() {
+        Thread indexer = new Thread(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                int[] count = new int[1];
+                playlistManager.forEachSong((playlistName, song) -> {
+                    searchIndex.add(playlistName, song);
+                    count[0]++;
+                });
+                long elapsed = System.currentTimeMillis() - start;
+                SwingUtilities.invokeLater(() -> 
+                    log("Indexed " + count[0] + " songs for search in " + elapsed + " ms."));
+                // Started afterwards so that refreshed songs replace the ones indexed above
+                metadataIndexer.scanLibrary();
+            } catch (SQLException ex) {
+                SwingUtilities.invokeLater(() -> log("Error building search index: " + ex.getMessage()));
+            }
+        }, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    // Called on the indexer thread once a batch of files has been probed and stored
+    private void onMetadataIndexed(java.util.List<AudioMetadata> batch) {
+        java.util.List<String> filePaths = new ArrayList<>();
+        for (AudioMetadata metadata : batch) {
+            filePaths.add(metadata.filePath);
+        }
+        try {
+            playlistManager.forEachSongWithFile(filePaths, searchIndex::add);
+        } catch (SQLException ex) {
+            System.err.println("Error refreshing search index: " + ex.getMessage());
+        }
+        SwingUtilities.invokeLater(() -> {
+            tableModel.refresh();
+            log("Updated metadata for " + batch.size() + (batch.size() == 1 ? " file." : " files."));
+        });
+    }
+
+    private void updateSearchResults() {
+        java.util.List<SongSearchIndex.SearchResult> results = 
+            searchIndex.search(searchField.getText(), SEARCH_RESULT_LIMIT);
+        DefaultListModel<SongSearchIndex.SearchResult> model = 
+            (DefaultListModel<SongSearchIndex.SearchResult>) searchResultList.getModel();
+        model.clear();
+        model.addAll(results);
+        if (results.isEmpty()) {
+            searchPopup.setVisible(false);
+            return;
+        }
+        searchResultList.setVisibleRowCount(Math.min(10, results.size()));
+        searchPopup.setPopupSize(searchField.getWidth(), searchPopup.getPreferredSize().height);
+        searchPopup.show(searchField, 0, searchField.getHeight());
+        searchField.requestFocusInWindow();
+    }
+
+    // Opens the song's playlist, selects its row and plays it
+    private void playSearchResult(SongSearchIndex.SearchResult result) {
+        if (result == null) {
+            return;
+        }
+        searchPopup.setVisible(false);
+        try {
+            playlistComboBox.setSelectedItem(result.playlistName);
+            int row = playlistManager.getSongRow(result.playlistName, result.songId);
+            if (row < 0 || row >= tableModel.getRowCount()) {
+                log("Song '" + result.song.getName() + "' is no longer in the playlist.");
+                return;
+            }
+            songTable.setRowSelectionInterval(row, row);
+            songTable.scrollRectToVisible(songTable.getCellRect(row, 0, true));
+            playSong();
+        } catch (SQLException ex) {
+            log("Error opening search result: " + ex.getMessage());
+        }
+    }
+
     private void createNewPlaylist() {
         String playlistName = JOptionPane.showInputDialog(this, "Enter playlist name:");
         if (playlistName != null && !playlistName.isEmpty()) {
@@ -241,8 +575,12 @@ public class MusicPlayerApp extends JFrame {
             if (confirm == JOptionPane.YES_OPTION) {
                 try {
                     playlistManager.deletePlaylist(playlistName);
+                    searchIndex.removePlaylist(playlistName);
+                    if (playQueue.isLoaded(playlistName)) {
+                        playQueue.clear();
+                    }
                     refreshPlaylistComboBox();
-                    tableModel.setRowCount(0);
+                    tableModel.clear();
                     log("Playlist '" + playlistName + "' deleted successfully.");
                     JOptionPane.showMessageDialog(this, "Playlist deleted successfully!");
                 } catch (Exception ex) {
@@ -276,8 +614,14 @@ public class MusicPlayerApp extends JFrame {
                 String songName = file.getName();
                 String filePath = file.getAbsolutePath();
                 
-                playlistManager.addSongToPlaylist(playlistName, songName, filePath);
+                int songId = playlistManager.addSongToPlaylist(playlistName, songName, filePath);
+                Song song = new Song(songId, songName, filePath, 0, "Unknown Artist");
+                searchIndex.add(playlistName, song);
+                if (playQueue.isLoaded(playlistName)) {
+                    playQueue.append(song);
+                }
                 loadPlaylistSongs();
+                metadataIndexer.index(filePath);
                 log("Song '" + songName + "' added to playlist.");
                 JOptionPane.showMessageDialog(this, "Song added to playlist!");
             } catch (Exception ex) {
@@ -288,42 +632,190 @@ public class MusicPlayerApp extends JFrame {
         }
     }
 
+    private void startLibrarySync() {
+        try {
+            librarySync.start();
+        } catch (Exception ex) {
+            log("Library sync unavailable: " + ex.getMessage());
+        }
+    }
+
+    private void watchFolder() {
+        Object selected = playlistComboBox.getSelectedItem();
+        if (selected == null) {
+            JOptionPane.showMessageDialog(this, "Please select a playlist first.", 
+                "No Playlist", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        JFileChooser folderChooser = new JFileChooser();
+        folderChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (folderChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            File folder = folderChooser.getSelectedFile();
+            try {
+                librarySync.watchFolder(folder.toPath(), selected.toString());
+                log("Watching '" + folder + "' for playlist '" + selected + "'.");
+            } catch (Exception ex) {
+                log("Error watching folder: " + ex.getMessage());
+                JOptionPane.showMessageDialog(this, "Error watching folder: " + ex.getMessage(), 
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    // Called on the sync thread after each batch of file changes has been applied
+    private void onLibrarySynced(LibrarySyncService.SyncResult result) {
+        for (int songId : result.removedSongIds) {
+            searchIndex.remove(songId);
+        }
+        for (SongSearchIndex.SearchResult added : result.added) {
+            searchIndex.add(added.playlistName, added.song);
+            metadataIndexer.index(added.song.getFilePath());
+        }
+        try {
+            playlistManager.forEachSongWithFile(result.movedFiles.values(), searchIndex::add);
+        } catch (SQLException ex) {
+            System.err.println("Error refreshing search index: " + ex.getMessage());
+        }
+        for (String filePath : result.movedFiles.values()) {
+            metadataIndexer.index(filePath);
+        }
+        for (String filePath : result.modifiedFiles) {
+            metadataIndexer.index(filePath);
+        }
+        SwingUtilities.invokeLater(() -> {
+            reloadQueue();
+            loadPlaylistSongs();
+            log("Library sync: " + result.added.size() + " added, " + result.movedFiles.size() + " moved, " 
+                + result.removedSongIds.size() + " removed, " + result.modifiedFiles.size() + " changed.");
+        });
+    }
+
+    // Re-reads the loaded playlist after songs were added, moved or removed behind its back;
+    // the queue keeps its shuffle order and history
+    private void reloadQueue() {
+        String playlistName = playQueue.getPlaylistName();
+        if (playlistName == null) {
+            return;
+        }
+        try {
+            playQueue.update(playlistManager.getPlaylistSongs(playlistName));
+            queueNextSong();
+        } catch (SQLException ex) {
+            log("Error reloading play queue: " + ex.getMessage());
+        }
+    }
+
+    private void findDuplicates() {
+        findDuplicatesButton.setEnabled(false);
+        log("Looking for duplicate songs...");
+        Thread scanner = new Thread(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                java.util.List<DuplicateGroup> groups = duplicateDetector.findDuplicates((done, total) -> 
+                    SwingUtilities.invokeLater(() -> log("Fingerprinted " + done + " of " + total + " files.")));
+                long elapsed = System.currentTimeMillis() - start;
+                SwingUtilities.invokeLater(() -> {
+                    findDuplicatesButton.setEnabled(true);
+                    log("Found " + groups.size() + " duplicate groups in " + elapsed + " ms.");
+                    showDuplicates(groups);
+                });
+            } catch (Exception ex) {
+                SwingUtilities.invokeLater(() -> {
+                    findDuplicatesButton.setEnabled(true);
+                    log("Error finding duplicates: " + ex.getMessage());
+                });
+            }
+        }, "duplicate-finder");
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    private void showDuplicates(java.util.List<DuplicateGroup> groups) {
+        if (groups.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No duplicate songs found.");
+            return;
+        }
+        StringBuilder report = new StringBuilder();
+        for (DuplicateGroup group : groups) {
+            report.append(group.exact ? "Identical files" : "Same recording").append(":\n");
+            for (SongSearchIndex.SearchResult entry : group.entries) {
+                report.append(entry.song.getFilePath().equals(group.keepPath) ? "  * " : "    ")
+                      .append(entry.song.getDisplayName()).append("  [").append(entry.playlistName)
+                      .append("]  ").append(entry.song.getFilePath()).append("\n");
+            }
+            report.append("\n");
+        }
+        JTextArea reportArea = new JTextArea(report.toString(), 20, 80);
+        reportArea.setEditable(false);
+        Object[] options = {"Merge", "Close"};
+        int choice = JOptionPane.showOptionDialog(this, new Object[] {
+                "Entries marked * are kept. Merging points the others at the kept file\n" +
+                "and removes repeats within a playlist; no files are deleted.",
+                new JScrollPane(reportArea)}, 
+            groups.size() + " Duplicate Groups", JOptionPane.DEFAULT_OPTION, 
+            JOptionPane.INFORMATION_MESSAGE, null, options, options[1]);
+        if (choice == 0) {
+            mergeDuplicates(groups);
+        }
+    }
+
+    private void mergeDuplicates(java.util.List<DuplicateGroup> groups) {
+        try {
+            java.util.List<Integer> removed = duplicateDetector.merge(groups);
+            java.util.List<String> keptPaths = new ArrayList<>();
+            for (int songId : removed) {
+                searchIndex.remove(songId);
+            }
+            for (DuplicateGroup group : groups) {
+                keptPaths.add(group.keepPath);
+            }
+            playlistManager.forEachSongWithFile(keptPaths, searchIndex::add);
+            for (String keptPath : keptPaths) {
+                metadataIndexer.index(keptPath);
+            }
+            reloadQueue();
+            loadPlaylistSongs();
+            log("Merged " + groups.size() + " duplicate groups, removed " + removed.size() + " repeated songs.");
+        } catch (SQLException ex) {
+            log("Error merging duplicates: " + ex.getMessage());
+            JOptionPane.showMessageDialog(this, "Error merging duplicates: " + ex.getMessage(), 
+                "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     private void loadPlaylistSongs() {
+        if (tableModel == null) {
+            return; // Combo box is populated before the song table is created
+        }
         Object selected = playlistComboBox.getSelectedItem();
-        tableModel.setRowCount(0);
         
         if (selected != null) {
             try {
-                String playlistName = selected.toString();
-                java.util.List<Song> songs = playlistManager.getPlaylistSongs(playlistName);
-                
-                for (Song song : songs) {
-                    tableModel.addRow(new Object[]{
-                        song.getName(),
-                        formatDuration(song.getDuration()),
-                        song.getArtist()
-                    });
-                }
-                log("Loaded " + songs.size() + " songs from playlist.");
+                tableModel.setPlaylist(selected.toString());
+                log("Loaded " + tableModel.getRowCount() + " songs from playlist.");
             } catch (Exception ex) {
+                tableModel.clear();
                 log("Error loading playlist: " + ex.getMessage());
             }
+        } else {
+            tableModel.clear();
         }
     }
 
     private void playSong() {
         int selectedRow = songTable.getSelectedRow();
-        if (selectedRow >= 0) {
+        if (selectedRow >= 0 && selectedRow == getPlayingRow() && musicPlayer.isPaused()) {
+            musicPlayer.resumeSong();
+            statusLabel.setText("Status: Playing");
+            log("Song resumed.");
+        } else if (selectedRow >= 0) {
             try {
-                Object selected = playlistComboBox.getSelectedItem();
-                String playlistName = selected.toString();
-                java.util.List<Song> songs = playlistManager.getPlaylistSongs(playlistName);
-                Song song = songs.get(selectedRow);
-                
-                musicPlayer.playSong(song.getFilePath());
-                currentSongLabel.setText("Now Playing: " + song.getName());
-                statusLabel.setText("Status: Playing");
-                log("Playing: " + song.getName());
+                String playlistName = tableModel.getPlaylistName();
+                if (!playQueue.isLoaded(playlistName)) {
+                    // One query per playlist; navigation afterwards works on the snapshot
+                    playQueue.load(playlistName, playlistManager.getPlaylistSongs(playlistName));
+                }
+                startSong(playQueue.jumpTo(selectedRow));
             } catch (Exception ex) {
                 log("Error playing song: " + ex.getMessage());
                 JOptionPane.showMessageDialog(this, "Error playing song: " + ex.getMessage(), 
@@ -335,6 +827,89 @@ public class MusicPlayerApp extends JFrame {
         }
     }
 
+    // Plays the queue's current song and pre-opens the one after it
+    private void startSong(Song song) throws Exception {
+        if (song == null) {
+            throw new IllegalStateException("Song could not be loaded from playlist");
+        }
+        musicPlayer.playSong(song);
+        queueNextSong();
+        showCurrentSong(song);
+        statusLabel.setText("Status: Playing");
+    }
+
+    private void showCurrentSong(Song song) {
+        int row = getPlayingRow();
+        if (row >= 0 && row < songTable.getRowCount()) {
+            songTable.setRowSelectionInterval(row, row);
+            songTable.scrollRectToVisible(songTable.getCellRect(row, 0, true));
+        }
+        currentSongLabel.setText("Now Playing: " + song.getDisplayName());
+        log("Playing: " + song.getDisplayName());
+        showWaveform(song.getFilePath());
+    }
+
+    private void showWaveform(String filePath) {
+        waveformFilePath = filePath;
+        progressSlider.setWaveform(null);
+        if (filePath != null) {
+            waveformService.request(filePath, summary -> {
+                if (filePath.equals(waveformFilePath)) {
+                    progressSlider.setWaveform(summary);
+                }
+            });
+        }
+    }
+
+    // Row of the playing song if it belongs to the playlist on screen, otherwise -1
+    private int getPlayingRow() {
+        String playlistName = tableModel.getPlaylistName();
+        return playlistName != null && playQueue.isLoaded(playlistName) ? playQueue.getCurrentIndex() : -1;
+    }
+
+    // Lets the player pre-open the song the queue will play next so the switch is gapless
+    private void queueNextSong() {
+        queuedNextSong = playQueue.peekNext();
+        queuedNextToken = musicPlayer.setNextSong(queuedNextSong);
+        if (queuedNextSong != null) {
+            waveformService.prefetch(queuedNextSong.getFilePath());
+        }
+    }
+
+    // Matched on the engine's token rather than the path, since the queue may hold the
+    // same file as the track startSong just played
+    private void onTrackStarted(long token) {
+        if (queuedNextSong == null || token != queuedNextToken) {
+            return; // Track started by startSong, labels are already up to date
+        }
+        Song song = playQueue.next();
+        queueNextSong();
+        if (song != null) {
+            showCurrentSong(song);
+        }
+    }
+
+    private void onPositionChanged(long positionMicros, long durationMicros) {
+        if (seekingWithSlider) {
+            return;
+        }
+        int position = (int) (positionMicros / 1_000_000L);
+        if (durationMicros > 0) {
+            int duration = (int) (durationMicros / 1_000_000L);
+            timeLabel.setText(formatDuration(position) + " / " + formatDuration(duration));
+            progressSlider.setValue((int) Math.min(PROGRESS_STEPS, 
+                positionMicros * PROGRESS_STEPS / durationMicros));
+        } else {
+            timeLabel.setText(formatDuration(position) + " / --:--");
+        }
+    }
+
+    private void onPlaybackFinished() {
+        queuedNextSong = null;
+        statusLabel.setText("Status: Stopped");
+        log("Playback finished.");
+    }
+
     private void pauseSong() {
         try {
             musicPlayer.pauseSong();
@@ -348,10 +923,12 @@ public class MusicPlayerApp extends JFrame {
     private void stopSong() {
         try {
             musicPlayer.stopSong();
+            queuedNextSong = null;
             currentSongLabel.setText("No song selected");
             statusLabel.setText("Status: Stopped");
             timeLabel.setText("00:00 / 00:00");
             progressSlider.setValue(0);
+            showWaveform(null);
             log("Song stopped.");
         } catch (Exception ex) {
             log("Error stopping song: " + ex.getMessage());
@@ -359,24 +936,41 @@ public class MusicPlayerApp extends JFrame {
     }
 
     private void previousSong() {
-        int selectedRow = songTable.getSelectedRow();
-        if (selectedRow > 0) {
-            songTable.setRowSelectionInterval(selectedRow - 1, selectedRow - 1);
-            playSong();
-        } else {
+        Song song = playQueue.previous();
+        if (song == null) {
             JOptionPane.showMessageDialog(this, "No previous song available.", 
                 "No Previous Song", JOptionPane.INFORMATION_MESSAGE);
+            return;
         }
+        playQueuedSong(song);
     }
 
     private void nextSong() {
-        int selectedRow = songTable.getSelectedRow();
-        if (selectedRow >= 0 && selectedRow < songTable.getRowCount() - 1) {
-            songTable.setRowSelectionInterval(selectedRow + 1, selectedRow + 1);
-            playSong();
-        } else {
+        Song song = playQueue.skipNext();
+        if (song == null) {
             JOptionPane.showMessageDialog(this, "No next song available.", 
                 "No Next Song", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        playQueuedSong(song);
+    }
+
+    private void playQueuedSong(Song song) {
+        try {
+            startSong(song);
+        } catch (Exception ex) {
+            log("Error playing song: " + ex.getMessage());
+            JOptionPane.showMessageDialog(this, "Error playing song: " + ex.getMessage(), 
+                "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void enqueueSelectedSong() {
+        Song song = tableModel.getSongAt(songTable.getSelectedRow());
+        if (song != null) {
+            playQueue.enqueueNext(song);
+            queueNextSong();
+            log("Queued to play next: " + song.getDisplayName());
         }
     }
 
@@ -392,22 +986,64 @@ public class MusicPlayerApp extends JFrame {
         }
     }
 
-    private String formatDuration(int seconds) {
+    static String formatDuration(int seconds) {
         int mins = seconds / 60;
         int secs = seconds % 60;
         return String.format("%02d:%02d", mins, secs);
     }
 
+    /**
+     * Safe to call from any thread; the log area catches up on the next refresh.
+     */
     private void log(String message) {
-        logArea.append("[" + new java.text.SimpleDateFormat("HH:mm:ss").format(new Date()) + "] " 
-            + message + "\n");
+        activityLog.append(message);
+    }
+
+    /**
+     * Lines also go to a rotating file when the musicplayer.log system property names one.
+     */
+    private static LogFileSink createLogSink() {
+        String logFile = System.getProperty("musicplayer.log");
+        if (logFile == null || logFile.isEmpty()) {
+            return null;
+        }
+        return new LogFileSink(Paths.get(logFile), LOG_FILE_MAX_BYTES, LOG_FILE_COUNT);
+    }
+
+    private void refreshLogArea() {
+        if (logArea == null) {
+            return;
+        }
+        ActivityLog.Snapshot snapshot = activityLog.linesSince(logLinesShown);
+        logLinesShown = snapshot.end;
+        StringBuilder text = new StringBuilder();
+        for (String line : snapshot.lines) {
+            text.append(line).append('\n');
+        }
+        if (snapshot.truncated) {
+            logArea.setText(text.toString());
+        } else {
+            logArea.append(text.toString());
+            int excess = logArea.getLineCount() - 1 - activityLog.getCapacity();
+            if (excess > 0) {
+                try {
+                    logArea.getDocument().remove(0, logArea.getLineEndOffset(excess - 1));
+                } catch (javax.swing.text.BadLocationException ex) {
+                    logArea.setText(text.toString());
+                }
+            }
+        }
         logArea.setCaretPosition(logArea.getDocument().getLength());
     }
 
     private void cleanup() {
         try {
-            musicPlayer.stopSong();
+            librarySync.shutdown();
+            metadataIndexer.shutdown();
+            waveformService.shutdown();
+            musicPlayer.shutdown();
             databaseManager.closeConnection();
+            activityLog.close();
         } catch (Exception ex) {
             ex.printStackTrace();
         }
@@ -423,118 +1059,4184 @@ public class MusicPlayerApp extends JFrame {
  * Music Player - Handles audio playback functionality
  */
 class MusicPlayer {
-    private javax.sound.sampled.SourceDataLine sourceDataLine;
-    private Thread playbackThread;
-    private boolean isPlaying;
-    private float volume;
-    private int currentPosition;
-    private int totalDuration;
+    private final AudioEngine engine;
+    private final BiquadEqualizer equalizer = BiquadEqualizer.createFiveBand();
 
     public MusicPlayer() {
-        isPlaying = false;
-        volume = 0.7f;
-        currentPosition = 0;
-        totalDuration = 0;
+        engine = new AudioEngine();
+        engine.getProcessingChain().add(equalizer);
+        setVolume(70);
+        engine.start();
     }
 
-    public void playSong(String filePath) throws Exception {
-        if (isPlaying) {
-            stopSong();
-        }
+    public void setPlaybackListener(PlaybackListener listener) {
+        engine.setPlaybackListener(listener);
+    }
 
-        playbackThread = new Thread(() -> {
-            try {
-                javax.sound.sampled.AudioInputStream audioInputStream = 
-                    javax.sound.sampled.AudioSystem.getAudioInputStream(new File(filePath));
-                javax.sound.sampled.AudioFormat audioFormat = audioInputStream.getFormat();
-                
-                javax.sound.sampled.DataLine.Info info = 
-                    new javax.sound.sampled.DataLine.Info(
-                        javax.sound.sampled.SourceDataLine.class, audioFormat);
-                
-                sourceDataLine = (javax.sound.sampled.SourceDataLine) 
-                    javax.sound.sampled.AudioSystem.getLine(info);
-                sourceDataLine.open(audioFormat);
-                sourceDataLine.start();
+    public void playSong(String filePath) throws Exception {
+        engine.play(filePath, 0);
+    }
 
-                isPlaying = true;
-                byte[] bytesBuffer = new byte[4096];
-                int bytesRead = -1;
+    /**
+     * Plays the song with its ReplayGain adjustment, when one has been computed.
+     */
+    public void playSong(Song song) throws Exception {
+        engine.play(song.getFilePath(), trackGainOf(song));
+    }
 
-                while ((bytesRead = audioInputStream.read(bytesBuffer)) != -1 && isPlaying) {
-                    sourceDataLine.write(bytesBuffer, 0, bytesRead);
-                    currentPosition++;
-                }
+    /**
+     * Pre-opens and pre-buffers the track to play after the current one, so that
+     * the switch happens without closing the output line.
+     */
+    public long setNextSong(String filePath) {
+        return engine.queueNext(filePath, 0);
+    }
 
-                sourceDataLine.drain();
-                sourceDataLine.close();
-                audioInputStream.close();
-                isPlaying = false;
-            } catch (Exception ex) {
-                throw new RuntimeException("Error playing audio: " + ex.getMessage());
-            }
-        });
+    /**
+     * Returns the token the playback listener will report when this song starts.
+     */
+    public long setNextSong(Song song) {
+        return engine.queueNext(song == null ? null : song.getFilePath(), song == null ? 0 : trackGainOf(song));
+    }
 
-        playbackThread.start();
+    private static float trackGainOf(Song song) {
+        return Float.isNaN(song.getReplayGain()) ? 0 : song.getReplayGain();
     }
 
     public void pauseSong() {
-        if (sourceDataLine != null && isPlaying) {
-            sourceDataLine.stop();
-            isPlaying = false;
-        }
+        engine.pause();
+    }
+
+    public void resumeSong() {
+        engine.resume();
     }
 
     public void stopSong() {
-        isPlaying = false;
-        if (sourceDataLine != null) {
-            sourceDataLine.stop();
-            sourceDataLine.close();
-        }
-        currentPosition = 0;
+        engine.stop();
+    }
+
+    /**
+     * Stops the engine threads and releases the output line; the player cannot be used afterwards.
+     */
+    public void shutdown() {
+        engine.shutdown();
     }
 
+    // Squared so the slider feels roughly even in loudness; 0 is true silence
     public void setVolume(int volumePercent) {
-        volume = volumePercent / 100.0f;
-        if (sourceDataLine != null && sourceDataLine.isOpen()) {
-            javax.sound.sampled.FloatControl volumeControl = 
-                (javax.sound.sampled.FloatControl) sourceDataLine.getControl(
-                    javax.sound.sampled.FloatControl.Type.MASTER_GAIN);
-            float dB = (float) (Math.log(volume) / Math.log(10.0) * 20.0);
-            volumeControl.setValue(dB);
-        }
+        float volume = volumePercent / 100.0f;
+        engine.setVolume(volume * volume);
     }
 
-    public void setProgress(int percent) {
-        currentPosition = (int) ((totalDuration / 100.0) * percent);
+    /**
+     * Seeks the current track to the given fraction (0..1) of its length.
+     */
+    public void seekTo(double fraction) {
+        engine.seek(fraction);
     }
 
     public boolean isPlaying() {
-        return isPlaying;
+        return engine.isPlaying();
+    }
+
+    public boolean isPaused() {
+        return engine.isPaused();
+    }
+
+    public BiquadEqualizer getEqualizer() {
+        return equalizer;
+    }
+
+    public void setCrossfadeSeconds(int seconds) {
+        engine.setCrossfadeMillis(seconds * 1000);
+    }
+
+    /**
+     * Share of real time spent in audio processing, e.g. 0.02 for 2%.
+     */
+    public double getProcessingLoad() {
+        return engine.getProcessingChain().getTotalLoad();
     }
 }
 
 /**
- * Playlist Manager - Manages playlists and songs with database integration
+ * Audio Engine - Long-lived playback engine. A decoder thread executes commands and fills a
+ * PCM ring buffer; an output thread is the only thread that touches the SourceDataLine.
  */
-class PlaylistManager {
-    private DatabaseManager databaseManager;
+class AudioEngine {
+    private static final int RING_CAPACITY = 1 << 19;
+    private static final int DECODE_CHUNK = 16 * 1024;
+    private static final int OUTPUT_BLOCK = 4096;
+    private static final int PREBUFFER_SIZE = 64 * 1024;
+    private static final long COMMAND_WAIT_MILLIS = 5;
+    private static final long PLAY_TIMEOUT_SECONDS = 10;
+    private static final long POSITION_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int QUEUED_HEAD_SECONDS = 5;
+    private static final int MAX_CROSSFADE_MILLIS = 12_000;
 
-    public PlaylistManager(DatabaseManager databaseManager) {
-        this.databaseManager = databaseManager;
+    private final BlockingQueue<EngineCommand> commands = new LinkedBlockingQueue<>();
+    private final Queue<TrackSegment> segments = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingFlushes = new AtomicInteger();
+    private final AtomicLong tokens = new AtomicLong();
+    private final PcmRingBuffer ring = new PcmRingBuffer(RING_CAPACITY);
+    private final ExecutorService preloader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "track-preloader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Thread decoderThread = new Thread(this::runDecoder, "audio-decoder");
+    private final Thread outputThread = new Thread(this::runOutput, "audio-output");
+    private final DecodedAudioCache cache;
+
+    private volatile boolean running;
+    private volatile boolean playing;
+    private volatile boolean paused;
+    private volatile float volume = 1.0f;
+    private volatile int crossfadeMillis;
+    private final ProcessingChain processingChain = new ProcessingChain();
+    private final GainStage gainStage = new GainStage();
+    private volatile PlaybackListener listener;
+
+    // Decoder thread state
+    private TrackReader currentTrack;
+    private long currentToken;
+    private Future<PcmSource> nextTrack;
+    private String nextTrackPath;
+    private long nextTrackToken;
+    private float nextTrackGain = 1.0f;
+    private TrackReader fadingTrack;
+    private PcmCodec fadeCodec;
+    private long fadeFrames;
+    private long fadePosition;
+    private float[] fadeOut = new float[0];
+    private float[] fadeIn = new float[0];
+
+    // Output thread state
+    private SourceDataLine line;
+    private AudioFormat lineFormat;
+    private float segmentTrackGain = 1.0f;
+    private long framesWritten;
+    private long segmentLineBase;
+    private long segmentStartFrame;
+    private long segmentFrameLength = AudioSystem.NOT_SPECIFIED;
+    private long lastPositionNanos;
+
+    public AudioEngine() {
+        this.cache = createCache();
     }
 
-    public void createPlaylist(String playlistName) throws SQLException {
-        if (playlistName == null || playlistName.trim().isEmpty()) {
-            throw new IllegalArgumentException("Playlist name cannot be empty");
+    private static DecodedAudioCache createCache() {
+        long maxBytes = Long.getLong("musicplayer.pcmCacheMb", 256) * 1024 * 1024;
+        if (maxBytes <= 0) {
+            return null;
+        }
+        try {
+            return new DecodedAudioCache(maxBytes);
+        } catch (IOException ex) {
+            System.err.println("Decoded audio cache disabled: " + ex.getMessage());
+            return null;
         }
+    }
 
-        String sql = "INSERT INTO playlists (name, created_date) VALUES (?, ?)";
-        try (Connection conn = databaseManager.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, playlistName);
-            stmt.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
-            stmt.executeUpdate();
+    public void start() {
+        running = true;
+        decoderThread.setDaemon(true);
+        outputThread.setDaemon(true);
+        decoderThread.start();
+        outputThread.start();
+    }
+
+    public void setPlaybackListener(PlaybackListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts playing the given file, waiting until the decoder has opened it so that
+     * errors reach the caller. The track gain (ReplayGain, in dB) is applied on top of the volume.
+     */
+    public void play(String filePath, float trackGainDb) throws Exception {
+        CompletableFuture<Void> opened = new CompletableFuture<>();
+        commands.add(new EngineCommand(EngineCommand.Type.PLAY, filePath, opened, 0, trackGainDb,
+            tokens.incrementAndGet()));
+        try {
+            opened.get(PLAY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof Exception ? (Exception) cause : ex;
+        }
+    }
+
+    /**
+     * Returns a token, unique to this request, that trackStarted reports when the queued
+     * track starts; 0 when nothing is queued.
+     */
+    public long queueNext(String filePath, float trackGainDb) {
+        long token = filePath == null ? 0 : tokens.incrementAndGet();
+        commands.add(new EngineCommand(EngineCommand.Type.QUEUE_NEXT, filePath, null, 0, trackGainDb, token));
+        return token;
+    }
+
+    public void pause() {
+        commands.add(new EngineCommand(EngineCommand.Type.PAUSE, null, null));
+    }
+
+    public void resume() {
+        commands.add(new EngineCommand(EngineCommand.Type.RESUME, null, null));
+    }
+
+    public void stop() {
+        commands.add(new EngineCommand(EngineCommand.Type.STOP, null, null));
+    }
+
+    /**
+     * Moves the current track to the given fraction (0..1) of its length.
+     */
+    public void seek(double fraction) {
+        commands.add(new EngineCommand(EngineCommand.Type.SEEK, null, null, 
+            Math.max(0, Math.min(1, fraction))));
+    }
+
+    public void shutdown() {
+        commands.add(new EngineCommand(EngineCommand.Type.SHUTDOWN, null, null));
+        try {
+            decoderThread.join(1000);
+            outputThread.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        preloader.shutdownNow();
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    /**
+     * Sets the linear output gain, 0 for silence and 1 for unity; applied in software
+     * so it behaves the same on every mixer.
+     */
+    public void setVolume(float volume) {
+        this.volume = Math.max(0, volume);
+    }
+
+    /**
+     * Stages run on the output thread just before the volume is applied.
+     */
+    public ProcessingChain getProcessingChain() {
+        return processingChain;
+    }
+
+    /**
+     * Sets how long consecutive tracks overlap; 0 plays them back to back without a gap.
+     */
+    public void setCrossfadeMillis(int millis) {
+        crossfadeMillis = Math.max(0, Math.min(MAX_CROSSFADE_MILLIS, millis));
+    }
+
+    public boolean isPlaying() {
+        return playing && !paused;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    // ---- Decoder thread ----
+
+    private void runDecoder() {
+        byte[] chunk = new byte[DECODE_CHUNK];
+        int chunkLength = 0;
+        ByteBuffer slice = null;
+        try {
+            while (running) {
+                int pending = slice != null ? slice.remaining() : chunkLength;
+                EngineCommand command;
+                if (currentTrack == null && pending == 0) {
+                    command = commands.take();
+                } else if (pending > 0 && ring.freeSpace() < pending) {
+                    command = commands.poll(COMMAND_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                } else {
+                    command = commands.poll();
+                }
+                if (command != null) {
+                    if (handleCommand(command)) {
+                        chunkLength = 0;
+                        slice = null;
+                    }
+                    continue;
+                }
+
+                if (pending > 0) {
+                    if (slice != null ? ring.write(slice) : ring.write(chunk, 0, chunkLength)) {
+                        chunkLength = 0;
+                        slice = null;
+                        LockSupport.unpark(outputThread);
+                    }
+                    continue;
+                }
+
+                if (fadingTrack != null || startCrossfade()) {
+                    chunkLength = mixCrossfade(chunk);
+                    continue;
+                }
+
+                // Mapped sources hand out slices that are copied straight into the ring
+                slice = readSlice();
+                if (slice != null) {
+                    if (!slice.hasRemaining()) {
+                        slice = null;
+                        advanceToNextTrack();
+                    }
+                    continue;
+                }
+
+                int read = readChunk(chunk);
+                if (read > 0) {
+                    chunkLength = read;
+                } else if (read == -1) {
+                    advanceToNextTrack();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeCurrentTrack();
+            discardNextTrack();
+            running = false;
+            LockSupport.unpark(outputThread);
+        }
+    }
+
+    // Returns true when buffered-but-unwritten PCM must be discarded
+    private boolean handleCommand(EngineCommand command) {
+        switch (command.type) {
+            case PLAY:
+                try {
+                    PcmSource track = takeNextTrack(command.filePath);
+                    if (track == null) {
+                        track = openTrack(command.filePath, false);
+                    }
+                    closeCurrentTrack();
+                    currentTrack = TrackReader.direct(track, GainStage.dbToLinear(command.trackGainDb));
+                    currentToken = command.token;
+                    paused = false;
+                    playing = true;
+                    publishSegment(TrackSegment.forTrack(ring.writePosition(), currentTrack, currentToken, true, false));
+                    command.completion.complete(null);
+                } catch (Exception ex) {
+                    command.completion.completeExceptionally(ex);
+                    return false;
+                }
+                return true;
+            case QUEUE_NEXT:
+                setNextTrack(command.filePath);
+                nextTrackToken = command.token;
+                nextTrackGain = GainStage.dbToLinear(command.trackGainDb);
+                return false;
+            case PAUSE:
+                paused = true;
+                LockSupport.unpark(outputThread);
+                return false;
+            case RESUME:
+                paused = false;
+                LockSupport.unpark(outputThread);
+                return false;
+            case SEEK:
+                return seekCurrentTrack(command.fraction);
+            case STOP:
+                closeCurrentTrack();
+                paused = false;
+                playing = false;
+                publishSegment(new TrackSegment(ring.writePosition(), null, null, true));
+                return true;
+            case SHUTDOWN:
+                running = false;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Seeks in frames so the byte offset always lands on a frame boundary
+    private boolean seekCurrentTrack(double fraction) {
+        if (currentTrack == null || currentTrack.getFrameLength() == AudioSystem.NOT_SPECIFIED) {
+            return false;
+        }
+        try {
+            currentTrack.seekToFrame((long) (currentTrack.getFrameLength() * fraction));
+        } catch (IOException ex) {
+            System.err.println("Error seeking " + currentTrack.getFilePath() + ": " + ex.getMessage());
+            return false;
+        }
+        closeFadingTrack();
+        publishSegment(TrackSegment.forTrack(ring.writePosition(), currentTrack, currentToken, true, true));
+        return true;
+    }
+
+    private ByteBuffer readSlice() {
+        try {
+            return currentTrack.readSlice(DECODE_CHUNK);
+        } catch (IOException ex) {
+            System.err.println("Error reading " + currentTrack.getFilePath() + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private int readChunk(byte[] chunk) {
+        try {
+            return currentTrack.read(chunk, 0, chunk.length);
+        } catch (IOException ex) {
+            System.err.println("Error decoding " + currentTrack.getFilePath() + ": " + ex.getMessage());
+            return -1;
+        }
+    }
+
+    // Continues straight into the pre-opened track, or marks the end of playback.
+    // The next track is converted to the current line format when it can be, so that
+    // consecutive tracks stay gapless even if their sample rates differ
+    private void advanceToNextTrack() {
+        AudioFormat lineFormat = currentTrack != null ? currentTrack.getFormat() : null;
+        closeCurrentTrack();
+        PcmSource next = takeNextTrack(null);
+        if (next != null) {
+            float gain = nextTrackGain;
+            TrackReader reader = lineFormat != null ? TrackReader.converting(next, lineFormat, gain) : null;
+            currentTrack = reader != null ? reader : TrackReader.direct(next, gain);
+            currentToken = nextTrackToken;
+            publishSegment(TrackSegment.forTrack(ring.writePosition(), currentTrack, currentToken, false, false));
+        } else {
+            publishSegment(new TrackSegment(ring.writePosition(), null, null, false));
+        }
+    }
+
+    // Starts mixing into the pre-opened next track once the current one is within the
+    // crossfade length of its end; tracks that cannot be decoded to float play gapless instead
+    private boolean startCrossfade() {
+        int millis = crossfadeMillis;
+        if (millis <= 0 || currentTrack == null || !currentTrack.isMixable() 
+                || nextTrack == null || !nextTrack.isDone()) {
+            return false;
+        }
+        long length = currentTrack.getFrameLength();
+        long frames = (long) (currentTrack.getFormat().getFrameRate() * millis / 1000);
+        long remaining = length - currentTrack.getFramePosition();
+        if (length == AudioSystem.NOT_SPECIFIED || length < frames * 2 || remaining > frames) {
+            return false;
+        }
+
+        TrackReader incoming;
+        try {
+            incoming = TrackReader.converting(nextTrack.get(), currentTrack.getFormat(), nextTrackGain);
+        } catch (InterruptedException | ExecutionException ex) {
+            return false; // advanceToNextTrack() reports the failure
+        }
+        if (incoming == null || !incoming.isMixable()) {
+            return false;
+        }
+        nextTrack = null;
+        nextTrackPath = null;
+
+        AudioFormat format = currentTrack.getFormat();
+        int capacity = DECODE_CHUNK / Math.max(1, format.getFrameSize()) * format.getChannels();
+        if (fadeOut.length < capacity) {
+            fadeOut = new float[capacity];
+            fadeIn = new float[capacity];
+        }
+        fadeCodec = PcmCodec.forFormat(format);
+        fadingTrack = currentTrack;
+        fadeFrames = Math.max(1, remaining);
+        fadePosition = 0;
+        currentTrack = incoming;
+        currentToken = nextTrackToken;
+        publishSegment(TrackSegment.forTrack(ring.writePosition(), incoming, currentToken, false, false));
+        return true;
+    }
+
+    // Equal-power mix of the outgoing and incoming tracks into the chunk. The output thread
+    // already applies the incoming track's gain, so the outgoing one is scaled relative to it
+    private int mixCrossfade(byte[] chunk) {
+        AudioFormat format = currentTrack.getFormat();
+        int channels = format.getChannels();
+        int frameSize = Math.max(1, format.getFrameSize());
+        int capacity = chunk.length / frameSize;
+        try {
+            int frames = fadingTrack.readFloats(fadeOut, 0, capacity);
+            if (frames == -1) {
+                closeFadingTrack();
+                return 0;
+            }
+            int mixed = 0;
+            while (mixed < frames) {
+                int read = currentTrack.readFloats(fadeIn, mixed, frames - mixed);
+                if (read == -1) {
+                    break;
+                }
+                mixed += read;
+            }
+            Arrays.fill(fadeIn, mixed * channels, frames * channels, 0);
+
+            float relativeGain = fadingTrack.getGain() / currentTrack.getGain();
+            int sampleBytes = fadeCodec.getBytesPerSample();
+            for (int f = 0; f < frames; f++) {
+                double t = Math.min(1.0, (double) (fadePosition + f) / fadeFrames) * Math.PI / 2;
+                float out = (float) Math.cos(t) * relativeGain;
+                float in = (float) Math.sin(t);
+                for (int c = 0, i = f * channels; c < channels; c++, i++) {
+                    fadeCodec.write(chunk, i * sampleBytes, fadeOut[i] * out + fadeIn[i] * in);
+                }
+            }
+            fadePosition += frames;
+            return frames * frameSize;
+        } catch (IOException ex) {
+            System.err.println("Error crossfading " + fadingTrack.getFilePath() + ": " + ex.getMessage());
+            closeFadingTrack();
+            return 0;
+        }
+    }
+
+    private void publishSegment(TrackSegment segment) {
+        if (segment.flush) {
+            pendingFlushes.incrementAndGet();
+        }
+        segments.add(segment);
+        LockSupport.unpark(outputThread);
+    }
+
+    private void setNextTrack(String filePath) {
+        if (filePath != null && filePath.equals(nextTrackPath)) {
+            return;
+        }
+        discardNextTrack();
+        if (filePath != null) {
+            nextTrackPath = filePath;
+            nextTrack = preloader.submit(() -> openTrack(filePath, true));
+        }
+    }
+
+    // Returns the pre-opened next track, or null if none was requested or it failed to open
+    // Queued tracks get a few seconds decoded into the cache ahead of time
+    private PcmSource openTrack(String filePath, boolean queued) 
+            throws IOException, UnsupportedAudioFileException {
+        PcmSource wav = MappedWavTrack.open(filePath);
+        if (wav != null) {
+            return wav; // Already PCM on disk, nothing to decode or cache
+        }
+        if (cache == null) {
+            return PreparedTrack.open(filePath, PREBUFFER_SIZE);
+        }
+        return cache.open(filePath, queued ? QUEUED_HEAD_SECONDS : 0);
+    }
+
+    private PcmSource takeNextTrack(String expectedPath) {
+        if (nextTrack == null || (expectedPath != null && !expectedPath.equals(nextTrackPath))) {
+            return null;
+        }
+        Future<PcmSource> pending = nextTrack;
+        nextTrack = null;
+        nextTrackPath = null;
+        try {
+            return pending.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            System.err.println("Could not pre-open next track: " + ex.getCause().getMessage());
+            return null;
+        }
+    }
+
+    private void discardNextTrack() {
+        if (nextTrack != null) {
+            Future<PcmSource> pending = nextTrack;
+            preloader.execute(() -> {
+                try {
+                    pending.get().close();
+                } catch (Exception ignored) {
+                    // Nothing to release
+                }
+            });
+        }
+        nextTrack = null;
+        nextTrackPath = null;
+    }
+
+    private void closeFadingTrack() {
+        if (fadingTrack != null) {
+            try {
+                fadingTrack.close();
+            } catch (IOException ex) {
+                System.err.println("Error closing track: " + ex.getMessage());
+            }
+            fadingTrack = null;
+        }
+    }
+
+    private void closeCurrentTrack() {
+        closeFadingTrack();
+        if (currentTrack != null) {
+            try {
+                currentTrack.close();
+            } catch (IOException ex) {
+                System.err.println("Error closing track: " + ex.getMessage());
+            }
+            currentTrack = null;
+        }
+    }
+
+    // ---- Output thread ----
+
+    private void runOutput() {
+        byte[] block = new byte[OUTPUT_BLOCK];
+        try {
+            while (running) {
+                if (pendingFlushes.get() > 0) {
+                    applyFlush();
+                    continue;
+                }
+                TrackSegment segment = segments.peek();
+                long readPosition = ring.readPosition();
+                if (segment != null && segment.startByte <= readPosition) {
+                    segments.poll();
+                    applySegment(segment);
+                    continue;
+                }
+                if (line == null || paused) {
+                    if (line != null && line.isRunning()) {
+                        line.stop();
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                int frameSize = Math.max(1, lineFormat.getFrameSize());
+                long limit = segment != null ? segment.startByte - readPosition : Long.MAX_VALUE;
+                int length = (int) Math.min(Math.min(block.length, limit), ring.available());
+                length -= length % frameSize;
+                if (length == 0) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                ring.read(block, 0, length);
+                processingChain.process(block, 0, length);
+                gainStage.setTarget(volume * segmentTrackGain);
+                gainStage.process(block, 0, length);
+                if (!line.isRunning()) {
+                    line.start();
+                }
+                line.write(block, 0, length);
+                framesWritten += length / frameSize;
+                reportPosition();
+            }
+        } finally {
+            closeLine();
+        }
+    }
+
+    // Drops every segment up to the newest flush and discards the PCM queued before it
+    private void applyFlush() {
+        TrackSegment segment;
+        while ((segment = segments.poll()) != null) {
+            if (segment.flush && pendingFlushes.decrementAndGet() == 0) {
+                break;
+            }
+        }
+        if (segment == null) {
+            return;
+        }
+        ring.skipTo(segment.startByte);
+        if (line != null) {
+            line.stop();
+            line.flush();
+            framesWritten = line.getLongFramePosition();
+        }
+        applySegment(segment);
+    }
+
+    private void applySegment(TrackSegment segment) {
+        if (segment.filePath == null) {
+            if (!segment.flush && line != null) {
+                line.drain();
+                playing = false;
+                PlaybackListener l = listener;
+                if (l != null) {
+                    l.playbackFinished();
+                }
+            }
+            return;
+        }
+
+        try {
+            openLine(segment.format);
+        } catch (LineUnavailableException ex) {
+            System.err.println("Audio line unavailable: " + ex.getMessage());
+            commands.add(new EngineCommand(EngineCommand.Type.STOP, null, null));
+            return;
+        }
+        segmentLineBase = framesWritten;
+        segmentStartFrame = segment.startFrame;
+        segmentFrameLength = segment.frameLength;
+        segmentTrackGain = segment.trackGain;
+        PlaybackListener l = listener;
+        if (l != null && !segment.seek) {
+            l.trackStarted(segment.filePath, segment.token);
+        }
+        lastPositionNanos = 0;
+        reportPosition();
+    }
+
+    // Position comes from the line's own frame clock, so it tracks what is audible
+    // rather than what has been decoded; updates are rate-limited to the output loop
+    private void reportPosition() {
+        long now = System.nanoTime();
+        if (now - lastPositionNanos < POSITION_INTERVAL_NANOS) {
+            return;
+        }
+        lastPositionNanos = now;
+        PlaybackListener l = listener;
+        if (l == null) {
+            return;
+        }
+        long played = Math.max(0, line.getLongFramePosition() - segmentLineBase);
+        float frameRate = lineFormat.getFrameRate();
+        long positionMicros = (long) ((segmentStartFrame + played) * 1_000_000L / frameRate);
+        long durationMicros = segmentFrameLength == AudioSystem.NOT_SPECIFIED ? 
+            -1 : (long) (segmentFrameLength * 1_000_000L / frameRate);
+        l.positionChanged(positionMicros, durationMicros);
+    }
+
+    // Keeps the current line when the format matches; the line buffer is kept short so that
+    // blocking writes never delay commands by more than about 100 ms
+    private void openLine(AudioFormat format) throws LineUnavailableException {
+        if (line != null && line.isOpen() && lineFormat.matches(format)) {
+            return;
+        }
+        if (line != null && line.isOpen()) {
+            line.drain();
+            line.close();
+        }
+
+        int frameSize = Math.max(1, format.getFrameSize());
+        int bufferSize = Math.max(OUTPUT_BLOCK * 2, (int) (format.getFrameRate() / 10) * frameSize);
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+        line = (SourceDataLine) AudioSystem.getLine(info);
+        line.open(format, bufferSize - bufferSize % frameSize);
+        lineFormat = format;
+        processingChain.configure(format, OUTPUT_BLOCK);
+        gainStage.configure(format);
+        framesWritten = 0;
+    }
+
+    private void closeLine() {
+        if (line != null) {
+            line.stop();
+            line.close();
+            line = null;
+        }
+    }
+}
+
+/**
+ * Engine Command - A request queued for the decoder thread
+ */
+class EngineCommand {
+    enum Type { PLAY, QUEUE_NEXT, PAUSE, RESUME, SEEK, STOP, SHUTDOWN }
+
+    final Type type;
+    final String filePath;
+    final CompletableFuture<Void> completion;
+    final double fraction;
+    final float trackGainDb;
+    final long token;
+
+    EngineCommand(Type type, String filePath, CompletableFuture<Void> completion) {
+        this(type, filePath, completion, 0, 0);
+    }
+
+    EngineCommand(Type type, String filePath, CompletableFuture<Void> completion, double fraction) {
+        this(type, filePath, completion, fraction, 0);
+    }
+
+    EngineCommand(Type type, String filePath, CompletableFuture<Void> completion, 
+                  double fraction, float trackGainDb) {
+        this(type, filePath, completion, fraction, trackGainDb, 0);
+    }
+
+    EngineCommand(Type type, String filePath, CompletableFuture<Void> completion, 
+                  double fraction, float trackGainDb, long token) {
+        this.type = type;
+        this.filePath = filePath;
+        this.completion = completion;
+        this.fraction = fraction;
+        this.trackGainDb = trackGainDb;
+        this.token = token;
+    }
+}
+
+/**
+ * Track Segment - Marks the ring buffer position where the output must switch tracks.
+ * A flush segment discards everything queued before it; a segment without a file ends playback.
+ */
+class TrackSegment {
+    final long startByte;
+    final String filePath;
+    final AudioFormat format;
+    final boolean flush;
+    final boolean seek;
+    final long startFrame;
+    final long frameLength;
+    final float trackGain;
+    final long token;
+
+    TrackSegment(long startByte, String filePath, AudioFormat format, boolean flush) {
+        this(startByte, filePath, format, flush, false, 0, AudioSystem.NOT_SPECIFIED, 1.0f, 0);
+    }
+
+    TrackSegment(long startByte, String filePath, AudioFormat format, boolean flush, 
+                 boolean seek, long startFrame, long frameLength, float trackGain, long token) {
+        this.startByte = startByte;
+        this.filePath = filePath;
+        this.format = format;
+        this.flush = flush;
+        this.seek = seek;
+        this.startFrame = startFrame;
+        this.frameLength = frameLength;
+        this.trackGain = trackGain;
+        this.token = token;
+    }
+
+    static TrackSegment forTrack(long startByte, TrackReader track, long token, boolean flush, boolean seek) {
+        return new TrackSegment(startByte, track.getFilePath(), track.getFormat(), flush, seek, 
+            track.getFramePosition(), track.getFrameLength(), track.getGain(), token);
+    }
+}
+
+/**
+ * PCM Ring Buffer - Lock-free single-producer/single-consumer byte queue.
+ * Positions only ever grow; the producer owns writePosition and the consumer owns readPosition.
+ */
+class PcmRingBuffer {
+    private final byte[] buffer;
+    private final int mask;
+    private volatile long writePosition;
+    private volatile long readPosition;
+
+    public PcmRingBuffer(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        buffer = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    public long writePosition() { return writePosition; }
+    public long readPosition() { return readPosition; }
+
+    public int available() {
+        return (int) (writePosition - readPosition);
+    }
+
+    public int freeSpace() {
+        return buffer.length - available();
+    }
+
+    /**
+     * Producer side: copies the whole range or nothing, so that whole frames are published at once.
+     */
+    public boolean write(byte[] source, int offset, int length) {
+        long position = writePosition;
+        if (length > buffer.length - (int) (position - readPosition)) {
+            return false;
+        }
+        int index = (int) (position & mask);
+        int first = Math.min(length, buffer.length - index);
+        System.arraycopy(source, offset, buffer, index, first);
+        System.arraycopy(source, offset + first, buffer, 0, length - first);
+        writePosition = position + length;
+        return true;
+    }
+
+    /**
+     * Producer side: copies all remaining bytes of the source or nothing.
+     */
+    public boolean write(ByteBuffer source) {
+        long position = writePosition;
+        int length = source.remaining();
+        if (length > buffer.length - (int) (position - readPosition)) {
+            return false;
+        }
+        int index = (int) (position & mask);
+        int first = Math.min(length, buffer.length - index);
+        source.get(buffer, index, first);
+        source.get(buffer, 0, length - first);
+        writePosition = position + length;
+        return true;
+    }
+
+    /**
+     * Consumer side: copies up to {@code length} bytes and returns the number copied.
+     */
+    public int read(byte[] target, int offset, int length) {
+        long position = readPosition;
+        int count = Math.min(length, (int) (writePosition - position));
+        int index = (int) (position & mask);
+        int first = Math.min(count, buffer.length - index);
+        System.arraycopy(buffer, index, target, offset, first);
+        System.arraycopy(buffer, 0, target, offset + first, count - first);
+        readPosition = position + count;
+        return count;
+    }
+
+    /**
+     * Consumer side: discards everything before the given position.
+     */
+    public void skipTo(long position) {
+        readPosition = position;
+    }
+}
+
+/**
+ * PCM Codec - Reads and writes single linear PCM samples as floats in [-1, 1].
+ * Covers the layouts Java Sound hands out: 8/16/24/32-bit integer, either byte order
+ * and signedness, and 32-bit float.
+ */
+final class PcmCodec {
+    private final boolean floating;
+    private final boolean signed;
+    private final boolean bigEndian;
+    private final int bytesPerSample;
+    private final double scale;
+
+    private PcmCodec(boolean floating, boolean signed, boolean bigEndian, int bytesPerSample) {
+        this.floating = floating;
+        this.signed = signed;
+        this.bigEndian = bigEndian;
+        this.bytesPerSample = bytesPerSample;
+        this.scale = Math.pow(2, bytesPerSample * 8 - 1);
+    }
+
+    /**
+     * Returns a codec for the format, or null if its samples are not linear PCM.
+     */
+    static PcmCodec forFormat(AudioFormat format) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        boolean bigEndian = format.isBigEndian();
+        if (AudioFormat.Encoding.PCM_FLOAT.equals(encoding)) {
+            return bits == 32 ? new PcmCodec(true, true, bigEndian, 4) : null;
+        }
+        boolean signed = AudioFormat.Encoding.PCM_SIGNED.equals(encoding);
+        if (!signed && !AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)) {
+            return null;
+        }
+        if (bits != 8 && bits != 16 && bits != 24 && bits != 32) {
+            return null;
+        }
+        return new PcmCodec(false, signed, bigEndian, bits / 8);
+    }
+
+    public int getBytesPerSample() { return bytesPerSample; }
+
+    public float read(byte[] buffer, int offset) {
+        int raw = readRaw(buffer, offset);
+        if (floating) {
+            return Float.intBitsToFloat(raw);
+        }
+        if (signed) {
+            int shift = 32 - bytesPerSample * 8;
+            return (float) (((raw << shift) >> shift) / scale);
+        }
+        return (float) (((raw & 0xFFFFFFFFL) - scale) / scale);
+    }
+
+    /**
+     * Writes the sample, clamping it to the representable range.
+     */
+    public void write(byte[] buffer, int offset, float sample) {
+        float clamped = Math.max(-1.0f, Math.min(1.0f, sample));
+        if (floating) {
+            writeRaw(buffer, offset, Float.floatToRawIntBits(clamped));
+            return;
+        }
+        long value = Math.min((long) scale - 1, Math.round(clamped * scale));
+        if (!signed) {
+            value += (long) scale;
+        }
+        writeRaw(buffer, offset, (int) value);
+    }
+
+    private int readRaw(byte[] buffer, int offset) {
+        int value = 0;
+        for (int i = 0; i < bytesPerSample; i++) {
+            int b = buffer[offset + (bigEndian ? i : bytesPerSample - 1 - i)] & 0xFF;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private void writeRaw(byte[] buffer, int offset, int value) {
+        for (int i = 0; i < bytesPerSample; i++) {
+            int shift = 8 * (bigEndian ? bytesPerSample - 1 - i : i);
+            buffer[offset + i] = (byte) (value >>> shift);
+        }
+    }
+}
+
+/**
+ * Gain Stage - Scales PCM blocks in place on the output thread.
+ * Gain changes ramp linearly over a few milliseconds so volume moves and track
+ * boundaries do not click; unity gain leaves the block untouched.
+ */
+final class GainStage {
+    private static final double RAMP_SECONDS = 0.02;
+
+    private PcmCodec codec;
+    private int frameSize;
+    private int channels;
+    private int rampFrames = 1;
+    private float current = 1.0f;
+    private float target = 1.0f;
+    private float step;
+
+    static float dbToLinear(float db) {
+        return (float) Math.pow(10, db / 20.0);
+    }
+
+    /**
+     * Switches to a new line format; a fresh line starts at the target gain without a ramp.
+     */
+    public void configure(AudioFormat format) {
+        codec = PcmCodec.forFormat(format);
+        frameSize = Math.max(1, format.getFrameSize());
+        channels = Math.max(1, format.getChannels());
+        rampFrames = Math.max(1, (int) Math.round(format.getSampleRate() * RAMP_SECONDS));
+        current = target;
+        step = 0;
+    }
+
+    public void setTarget(float gain) {
+        if (gain != target) {
+            target = gain;
+            step = (target - current) / rampFrames;
+        }
+    }
+
+    public void process(byte[] block, int offset, int length) {
+        if (codec == null || (current == target && current == 1.0f)) {
+            return;
+        }
+        int sampleBytes = codec.getBytesPerSample();
+        int end = offset + length - length % frameSize;
+        for (int frame = offset; frame < end; frame += frameSize) {
+            if (current != target) {
+                current += step;
+                if ((step > 0 && current >= target) || (step <= 0 && current <= target)) {
+                    current = target;
+                }
+            }
+            float gain = current;
+            for (int c = 0, pos = frame; c < channels; c++, pos += sampleBytes) {
+                codec.write(block, pos, codec.read(block, pos) * gain);
+            }
+        }
+    }
+}
+
+/**
+ * Audio Processor - One DSP stage, working in place on interleaved float samples in [-1, 1]
+ */
+interface AudioProcessor {
+    String getName();
+
+    /**
+     * Called on the audio thread before the first block and whenever the format changes.
+     */
+    void configure(float sampleRate, int channels);
+
+    void process(float[] samples, int frames);
+
+    /**
+     * Inactive stages are skipped, and a chain with no active stage leaves blocks untouched.
+     */
+    default boolean isActive() {
+        return true;
+    }
+}
+
+/**
+ * Processing Chain - Runs the output thread's DSP stages over each block.
+ * Stages may be added or removed from any thread. Blocks are only converted to float while
+ * some stage is active, and each stage's cost is tracked as a fraction of the playing time
+ * of the blocks it processed.
+ */
+final class ProcessingChain {
+    private static final double LOAD_SMOOTHING = 0.05;
+
+    private volatile Stage[] stages = new Stage[0];
+    private volatile double totalLoad;
+
+    // Output thread state
+    private PcmCodec codec;
+    private int channels;
+    private int frameSize;
+    private float sampleRate;
+    private float[] samples = new float[0];
+
+    private static final class Stage {
+        final AudioProcessor processor;
+        float sampleRate;
+        int channels;
+        volatile double load;
+
+        Stage(AudioProcessor processor) {
+            this.processor = processor;
+        }
+    }
+
+    public synchronized void add(AudioProcessor processor) {
+        Stage[] current = stages;
+        Stage[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = new Stage(processor);
+        stages = updated;
+    }
+
+    public synchronized void remove(AudioProcessor processor) {
+        Stage[] current = stages;
+        Stage[] updated = new Stage[current.length];
+        int count = 0;
+        for (Stage stage : current) {
+            if (stage.processor != processor) {
+                updated[count++] = stage;
+            }
+        }
+        stages = Arrays.copyOf(updated, count);
+    }
+
+    /**
+     * Fraction of real time the stage spends per block, smoothed; 0 when it is not in the chain.
+     */
+    public double getLoad(AudioProcessor processor) {
+        for (Stage stage : stages) {
+            if (stage.processor == processor) {
+                return stage.load;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Fraction of real time spent in the whole chain, sample conversion included.
+     */
+    public double getTotalLoad() {
+        return totalLoad;
+    }
+
+    void configure(AudioFormat format, int maxBlockBytes) {
+        codec = PcmCodec.forFormat(format);
+        channels = Math.max(1, format.getChannels());
+        frameSize = Math.max(1, format.getFrameSize());
+        sampleRate = format.getSampleRate();
+        int needed = maxBlockBytes / frameSize * channels;
+        if (samples.length < needed) {
+            samples = new float[needed];
+        }
+    }
+
+    void process(byte[] block, int offset, int length) {
+        Stage[] current = stages;
+        if (codec == null || !hasActiveStage(current)) {
+            if (totalLoad != 0) {
+                totalLoad = 0;
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        int frames = length / frameSize;
+        int count = frames * channels;
+        int sampleBytes = codec.getBytesPerSample();
+        for (int i = 0, pos = offset; i < count; i++, pos += sampleBytes) {
+            samples[i] = codec.read(block, pos);
+        }
+
+        double blockNanos = frames * 1e9 / sampleRate;
+        for (Stage stage : current) {
+            if (stage.sampleRate != sampleRate || stage.channels != channels) {
+                stage.processor.configure(sampleRate, channels);
+                stage.sampleRate = sampleRate;
+                stage.channels = channels;
+            }
+            double load = 0;
+            if (stage.processor.isActive()) {
+                long stageStart = System.nanoTime();
+                stage.processor.process(samples, frames);
+                load = (System.nanoTime() - stageStart) / blockNanos;
+            }
+            stage.load += LOAD_SMOOTHING * (load - stage.load);
+        }
+
+        for (int i = 0, pos = offset; i < count; i++, pos += sampleBytes) {
+            codec.write(block, pos, samples[i]);
+        }
+        totalLoad += LOAD_SMOOTHING * ((System.nanoTime() - start) / blockNanos - totalLoad);
+    }
+
+    private static boolean hasActiveStage(Stage[] current) {
+        for (Stage stage : current) {
+            if (stage.processor.isActive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+/**
+ * Biquad Equalizer - Parametric EQ with one RBJ peaking filter per band.
+ * Band gains can be changed from any thread; coefficients are recomputed on the audio
+ * thread before the next block, and flat bands cost nothing.
+ */
+final class BiquadEqualizer implements AudioProcessor {
+    private final float[] frequencies;
+    private final float[] gainsDb;
+    private final float q;
+    private volatile boolean changed = true;
+
+    // Audio thread state
+    private float sampleRate = 44100;
+    private int channels = 2;
+    private final boolean[] enabled;
+    private final double[] b0, b1, b2, a1, a2;
+    private double[] z1 = new double[0];
+    private double[] z2 = new double[0];
+
+    BiquadEqualizer(float q, float... frequencies) {
+        this.q = q;
+        this.frequencies = frequencies.clone();
+        int bands = frequencies.length;
+        gainsDb = new float[bands];
+        enabled = new boolean[bands];
+        b0 = new double[bands];
+        b1 = new double[bands];
+        b2 = new double[bands];
+        a1 = new double[bands];
+        a2 = new double[bands];
+    }
+
+    /**
+     * Five bands about two octaves apart, from bass to air.
+     */
+    static BiquadEqualizer createFiveBand() {
+        return new BiquadEqualizer(0.9f, 60, 230, 910, 3600, 14000);
+    }
+
+    public int getBandCount() { return frequencies.length; }
+    public float getFrequency(int band) { return frequencies[band]; }
+    public float getBandGain(int band) { return gainsDb[band]; }
+
+    public void setBandGain(int band, float gainDb) {
+        gainsDb[band] = gainDb;
+        changed = true;
+    }
+
+    @Override
+    public String getName() {
+        return "Equalizer";
+    }
+
+    @Override
+    public boolean isActive() {
+        for (float gain : gainsDb) {
+            if (gain != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void configure(float sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        z1 = new double[frequencies.length * channels];
+        z2 = new double[frequencies.length * channels];
+        Arrays.fill(enabled, false);
+        changed = true;
+    }
+
+    @Override
+    public void process(float[] samples, int frames) {
+        if (changed) {
+            changed = false;
+            updateCoefficients();
+        }
+        for (int band = 0; band < frequencies.length; band++) {
+            if (!enabled[band]) {
+                continue;
+            }
+            double c0 = b0[band], c1 = b1[band], c2 = b2[band], d1 = a1[band], d2 = a2[band];
+            for (int c = 0; c < channels; c++) {
+                int state = band * channels + c;
+                double s1 = z1[state], s2 = z2[state];
+                for (int i = c, end = frames * channels; i < end; i += channels) {
+                    double x = samples[i];
+                    double y = c0 * x + s1;
+                    s1 = c1 * x - d1 * y + s2;
+                    s2 = c2 * x - d2 * y;
+                    samples[i] = (float) y;
+                }
+                z1[state] = s1;
+                z2[state] = s2;
+            }
+        }
+    }
+
+    // Transposed direct form II coefficients from the Audio EQ Cookbook, normalized by a0
+    private void updateCoefficients() {
+        for (int band = 0; band < frequencies.length; band++) {
+            float gain = gainsDb[band];
+            boolean active = gain != 0 && frequencies[band] < sampleRate / 2;
+            if (active && !enabled[band]) {
+                Arrays.fill(z1, band * channels, (band + 1) * channels, 0);
+                Arrays.fill(z2, band * channels, (band + 1) * channels, 0);
+            }
+            enabled[band] = active;
+            if (!active) {
+                continue;
+            }
+            double a = Math.pow(10, gain / 40.0);
+            double w0 = 2 * Math.PI * frequencies[band] / sampleRate;
+            double alpha = Math.sin(w0) / (2 * q);
+            double cos = Math.cos(w0);
+            double a0 = 1 + alpha / a;
+            b0[band] = (1 + alpha * a) / a0;
+            b1[band] = -2 * cos / a0;
+            b2[band] = (1 - alpha * a) / a0;
+            a1[band] = -2 * cos / a0;
+            a2[band] = (1 - alpha / a) / a0;
+        }
+    }
+}
+
+/**
+ * Linear Resampler - Converts interleaved float audio between sample rates by linear
+ * interpolation, carrying its phase across blocks. There is no anti-aliasing filter, which
+ * is acceptable for the common 44.1/48 kHz conversions between consecutive tracks.
+ */
+final class LinearResampler {
+    private final int channels;
+    private final double step;
+    private final float[] last;
+    private double position;
+    private boolean primed;
+
+    LinearResampler(float inputRate, float outputRate, int channels) {
+        this.channels = channels;
+        this.step = inputRate / outputRate;
+        this.last = new float[channels];
+    }
+
+    /**
+     * Upper bound on the frames produced from the given number of input frames.
+     */
+    int maxOutputFrames(int inputFrames) {
+        return (int) Math.ceil(inputFrames / step) + 2;
+    }
+
+    void reset() {
+        primed = false;
+    }
+
+    /**
+     * Resamples the input frames into the output; returns the number of frames produced.
+     * Index 0 of the virtual input is the last frame of the previous block.
+     */
+    int process(float[] input, int frames, float[] output) {
+        if (frames == 0) {
+            return 0;
+        }
+        if (!primed) {
+            System.arraycopy(input, 0, last, 0, channels);
+            position = 1;
+            primed = true;
+        }
+        int produced = 0;
+        int index;
+        while ((index = (int) position) < frames) {
+            float frac = (float) (position - index);
+            int next = index * channels;
+            int out = produced * channels;
+            for (int c = 0; c < channels; c++) {
+                float a = index == 0 ? last[c] : input[next - channels + c];
+                float b = input[next + c];
+                output[out + c] = a + (b - a) * frac;
+            }
+            produced++;
+            position += step;
+        }
+        position -= frames;
+        System.arraycopy(input, (frames - 1) * channels, last, 0, channels);
+        return produced;
+    }
+}
+
+/**
+ * Track Reader - Delivers a track's PCM in the engine's output format.
+ * Tracks already in that format pass straight through, so mapped WAV slices stay zero-copy;
+ * others are decoded to float, remixed to the output channel count and resampled, using
+ * buffers allocated once per track.
+ */
+final class TrackReader implements Closeable {
+    private static final int BATCH_FRAMES = 4096;
+
+    private final PcmSource source;
+    private final AudioFormat format;
+    private final float gain;
+    private final boolean passThrough;
+    private final PcmCodec inputCodec;
+    private final PcmCodec outputCodec;
+    private final int inputChannels;
+    private final int outputChannels;
+    private final int inputFrameSize;
+    private final int outputFrameSize;
+    private final double rateRatio;
+    private final LinearResampler resampler;
+    private byte[] inputBytes;
+    private float[] remixed;
+    private float[] converted;
+    private int convertedFrames;
+    private int convertedOffset;
+
+    private TrackReader(PcmSource source, AudioFormat format, float gain) {
+        AudioFormat sourceFormat = source.getFormat();
+        this.source = source;
+        this.format = format;
+        this.gain = gain;
+        this.passThrough = sourceFormat.matches(format);
+        this.inputCodec = PcmCodec.forFormat(sourceFormat);
+        this.outputCodec = PcmCodec.forFormat(format);
+        this.inputChannels = Math.max(1, sourceFormat.getChannels());
+        this.outputChannels = Math.max(1, format.getChannels());
+        this.inputFrameSize = Math.max(1, sourceFormat.getFrameSize());
+        this.outputFrameSize = Math.max(1, format.getFrameSize());
+        this.rateRatio = format.getSampleRate() / sourceFormat.getSampleRate();
+        this.resampler = rateRatio == 1.0 ? null : 
+            new LinearResampler(sourceFormat.getSampleRate(), format.getSampleRate(), outputChannels);
+    }
+
+    /**
+     * Plays the track in its own format.
+     */
+    static TrackReader direct(PcmSource source, float gain) {
+        return new TrackReader(source, source.getFormat(), gain);
+    }
+
+    /**
+     * Converts the track to the given format, or returns null when either side is not
+     * linear PCM or the conversion would drop channels or bit depth, in which case the
+     * line has to be reopened instead.
+     */
+    static TrackReader converting(PcmSource source, AudioFormat format, float gain) {
+        AudioFormat sourceFormat = source.getFormat();
+        if (sourceFormat.matches(format)) {
+            return new TrackReader(source, format, gain);
+        }
+        if (PcmCodec.forFormat(sourceFormat) == null || PcmCodec.forFormat(format) == null) {
+            return null;
+        }
+        if (sourceFormat.getChannels() > format.getChannels() || 
+                sourceFormat.getSampleSizeInBits() > format.getSampleSizeInBits()) {
+            return null; // Reopening the line is better than losing channels or depth
+        }
+        return new TrackReader(source, format, gain);
+    }
+
+    public String getFilePath() { return source.getFilePath(); }
+    public AudioFormat getFormat() { return format; }
+    public float getGain() { return gain; }
+
+    /**
+     * True when the track can be decoded to float, which crossfading needs.
+     */
+    public boolean isMixable() {
+        return inputCodec != null && outputCodec != null;
+    }
+
+    /**
+     * Total frames in the output format, or AudioSystem.NOT_SPECIFIED when unknown.
+     */
+    public long getFrameLength() {
+        long length = source.getFrameLength();
+        return length == AudioSystem.NOT_SPECIFIED ? length : Math.round(length * rateRatio);
+    }
+
+    public long getFramePosition() {
+        return Math.round(source.getFramePosition() * rateRatio) - (convertedFrames - convertedOffset);
+    }
+
+    public void seekToFrame(long frame) throws IOException {
+        source.seekToFrame(Math.round(frame / rateRatio));
+        convertedFrames = 0;
+        convertedOffset = 0;
+        if (resampler != null) {
+            resampler.reset();
+        }
+    }
+
+    public ByteBuffer readSlice(int maxLength) throws IOException {
+        return passThrough ? source.readSlice(maxLength) : null;
+    }
+
+    /**
+     * Reads whole output frames; returns -1 at the end of the track.
+     */
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (passThrough) {
+            return source.read(buffer, offset, length);
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int frames = Math.min(convertedFrames - convertedOffset, length / outputFrameSize);
+        int sampleBytes = outputCodec.getBytesPerSample();
+        int start = convertedOffset * outputChannels;
+        int end = start + frames * outputChannels;
+        for (int i = start, pos = offset; i < end; i++, pos += sampleBytes) {
+            outputCodec.write(buffer, pos, converted[i]);
+        }
+        convertedOffset += frames;
+        return frames * outputFrameSize;
+    }
+
+    /**
+     * Reads up to maxFrames frames as interleaved floats starting at the given frame of
+     * the output array; returns -1 at the end of the track.
+     */
+    public int readFloats(float[] output, int outputFrame, int maxFrames) throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        int frames = Math.min(convertedFrames - convertedOffset, maxFrames);
+        System.arraycopy(converted, convertedOffset * outputChannels, 
+            output, outputFrame * outputChannels, frames * outputChannels);
+        convertedOffset += frames;
+        return frames;
+    }
+
+    // Converts the next batch of source frames unless some are still unread
+    private boolean fill() throws IOException {
+        if (convertedOffset < convertedFrames) {
+            return true;
+        }
+        if (inputBytes == null) {
+            inputBytes = new byte[BATCH_FRAMES * inputFrameSize];
+            remixed = new float[BATCH_FRAMES * outputChannels];
+            int capacity = resampler == null ? BATCH_FRAMES : resampler.maxOutputFrames(BATCH_FRAMES);
+            converted = new float[capacity * outputChannels];
+        }
+        convertedOffset = 0;
+        convertedFrames = 0;
+        while (convertedFrames == 0) {
+            int read = source.read(inputBytes, 0, inputBytes.length);
+            if (read == -1) {
+                return false;
+            }
+            int frames = read / inputFrameSize;
+            float[] target = resampler == null ? converted : remixed;
+            decode(frames, target);
+            convertedFrames = resampler == null ? frames : resampler.process(remixed, frames, converted);
+        }
+        return true;
+    }
+
+    // Mono is copied to every output channel; extra channels are averaged down or dropped
+    private void decode(int frames, float[] target) {
+        int sampleBytes = inputCodec.getBytesPerSample();
+        for (int f = 0; f < frames; f++) {
+            int in = f * inputFrameSize;
+            int out = f * outputChannels;
+            if (inputChannels == outputChannels) {
+                for (int c = 0; c < outputChannels; c++) {
+                    target[out + c] = inputCodec.read(inputBytes, in + c * sampleBytes);
+                }
+            } else if (outputChannels == 1) {
+                float sum = 0;
+                for (int c = 0; c < inputChannels; c++) {
+                    sum += inputCodec.read(inputBytes, in + c * sampleBytes);
+                }
+                target[out] = sum / inputChannels;
+            } else {
+                for (int c = 0; c < outputChannels; c++) {
+                    int channel = inputChannels == 1 ? 0 : c;
+                    target[out + c] = channel < inputChannels ? 
+                        inputCodec.read(inputBytes, in + channel * sampleBytes) : 0;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
+
+/**
+ * Playback Listener - Receives track changes from the audio output thread
+ */
+interface PlaybackListener {
+    /**
+     * The token is the one the engine handed out when the track was played or queued.
+     */
+    void trackStarted(String filePath, long token);
+
+    /**
+     * Called about ten times a second while audio is being written; duration is -1 when unknown.
+     */
+    void positionChanged(long positionMicros, long durationMicros);
+
+    void playbackFinished();
+}
+
+/**
+ * PCM Source - A seekable stream of decoded PCM frames for one track
+ */
+interface PcmSource extends Closeable {
+    String getFilePath();
+
+    AudioFormat getFormat();
+
+    /**
+     * Total frames in the track, or AudioSystem.NOT_SPECIFIED when unknown.
+     */
+    long getFrameLength();
+
+    long getFramePosition();
+
+    /**
+     * Reads whole frames into the buffer; returns -1 at the end of the track.
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Returns a read-only view of up to {@code maxLength} bytes of whole frames and advances
+     * past them, an empty buffer at the end of the track, or null if the source cannot hand
+     * out slices at its current position and {@link #read} must be used instead.
+     */
+    default ByteBuffer readSlice(int maxLength) throws IOException {
+        return null;
+    }
+
+    void seekToFrame(long frame) throws IOException;
+
+    /**
+     * Opens a file for one sequential pass outside playback: WAV files are mapped,
+     * anything else is decoded without a pre-buffer.
+     */
+    static PcmSource open(String filePath) throws IOException, UnsupportedAudioFileException {
+        PcmSource wav = MappedWavTrack.open(filePath);
+        return wav != null ? wav : PreparedTrack.open(filePath, 0);
+    }
+}
+
+/**
+ * Prepared Track - An opened audio stream with the first bytes already decoded.
+ * Seeking is skip-based: forward seeks skip within the open stream, backward seeks
+ * outside the pre-buffered head reopen the file.
+ */
+class PreparedTrack implements PcmSource {
+    private final String filePath;
+    private final byte[] head;
+    private final int headLength;
+    private final int frameSize;
+    private AudioInputStream stream;
+    private long streamPosition;
+    private long bytePosition;
+
+    private PreparedTrack(String filePath, AudioInputStream stream, byte[] head, int headLength) {
+        this.filePath = filePath;
+        this.stream = stream;
+        this.head = head;
+        this.headLength = headLength;
+        this.frameSize = Math.max(1, stream.getFormat().getFrameSize());
+        this.streamPosition = headLength;
+    }
+
+    public static PreparedTrack open(String filePath, int prebufferSize) 
+            throws IOException, UnsupportedAudioFileException {
+        AudioInputStream stream = AudioSystem.getAudioInputStream(new File(filePath));
+        int frameSize = Math.max(1, stream.getFormat().getFrameSize());
+        byte[] head = new byte[prebufferSize - prebufferSize % frameSize];
+        int length = 0;
+        int read;
+        while (length < head.length && (read = stream.read(head, length, head.length - length)) != -1) {
+            length += read;
+        }
+        return new PreparedTrack(filePath, stream, head, length);
+    }
+
+    @Override public String getFilePath() { return filePath; }
+    @Override public AudioFormat getFormat() { return stream.getFormat(); }
+    @Override public long getFrameLength() { return stream.getFrameLength(); }
+    @Override public long getFramePosition() { return bytePosition / frameSize; }
+
+    // While bytePosition is inside the head the stream stays parked at headLength,
+    // afterwards the stream position and bytePosition move together
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (bytePosition < headLength) {
+            int count = Math.min(length, headLength - (int) bytePosition);
+            System.arraycopy(head, (int) bytePosition, buffer, offset, count);
+            bytePosition += count;
+            return count;
+        }
+        int count = stream.read(buffer, offset, length);
+        if (count > 0) {
+            bytePosition += count;
+            streamPosition += count;
+        }
+        return count;
+    }
+
+    @Override
+    public void seekToFrame(long frame) throws IOException {
+        long frameLength = getFrameLength();
+        if (frameLength != AudioSystem.NOT_SPECIFIED) {
+            frame = Math.min(frame, frameLength);
+        }
+        long target = Math.max(0, frame) * frameSize;
+        long streamTarget = Math.max(target, headLength);
+
+        if (streamTarget < streamPosition) {
+            reopen();
+        }
+        while (streamPosition < streamTarget) {
+            long skipped = stream.skip(streamTarget - streamPosition);
+            if (skipped <= 0) {
+                break;
+            }
+            streamPosition += skipped;
+        }
+        bytePosition = Math.min(target, streamPosition);
+    }
+
+    private void reopen() throws IOException {
+        stream.close();
+        try {
+            stream = AudioSystem.getAudioInputStream(new File(filePath));
+        } catch (UnsupportedAudioFileException ex) {
+            throw new IOException("Cannot reopen " + filePath, ex);
+        }
+        streamPosition = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+}
+
+/**
+ * Mapped WAV Track - Plays uncompressed RIFF/WAVE files straight from a memory-mapped data
+ * chunk. Reads are slices of the mapping and seeking is a position change.
+ */
+class MappedWavTrack implements PcmSource {
+    private final String filePath;
+    private final WavHeader header;
+    private final MappedByteBuffer data;
+    private final int frameSize;
+    private int bytePosition;
+
+    private MappedWavTrack(String filePath, WavHeader header, MappedByteBuffer data) {
+        this.filePath = filePath;
+        this.header = header;
+        this.data = data;
+        this.frameSize = header.format.getFrameSize();
+    }
+
+    /**
+     * Maps the file if it is a WAV file this reader understands, otherwise returns null.
+     */
+    public static MappedWavTrack open(String filePath) throws IOException {
+        if (!filePath.toLowerCase().endsWith(".wav")) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            WavHeader header = WavHeader.read(channel);
+            if (header == null || header.dataLength > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 
+                header.dataOffset, header.dataLength);
+            return new MappedWavTrack(filePath, header, data);
+        }
+    }
+
+    @Override public String getFilePath() { return filePath; }
+    @Override public AudioFormat getFormat() { return header.format; }
+    @Override public long getFrameLength() { return header.dataLength / frameSize; }
+    @Override public long getFramePosition() { return bytePosition / frameSize; }
+
+    @Override
+    public ByteBuffer readSlice(int maxLength) {
+        int count = Math.min(maxLength, data.limit() - bytePosition);
+        count -= count % frameSize;
+        ByteBuffer slice = data.slice(bytePosition, count);
+        bytePosition += count;
+        return slice;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        int count = Math.min(length, data.limit() - bytePosition);
+        count -= count % frameSize;
+        if (count <= 0) {
+            return -1;
+        }
+        data.get(bytePosition, buffer, offset, count);
+        bytePosition += count;
+        return count;
+    }
+
+    @Override
+    public void seekToFrame(long frame) {
+        bytePosition = (int) Math.min(Math.max(0, frame) * frameSize, getFrameLength() * frameSize);
+    }
+
+    @Override
+    public void close() {
+        // The mapping is released when the buffer is collected
+    }
+}
+
+/**
+ * WAV Header - Minimal RIFF/WAVE parser for integer PCM and IEEE float files
+ */
+class WavHeader {
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_FLOAT = 3;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+    private static final long MAX_INFO_SIZE = 64 * 1024;
+
+    final AudioFormat format;
+    final long dataOffset;
+    final long dataLength;
+
+    private WavHeader(AudioFormat format, long dataOffset, long dataLength) {
+        this.format = format;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+    }
+
+    /**
+     * Walks the chunk list; returns null if the file is not a WAV file with a supported encoding.
+     */
+    static WavHeader read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.read(header, 0) < 12 || header.getInt(0) != fourCC("RIFF") 
+                || header.getInt(8) != fourCC("WAVE")) {
+            return null;
+        }
+
+        AudioFormat format = null;
+        ByteBuffer chunk = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        long position = 12;
+        while (position + 8 <= fileSize) {
+            chunk.clear();
+            channel.read(chunk, position);
+            int id = chunk.getInt(0);
+            long size = chunk.getInt(4) & 0xFFFFFFFFL;
+            long body = position + 8;
+
+            if (id == fourCC("fmt ")) {
+                ByteBuffer fmt = ByteBuffer.allocate((int) Math.min(size, 64))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(fmt, body);
+                format = parseFormat(fmt);
+                if (format == null) {
+                    return null;
+                }
+            } else if (id == fourCC("data")) {
+                if (format == null) {
+                    return null;
+                }
+                // Streamed files may leave the size unset
+                long length = Math.min(size, fileSize - body);
+                length -= length % format.getFrameSize();
+                return new WavHeader(format, body, length);
+            }
+            position = body + size + (size & 1);
+        }
+        return null;
+    }
+
+    /**
+     * Collects the LIST/INFO tags (IART, INAM, ...) wherever they sit in the chunk list.
+     */
+    static Map<String, String> readInfoTags(FileChannel channel) throws IOException {
+        Map<String, String> tags = new HashMap<>();
+        long fileSize = channel.size();
+        ByteBuffer chunk = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        long position = 12;
+        while (position + 8 <= fileSize) {
+            chunk.clear();
+            channel.read(chunk, position);
+            int id = chunk.getInt(0);
+            long size = chunk.getInt(4) & 0xFFFFFFFFL;
+            long body = position + 8;
+            if (id == fourCC("LIST") && size >= 4 && size <= MAX_INFO_SIZE 
+                    && chunk.getInt(8) == fourCC("INFO")) {
+                ByteBuffer info = ByteBuffer.allocate((int) size - 4).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(info, body + 4);
+                info.flip();
+                readInfoEntries(info, tags);
+            }
+            position = body + size + (size & 1);
+        }
+        return tags;
+    }
+
+    private static void readInfoEntries(ByteBuffer info, Map<String, String> tags) {
+        while (info.remaining() >= 8) {
+            byte[] id = new byte[4];
+            info.get(id);
+            int size = info.getInt();
+            if (size < 0 || size > info.remaining()) {
+                return;
+            }
+            byte[] value = new byte[size];
+            info.get(value);
+            if ((size & 1) == 1 && info.hasRemaining()) {
+                info.get(); // Pad byte
+            }
+            int length = 0;
+            while (length < size && value[length] != 0) {
+                length++;
+            }
+            String text = new String(value, 0, length, StandardCharsets.UTF_8).trim();
+            if (!text.isEmpty()) {
+                tags.put(new String(id, StandardCharsets.US_ASCII), text);
+            }
+        }
+    }
+
+    private static AudioFormat parseFormat(ByteBuffer fmt) {
+        if (fmt.limit() < 16) {
+            return null;
+        }
+        int tag = fmt.getShort(0) & 0xFFFF;
+        int channels = fmt.getShort(2) & 0xFFFF;
+        int sampleRate = fmt.getInt(4);
+        int blockAlign = fmt.getShort(12) & 0xFFFF;
+        int bits = fmt.getShort(14) & 0xFFFF;
+        if (tag == FORMAT_EXTENSIBLE && fmt.limit() >= 26) {
+            tag = fmt.getShort(24) & 0xFFFF; // First two bytes of the sub-format GUID
+        }
+        if (channels == 0 || blockAlign == 0 || bits == 0) {
+            return null;
+        }
+
+        AudioFormat.Encoding encoding;
+        if (tag == FORMAT_PCM) {
+            encoding = bits <= 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
+        } else if (tag == FORMAT_FLOAT) {
+            encoding = AudioFormat.Encoding.PCM_FLOAT;
+        } else {
+            return null;
+        }
+        return new AudioFormat(encoding, sampleRate, bits, channels, blockAlign, sampleRate, false);
+    }
+
+    private static int fourCC(String id) {
+        return (id.charAt(0)) | (id.charAt(1) << 8) | (id.charAt(2) << 16) | (id.charAt(3) << 24);
+    }
+}
+
+/**
+ * Decoded Audio Cache - Keeps decoded PCM of recent and queued tracks in temp files that are
+ * memory-mapped on open. Entries are evicted least-recently-used once the total exceeds the limit.
+ */
+class DecodedAudioCache {
+    private final Path directory;
+    private final long maxBytes;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    public DecodedAudioCache(long maxBytes) throws IOException {
+        this.maxBytes = maxBytes;
+        this.directory = Files.createTempDirectory("musicplayer-pcm");
+    }
+
+    /**
+     * Opens the track from the cache, decoding from disk only past the cached prefix.
+     * When {@code headSeconds} is positive that much audio is decoded into the cache right away.
+     */
+    public CachedTrack open(String filePath, int headSeconds) 
+            throws IOException, UnsupportedAudioFileException {
+        File file = new File(filePath);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(filePath);
+            if (entry != null && (entry.lastModified != file.lastModified() 
+                    || entry.sourceSize != file.length())) {
+                remove(entry);
+                entry = null;
+            }
+            if (entry != null) {
+                entry.references++;
+            }
+        }
+
+        AudioInputStream stream = null;
+        if (entry == null) {
+            stream = AudioSystem.getAudioInputStream(file);
+            entry = new Entry(filePath, Files.createTempFile(directory, "track", ".pcm"), 
+                file.lastModified(), file.length(), stream.getFormat(), stream.getFrameLength());
+            entry.references = 1;
+            synchronized (this) {
+                Entry existing = entries.put(filePath, entry);
+                if (existing != null) {
+                    remove(existing);
+                }
+            }
+        }
+
+        CachedTrack track = new CachedTrack(this, entry, stream);
+        if (headSeconds > 0) {
+            AudioFormat format = entry.format;
+            long headBytes = (long) (format.getFrameRate() * headSeconds) * format.getFrameSize();
+            track.prefill(headBytes);
+        }
+        return track;
+    }
+
+    synchronized void release(Entry entry) {
+        entry.references--;
+        if (entry.removed && entry.references == 0) {
+            delete(entry);
+        }
+    }
+
+    /**
+     * Records bytes appended to an entry and evicts idle entries if the cache is over its limit.
+     * Returns false when the entry may not grow any further.
+     */
+    synchronized boolean grow(Entry entry, long bytes) {
+        if (entry.removed || entry.length + bytes > maxBytes / 2) {
+            return false;
+        }
+        entry.length += bytes;
+        totalBytes += bytes;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Entry candidate = eldest.next();
+            if (candidate.references == 0) {
+                eldest.remove();
+                candidate.removed = true;
+                totalBytes -= candidate.length;
+                delete(candidate);
+            }
+        }
+        return true;
+    }
+
+    public synchronized void close() {
+        for (Entry entry : entries.values()) {
+            delete(entry);
+        }
+        entries.clear();
+        totalBytes = 0;
+        try {
+            Files.deleteIfExists(directory);
+        } catch (IOException ex) {
+            directory.toFile().deleteOnExit();
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.filePath, entry);
+        entry.removed = true;
+        totalBytes -= entry.length;
+        if (entry.references == 0) {
+            delete(entry);
+        }
+    }
+
+    private void delete(Entry entry) {
+        try {
+            Files.deleteIfExists(entry.file);
+        } catch (IOException ex) {
+            // Still mapped on some platforms; removed when the JVM exits
+            entry.file.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * Entry - One cached track; {@code length} bytes of PCM from the start of the track
+     */
+    static class Entry {
+        final String filePath;
+        final Path file;
+        final long lastModified;
+        final long sourceSize;
+        final AudioFormat format;
+        final long frameLength;
+        final AtomicBoolean writing = new AtomicBoolean();
+        volatile long length;
+        volatile boolean complete;
+        int references;
+        boolean removed;
+
+        Entry(String filePath, Path file, long lastModified, long sourceSize, 
+              AudioFormat format, long frameLength) {
+            this.filePath = filePath;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.sourceSize = sourceSize;
+            this.format = format;
+            this.frameLength = frameLength;
+        }
+    }
+}
+
+/**
+ * Cached Track - Plays the cached prefix of a track from a memory-mapped file and continues
+ * decoding from disk after it, appending what it decodes so the next play is fully cached.
+ */
+class CachedTrack implements PcmSource {
+    private final DecodedAudioCache cache;
+    private final DecodedAudioCache.Entry entry;
+    private final int frameSize;
+    private MappedByteBuffer mapped;
+    private AudioInputStream stream;
+    private long streamPosition;
+    private FileChannel writer;
+    private long bytePosition;
+    private boolean closed;
+
+    CachedTrack(DecodedAudioCache cache, DecodedAudioCache.Entry entry, AudioInputStream stream) 
+            throws IOException {
+        this.cache = cache;
+        this.entry = entry;
+        this.frameSize = Math.max(1, entry.format.getFrameSize());
+        this.stream = stream;
+        remap();
+    }
+
+    @Override public String getFilePath() { return entry.filePath; }
+    @Override public AudioFormat getFormat() { return entry.format; }
+    @Override public long getFrameLength() { return entry.frameLength; }
+    @Override public long getFramePosition() { return bytePosition / frameSize; }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (bytePosition >= mapped.limit() && bytePosition < entry.length) {
+            remap();
+        }
+        if (bytePosition < mapped.limit()) {
+            int count = (int) Math.min(length, mapped.limit() - bytePosition);
+            count -= count % frameSize;
+            mapped.get((int) bytePosition, buffer, offset, count);
+            bytePosition += count;
+            return count;
+        }
+        if (entry.complete) {
+            return -1;
+        }
+
+        positionStream(bytePosition);
+        int count = stream.read(buffer, offset, length);
+        if (count <= 0) {
+            if (count == -1 && writer != null && streamPosition == entry.length) {
+                entry.complete = true;
+            }
+            return count;
+        }
+        streamPosition += count;
+        bytePosition += count;
+        append(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public ByteBuffer readSlice(int maxLength) throws IOException {
+        if (bytePosition >= mapped.limit() && bytePosition < entry.length) {
+            remap();
+        }
+        if (bytePosition >= mapped.limit()) {
+            return null;
+        }
+        int count = (int) Math.min(maxLength, mapped.limit() - bytePosition);
+        count -= count % frameSize;
+        ByteBuffer slice = mapped.slice((int) bytePosition, count);
+        bytePosition += count;
+        return slice;
+    }
+
+    @Override
+    public void seekToFrame(long frame) {
+        if (entry.frameLength != AudioSystem.NOT_SPECIFIED) {
+            frame = Math.min(frame, entry.frameLength);
+        }
+        bytePosition = Math.max(0, frame) * frameSize;
+    }
+
+    /**
+     * Decodes up to {@code bytes} from the start of the track into the cache without
+     * moving the read position.
+     */
+    void prefill(long bytes) throws IOException {
+        byte[] scratch = new byte[64 * 1024 - (64 * 1024) % frameSize];
+        while (!entry.complete && entry.length < bytes) {
+            positionStream(entry.length);
+            if (writer == null) {
+                return; // Another track is filling this entry
+            }
+            int count = stream.read(scratch, 0, (int) Math.min(scratch.length, bytes - entry.length));
+            if (count == -1) {
+                entry.complete = true;
+            } else if (count > 0) {
+                streamPosition += count;
+                if (!append(scratch, 0, count)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Only the track holding the entry's writer flag appends, and only contiguous bytes
+    private boolean append(byte[] buffer, int offset, int count) throws IOException {
+        long position = entry.length;
+        if (writer == null || streamPosition - count != position) {
+            return false;
+        }
+        writer.write(ByteBuffer.wrap(buffer, offset, count), position);
+        if (!cache.grow(entry, count)) {
+            releaseWriter();
+            return false;
+        }
+        return true;
+    }
+
+    private void positionStream(long position) throws IOException {
+        if (stream == null || streamPosition > position) {
+            if (stream != null) {
+                stream.close();
+            }
+            try {
+                stream = AudioSystem.getAudioInputStream(new File(entry.filePath));
+            } catch (UnsupportedAudioFileException ex) {
+                throw new IOException("Cannot reopen " + entry.filePath, ex);
+            }
+            streamPosition = 0;
+        }
+        while (streamPosition < position) {
+            long skipped = stream.skip(position - streamPosition);
+            if (skipped <= 0) {
+                break;
+            }
+            streamPosition += skipped;
+        }
+        if (writer == null && streamPosition == entry.length && !entry.complete 
+                && entry.writing.compareAndSet(false, true)) {
+            writer = FileChannel.open(entry.file, StandardOpenOption.WRITE);
+        }
+    }
+
+    private void remap() throws IOException {
+        try (FileChannel channel = FileChannel.open(entry.file, StandardOpenOption.READ)) {
+            long size = Math.min(entry.length, Integer.MAX_VALUE);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    private void releaseWriter() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            entry.writing.set(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        releaseWriter();
+        if (stream != null) {
+            stream.close();
+        }
+        cache.release(entry);
+    }
+}
+
+/**
+ * ReplayGain Analyzer - Estimates the gain that brings a track to a common loudness.
+ * A simplified ReplayGain: the RMS level of 50 ms blocks is measured, the 95th percentile
+ * block is taken as the track loudness and compared against a -18 dBFS reference.
+ * No equal-loudness filter is applied.
+ */
+final class ReplayGainAnalyzer {
+    private static final double BLOCK_SECONDS = 0.05;
+    private static final double PERCENTILE = 0.95;
+    private static final double REFERENCE_DBFS = -18.0;
+    private static final double MIN_GAIN_DB = -24.0;
+    private static final double MAX_GAIN_DB = 12.0;
+    private static final int READ_SIZE = 64 * 1024;
+
+    private ReplayGainAnalyzer() {
+    }
+
+    /**
+     * Returns the track gain in dB, or NaN if the file does not decode to linear PCM.
+     */
+    static float analyze(String filePath) throws IOException, UnsupportedAudioFileException {
+        try (PcmSource track = PcmSource.open(filePath)) {
+            return analyze(track);
+        }
+    }
+
+    static float analyze(PcmSource track) throws IOException {
+        AudioFormat format = track.getFormat();
+        PcmCodec codec = PcmCodec.forFormat(format);
+        if (codec == null) {
+            return Float.NaN;
+        }
+        int frameSize = Math.max(1, format.getFrameSize());
+        int channels = Math.max(1, format.getChannels());
+        int sampleBytes = codec.getBytesPerSample();
+        long blockFrames = Math.max(1, Math.round(format.getSampleRate() * BLOCK_SECONDS));
+
+        byte[] buffer = new byte[READ_SIZE - READ_SIZE % frameSize];
+        double[] blockLevels = new double[256];
+        int blockCount = 0;
+        double sumSquares = 0;
+        long framesInBlock = 0;
+        int read;
+        while ((read = track.read(buffer, 0, buffer.length)) != -1) {
+            int end = read - read % frameSize;
+            for (int frame = 0; frame < end; frame += frameSize) {
+                for (int c = 0, pos = frame; c < channels; c++, pos += sampleBytes) {
+                    float sample = codec.read(buffer, pos);
+                    sumSquares += sample * sample;
+                }
+                if (++framesInBlock == blockFrames) {
+                    if (blockCount == blockLevels.length) {
+                        blockLevels = Arrays.copyOf(blockLevels, blockCount * 2);
+                    }
+                    blockLevels[blockCount++] = sumSquares / (blockFrames * channels);
+                    sumSquares = 0;
+                    framesInBlock = 0;
+                }
+            }
+        }
+        if (blockCount == 0) {
+            return Float.NaN;
+        }
+
+        Arrays.sort(blockLevels, 0, blockCount);
+        double meanSquare = blockLevels[(int) Math.min(blockCount - 1, Math.floor(blockCount * PERCENTILE))];
+        if (meanSquare <= 0) {
+            return 0; // Digital silence, leave it alone
+        }
+        double loudness = 10 * Math.log10(meanSquare);
+        double gain = REFERENCE_DBFS - loudness;
+        return (float) Math.max(MIN_GAIN_DB, Math.min(MAX_GAIN_DB, gain));
+    }
+}
+
+/**
+ * Audio Metadata - What the indexer learned about one file, stamped with the file's
+ * modification time and size so unchanged files are not probed again
+ */
+class AudioMetadata {
+    final String filePath;
+    final long lastModified;
+    final long size;
+    final int durationSeconds;
+    final int sampleRate;
+    final int bitDepth;
+    final String artist;
+    final String title;
+    final float replayGain;
+
+    AudioMetadata(String filePath, long lastModified, long size, int durationSeconds, int sampleRate, 
+                  int bitDepth, String artist, String title, float replayGain) {
+        this.filePath = filePath;
+        this.lastModified = lastModified;
+        this.size = size;
+        this.durationSeconds = durationSeconds;
+        this.sampleRate = sampleRate;
+        this.bitDepth = bitDepth;
+        this.artist = artist;
+        this.title = title;
+        this.replayGain = replayGain;
+    }
+}
+
+/**
+ * Metadata Indexer - Probes audio files on a background thread and stores the results.
+ * Duration, format, artist and title come from the WAV header and INFO tags, the audio
+ * file format properties, or an "Artist - Title" file name, in that order; the ReplayGain
+ * analysis runs in the same pass. Results are written in batches and handed to a listener.
+ */
+class MetadataIndexer {
+    private static final int BATCH_SIZE = 64;
+
+    private final PlaylistManager playlistManager;
+    private final java.util.function.Consumer<java.util.List<AudioMetadata>> listener;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "metadata-indexer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * The listener is called on the indexer thread after each batch has been stored.
+     */
+    public MetadataIndexer(PlaylistManager playlistManager, java.util.function.Consumer<java.util.List<AudioMetadata>> listener) {
+        this.playlistManager = playlistManager;
+        this.listener = listener;
+    }
+
+    /**
+     * Re-indexes every file that changed or was never indexed.
+     */
+    public void scanLibrary() {
+        executor.execute(() -> {
+            try {
+                indexFiles(playlistManager.getFilesWithStaleMetadata());
+            } catch (SQLException ex) {
+                System.err.println("Error scanning library metadata: " + ex.getMessage());
+            }
+        });
+    }
+
+    public void index(String filePath) {
+        executor.execute(() -> indexFiles(Collections.singletonList(filePath)));
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void indexFiles(Collection<String> filePaths) {
+        java.util.List<AudioMetadata> batch = new ArrayList<>();
+        for (String filePath : filePaths) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                batch.add(probe(filePath));
+            } catch (IOException ex) {
+                System.err.println("Error reading metadata of " + filePath + ": " + ex.getMessage());
+            }
+            if (batch.size() == BATCH_SIZE) {
+                store(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        store(batch);
+    }
+
+    private void store(java.util.List<AudioMetadata> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            playlistManager.updateMetadata(batch);
+            listener.accept(batch);
+        } catch (SQLException ex) {
+            System.err.println("Error storing metadata: " + ex.getMessage());
+        }
+    }
+
+    static AudioMetadata probe(String filePath) throws IOException {
+        File file = new File(filePath);
+        long lastModified = file.lastModified();
+        long size = file.length();
+        if (!file.isFile()) {
+            throw new IOException("File not found");
+        }
+
+        double duration = 0;
+        int sampleRate = 0;
+        int bitDepth = 0;
+        String artist = null;
+        String title = null;
+
+        if (filePath.toLowerCase().endsWith(".wav")) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                WavHeader header = WavHeader.read(channel);
+                if (header != null) {
+                    AudioFormat format = header.format;
+                    sampleRate = Math.round(format.getSampleRate());
+                    bitDepth = format.getSampleSizeInBits();
+                    duration = (double) header.dataLength / format.getFrameSize() / format.getFrameRate();
+                }
+                Map<String, String> tags = WavHeader.readInfoTags(channel);
+                artist = tags.get("IART");
+                title = tags.get("INAM");
+            }
+        }
+
+        if (sampleRate == 0) {
+            try {
+                AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(file);
+                AudioFormat format = fileFormat.getFormat();
+                if (format.getSampleRate() > 0) {
+                    sampleRate = Math.round(format.getSampleRate());
+                }
+                bitDepth = Math.max(0, format.getSampleSizeInBits());
+                Object micros = fileFormat.getProperty("duration");
+                if (micros instanceof Long) {
+                    duration = (Long) micros / 1_000_000.0;
+                } else if (fileFormat.getFrameLength() > 0 && format.getFrameRate() > 0) {
+                    duration = fileFormat.getFrameLength() / format.getFrameRate();
+                }
+                if (artist == null && fileFormat.getProperty("author") instanceof String) {
+                    artist = (String) fileFormat.getProperty("author");
+                }
+                if (title == null && fileFormat.getProperty("title") instanceof String) {
+                    title = (String) fileFormat.getProperty("title");
+                }
+            } catch (UnsupportedAudioFileException ex) {
+                // No decoder for this type; fall back to the file name
+            }
+        }
+
+        if (artist == null || title == null) {
+            String baseName = file.getName();
+            int dot = baseName.lastIndexOf('.');
+            if (dot > 0) {
+                baseName = baseName.substring(0, dot);
+            }
+            int dash = baseName.indexOf(" - ");
+            if (dash > 0) {
+                if (artist == null) {
+                    artist = baseName.substring(0, dash).trim();
+                }
+                if (title == null) {
+                    title = baseName.substring(dash + 3).trim();
+                }
+            }
+        }
+
+        float replayGain;
+        try {
+            replayGain = ReplayGainAnalyzer.analyze(filePath);
+        } catch (UnsupportedAudioFileException ex) {
+            replayGain = Float.NaN;
+        }
+        return new AudioMetadata(filePath, lastModified, size, (int) Math.round(duration), sampleRate, 
+            bitDepth, artist, title, replayGain);
+    }
+}
+
+/**
+ * Waveform Summary - Min/max peaks of a track in a fixed number of buckets.
+ * Built in a single streaming pass; only the buckets are kept, never the decoded audio.
+ */
+class WaveformSummary {
+    static final int BUCKETS = 1000;
+    private static final int READ_SIZE = 64 * 1024;
+
+    // Interleaved min and max per bucket, scaled to -127..127
+    private final byte[] peaks;
+
+    private WaveformSummary(byte[] peaks) {
+        this.peaks = peaks;
+    }
+
+    static WaveformSummary fromBlob(byte[] blob) {
+        return blob == null || blob.length < 2 ? null : new WaveformSummary(blob);
+    }
+
+    byte[] toBlob() {
+        return peaks;
+    }
+
+    public int getBucketCount() {
+        return peaks.length / 2;
+    }
+
+    public float getMin(int bucket) {
+        return peaks[bucket * 2] / 127f;
+    }
+
+    public float getMax(int bucket) {
+        return peaks[bucket * 2 + 1] / 127f;
+    }
+
+    /**
+     * Scans the track once; returns null if it does not decode to linear PCM.
+     * When the length is unknown, buckets start at 100 ms and neighbours are merged
+     * whenever they run out, so the summary always fits in {@link #BUCKETS}.
+     */
+    static WaveformSummary compute(PcmSource track) throws IOException {
+        AudioFormat format = track.getFormat();
+        PcmCodec codec = PcmCodec.forFormat(format);
+        if (codec == null) {
+            return null;
+        }
+        int frameSize = Math.max(1, format.getFrameSize());
+        int channels = Math.max(1, format.getChannels());
+        int sampleBytes = codec.getBytesPerSample();
+        long length = track.getFrameLength();
+        long bucketFrames = length > 0 ? (length + BUCKETS - 1) / BUCKETS 
+                                       : Math.max(1, (long) (format.getFrameRate() / 10));
+
+        float[] mins = new float[BUCKETS];
+        float[] maxs = new float[BUCKETS];
+        int bucket = 0;
+        long framesInBucket = 0;
+        byte[] buffer = new byte[READ_SIZE - READ_SIZE % frameSize];
+        int read;
+        while ((read = track.read(buffer, 0, buffer.length)) != -1) {
+            int end = read - read % frameSize;
+            for (int frame = 0; frame < end; frame += frameSize) {
+                if (bucket == BUCKETS) {
+                    // Merged lazily so a track that ends exactly on the last bucket keeps them all
+                    bucket = mergePairs(mins, maxs);
+                    bucketFrames *= 2;
+                }
+                float min = mins[bucket];
+                float max = maxs[bucket];
+                for (int c = 0, pos = frame; c < channels; c++, pos += sampleBytes) {
+                    float sample = codec.read(buffer, pos);
+                    if (sample < min) {
+                        min = sample;
+                    }
+                    if (sample > max) {
+                        max = sample;
+                    }
+                }
+                mins[bucket] = min;
+                maxs[bucket] = max;
+                if (++framesInBucket == bucketFrames) {
+                    framesInBucket = 0;
+                    bucket++;
+                }
+            }
+        }
+
+        int count = bucket + (framesInBucket > 0 ? 1 : 0);
+        if (count == 0) {
+            return null;
+        }
+        byte[] peaks = new byte[count * 2];
+        for (int i = 0; i < count; i++) {
+            peaks[i * 2] = (byte) Math.round(Math.max(-1f, mins[i]) * 127);
+            peaks[i * 2 + 1] = (byte) Math.round(Math.min(1f, maxs[i]) * 127);
+        }
+        return new WaveformSummary(peaks);
+    }
+
+    private static int mergePairs(float[] mins, float[] maxs) {
+        int half = mins.length / 2;
+        for (int i = 0; i < half; i++) {
+            mins[i] = Math.min(mins[i * 2], mins[i * 2 + 1]);
+            maxs[i] = Math.max(maxs[i * 2], maxs[i * 2 + 1]);
+        }
+        Arrays.fill(mins, half, mins.length, 0);
+        Arrays.fill(maxs, half, maxs.length, 0);
+        return half;
+    }
+}
+
+/**
+ * Waveform Service - Supplies waveform summaries from memory, the database or a fresh
+ * scan, on a small background pool. Requests for the same file share one computation.
+ */
+class WaveformService {
+    private static final int MEMORY_CACHE_SIZE = 32;
+
+    private final PlaylistManager playlistManager;
+    private final ExecutorService pool;
+    private final Map<String, CompletableFuture<WaveformSummary>> cache = 
+        new LinkedHashMap<String, CompletableFuture<WaveformSummary>>(MEMORY_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<WaveformSummary>> eldest) {
+                return size() > MEMORY_CACHE_SIZE;
+            }
+        };
+
+    public WaveformService(PlaylistManager playlistManager) {
+        this.playlistManager = playlistManager;
+        AtomicInteger threadCount = new AtomicInteger();
+        int threads = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "waveform-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Delivers the summary, or null if none could be made, to the callback on the event thread.
+     */
+    public void request(String filePath, java.util.function.Consumer<WaveformSummary> callback) {
+        get(filePath).whenComplete((summary, error) -> 
+            SwingUtilities.invokeLater(() -> callback.accept(error == null ? summary : null)));
+    }
+
+    /**
+     * Starts computing the summary ahead of time, e.g. for the queued next song.
+     */
+    public void prefetch(String filePath) {
+        get(filePath);
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private CompletableFuture<WaveformSummary> get(String filePath) {
+        synchronized (cache) {
+            CompletableFuture<WaveformSummary> future = cache.get(filePath);
+            if (future == null || future.isCompletedExceptionally()) {
+                future = CompletableFuture.supplyAsync(() -> load(filePath), pool);
+                cache.put(filePath, future);
+            }
+            return future;
+        }
+    }
+
+    private WaveformSummary load(String filePath) {
+        File file = new File(filePath);
+        long lastModified = file.lastModified();
+        long size = file.length();
+        try {
+            WaveformSummary stored = WaveformSummary.fromBlob(
+                playlistManager.getWaveform(filePath, lastModified, size));
+            if (stored != null) {
+                return stored;
+            }
+            WaveformSummary summary;
+            try (PcmSource track = PcmSource.open(filePath)) {
+                summary = WaveformSummary.compute(track);
+            }
+            if (summary != null) {
+                playlistManager.saveWaveform(filePath, lastModified, size, summary.toBlob());
+            }
+            return summary;
+        } catch (Exception ex) {
+            System.err.println("Error building waveform of " + filePath + ": " + ex.getMessage());
+            throw new CompletionException(ex);
+        }
+    }
+}
+
+/**
+ * Waveform Slider - A progress slider that draws the track's waveform behind its knob,
+ * with the part already played highlighted.
+ */
+class WaveformSlider extends JSlider {
+    private static final Color PLAYED_COLOR = new Color(70, 130, 180);
+    private static final Color UNPLAYED_COLOR = new Color(190, 190, 190);
+    private static final int TRACK_MARGIN = 8;
+
+    private WaveformSummary waveform;
+
+    public WaveformSlider(int min, int max, int value) {
+        super(min, max, value);
+        setOpaque(false);
+    }
+
+    public void setWaveform(WaveformSummary waveform) {
+        this.waveform = waveform;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+        WaveformSummary summary = waveform;
+        if (summary != null) {
+            paintWaveform(g, summary);
+        }
+        super.paintComponent(g);
+    }
+
+    private void paintWaveform(Graphics g, WaveformSummary summary) {
+        Insets insets = getInsets();
+        int left = insets.left + TRACK_MARGIN;
+        int width = getWidth() - left - insets.right - TRACK_MARGIN;
+        int height = getHeight() - insets.top - insets.bottom;
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        int middle = insets.top + height / 2;
+        float amplitude = height / 2f - 1;
+        int range = Math.max(1, getMaximum() - getMinimum());
+        int playedWidth = (int) ((long) (getValue() - getMinimum()) * width / range);
+        int buckets = summary.getBucketCount();
+
+        for (int x = 0; x < width; x++) {
+            int first = (int) ((long) x * buckets / width);
+            int last = Math.max(first + 1, (int) ((long) (x + 1) * buckets / width));
+            float min = 0;
+            float max = 0;
+            for (int b = first; b < last && b < buckets; b++) {
+                min = Math.min(min, summary.getMin(b));
+                max = Math.max(max, summary.getMax(b));
+            }
+            g.setColor(x < playedWidth ? PLAYED_COLOR : UNPLAYED_COLOR);
+            g.drawLine(left + x, middle - Math.round(max * amplitude), 
+                       left + x, middle - Math.round(min * amplitude));
+        }
+    }
+}
+
+/**
+ * Audio Fingerprint - Identifies a file by its bytes and, loosely, by its sound.
+ * The content hash is a SHA-256 of the whole file. The spectral fingerprint is a 64-bit
+ * hash of the first minute after any leading silence: the minute is split into four
+ * windows, each band's mean log energy is compared with the next band's (60 bits), and
+ * each window's loudness with the average (4 bits). Comparisons of ratios survive gain
+ * changes, re-encoding and resampling, so copies of a track land a few bits apart.
+ */
+class AudioFingerprint {
+    static final long NO_FINGERPRINT = 0;
+    private static final int FFT_SIZE = 2048;
+    private static final int BANDS = 16;
+    private static final int WINDOWS = 4;
+    private static final int MAX_SECONDS = 60;
+    private static final float LOW_FREQUENCY = 100;
+    private static final float HIGH_FREQUENCY = 8000;
+    private static final double SILENCE_MEAN_SQUARE = 1e-5;
+    private static final int HASH_BUFFER_SIZE = 1 << 20;
+    private static final int READ_SIZE = 64 * 1024;
+
+    final String filePath;
+    final long lastModified;
+    final long size;
+    final String contentHash;
+    final long fingerprint;
+    final int durationSeconds;
+
+    AudioFingerprint(String filePath, long lastModified, long size, String contentHash, 
+                     long fingerprint, int durationSeconds) {
+        this.filePath = filePath;
+        this.lastModified = lastModified;
+        this.size = size;
+        this.contentHash = contentHash;
+        this.fingerprint = fingerprint;
+        this.durationSeconds = durationSeconds;
+    }
+
+    boolean hasFingerprint() {
+        return fingerprint != NO_FINGERPRINT;
+    }
+
+    boolean isCurrent(File file) {
+        return file.lastModified() == lastModified && file.length() == size;
+    }
+
+    static AudioFingerprint compute(String filePath) throws IOException {
+        File file = new File(filePath);
+        long lastModified = file.lastModified();
+        long size = file.length();
+        String contentHash = hashContent(file);
+        long fingerprint = NO_FINGERPRINT;
+        int duration = -1;
+        try (PcmSource track = PcmSource.open(filePath)) {
+            AudioFormat format = track.getFormat();
+            if (track.getFrameLength() > 0 && format.getFrameRate() > 0) {
+                duration = Math.round(track.getFrameLength() / format.getFrameRate());
+            }
+            fingerprint = fingerprint(track);
+        } catch (UnsupportedAudioFileException ex) {
+            // Only exact copies can be found for files we cannot decode
+        }
+        return new AudioFingerprint(filePath, lastModified, size, contentHash, fingerprint, duration);
+    }
+
+    static int hammingDistance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    private static String hashContent(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static long fingerprint(PcmSource track) throws IOException {
+        AudioFormat format = track.getFormat();
+        PcmCodec codec = PcmCodec.forFormat(format);
+        if (codec == null) {
+            return NO_FINGERPRINT;
+        }
+        float sampleRate = format.getSampleRate();
+        int frameSize = Math.max(1, format.getFrameSize());
+        int channels = Math.max(1, format.getChannels());
+        int sampleBytes = codec.getBytesPerSample();
+        int maxBlocks = (int) (sampleRate * MAX_SECONDS / FFT_SIZE);
+        int[] bandEdges = bandEdges(sampleRate);
+
+        float[][] blockBands = new float[maxBlocks][];
+        int blocks = 0;
+        float[] window = hannWindow();
+        float[] real = new float[FFT_SIZE];
+        float[] imaginary = new float[FFT_SIZE];
+        float[] mono = new float[FFT_SIZE];
+        int filled = 0;
+        boolean started = false;
+
+        byte[] buffer = new byte[READ_SIZE - READ_SIZE % frameSize];
+        int read;
+        while (blocks < maxBlocks && (read = track.read(buffer, 0, buffer.length)) != -1) {
+            int end = read - read % frameSize;
+            for (int frame = 0; frame < end && blocks < maxBlocks; frame += frameSize) {
+                float sum = 0;
+                for (int c = 0, pos = frame; c < channels; c++, pos += sampleBytes) {
+                    sum += codec.read(buffer, pos);
+                }
+                mono[filled++] = sum / channels;
+                if (filled < FFT_SIZE) {
+                    continue;
+                }
+                filled = 0;
+                if (!started) {
+                    double meanSquare = 0;
+                    for (float sample : mono) {
+                        meanSquare += sample * sample;
+                    }
+                    started = meanSquare / FFT_SIZE >= SILENCE_MEAN_SQUARE;
+                    if (!started) {
+                        continue; // Leading silence differs between rips of the same track
+                    }
+                }
+                for (int i = 0; i < FFT_SIZE; i++) {
+                    real[i] = mono[i] * window[i];
+                    imaginary[i] = 0;
+                }
+                fft(real, imaginary);
+                float[] bands = new float[BANDS];
+                for (int band = 0; band < BANDS; band++) {
+                    double energy = 0;
+                    for (int bin = bandEdges[band]; bin < bandEdges[band + 1]; bin++) {
+                        energy += real[bin] * real[bin] + imaginary[bin] * imaginary[bin];
+                    }
+                    bands[band] = (float) energy;
+                }
+                blockBands[blocks++] = bands;
+            }
+        }
+        if (blocks < WINDOWS * 2) {
+            return NO_FINGERPRINT; // Too short or silent to say anything useful
+        }
+
+        double[][] profile = new double[WINDOWS][BANDS];
+        double[] loudness = new double[WINDOWS];
+        double meanLoudness = 0;
+        for (int w = 0; w < WINDOWS; w++) {
+            int from = w * blocks / WINDOWS;
+            int to = (w + 1) * blocks / WINDOWS;
+            for (int band = 0; band < BANDS; band++) {
+                double total = 0;
+                for (int b = from; b < to; b++) {
+                    total += blockBands[b][band];
+                }
+                profile[w][band] = Math.log10(total / (to - from) + 1e-12);
+                loudness[w] += total;
+            }
+            loudness[w] = Math.log10(loudness[w] / (to - from) + 1e-12);
+            meanLoudness += loudness[w] / WINDOWS;
+        }
+
+        long hash = 0;
+        int bit = 0;
+        for (int w = 0; w < WINDOWS; w++) {
+            for (int band = 0; band < BANDS - 1; band++, bit++) {
+                if (profile[w][band] > profile[w][band + 1]) {
+                    hash |= 1L << bit;
+                }
+            }
+        }
+        for (int w = 0; w < WINDOWS; w++, bit++) {
+            if (loudness[w] > meanLoudness) {
+                hash |= 1L << bit;
+            }
+        }
+        return hash == NO_FINGERPRINT ? 1 : hash;
+    }
+
+    // Log-spaced band edges in FFT bins, each band at least one bin wide
+    private static int[] bandEdges(float sampleRate) {
+        int[] edges = new int[BANDS + 1];
+        double high = Math.min(HIGH_FREQUENCY, sampleRate * 0.45);
+        double ratio = Math.pow(high / LOW_FREQUENCY, 1.0 / BANDS);
+        for (int band = 0; band <= BANDS; band++) {
+            double frequency = LOW_FREQUENCY * Math.pow(ratio, band);
+            int bin = (int) Math.round(frequency * FFT_SIZE / sampleRate);
+            edges[band] = band == 0 ? Math.max(1, bin) : Math.max(edges[band - 1] + 1, bin);
+        }
+        return edges;
+    }
+
+    private static float[] hannWindow() {
+        float[] window = new float[FFT_SIZE];
+        for (int i = 0; i < FFT_SIZE; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (FFT_SIZE - 1)));
+        }
+        return window;
+    }
+
+    // In-place iterative radix-2 FFT
+    private static void fft(float[] real, float[] imaginary) {
+        int n = real.length;
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                float t = real[i]; real[i] = real[j]; real[j] = t;
+                t = imaginary[i]; imaginary[i] = imaginary[j]; imaginary[j] = t;
+            }
+        }
+        for (int length = 2; length <= n; length <<= 1) {
+            double angle = -2 * Math.PI / length;
+            float stepReal = (float) Math.cos(angle);
+            float stepImaginary = (float) Math.sin(angle);
+            for (int start = 0; start < n; start += length) {
+                float wReal = 1;
+                float wImaginary = 0;
+                for (int k = 0; k < length / 2; k++) {
+                    int a = start + k;
+                    int b = a + length / 2;
+                    float tReal = real[b] * wReal - imaginary[b] * wImaginary;
+                    float tImaginary = real[b] * wImaginary + imaginary[b] * wReal;
+                    real[b] = real[a] - tReal;
+                    imaginary[b] = imaginary[a] - tImaginary;
+                    real[a] += tReal;
+                    imaginary[a] += tImaginary;
+                    float nextReal = wReal * stepReal - wImaginary * stepImaginary;
+                    wImaginary = wReal * stepImaginary + wImaginary * stepReal;
+                    wReal = nextReal;
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Duplicate Group - Files that hold the same track, with every playlist entry using them
+ */
+class DuplicateGroup {
+    final java.util.List<String> filePaths;
+    final java.util.List<SongSearchIndex.SearchResult> entries;
+    final boolean exact;
+    final String keepPath;
+
+    DuplicateGroup(java.util.List<String> filePaths, java.util.List<SongSearchIndex.SearchResult> entries, 
+                   boolean exact, String keepPath) {
+        this.filePaths = filePaths;
+        this.entries = entries;
+        this.exact = exact;
+        this.keepPath = keepPath;
+    }
+}
+
+/**
+ * Duplicate Detector - Finds files across all playlists that hold the same track.
+ * Fingerprints are computed in parallel on all cores and cached per file. Identical
+ * content hashes are exact duplicates; near matches are found through an index of the
+ * fingerprint split into six blocks, so any two fingerprints within five bits share a
+ * block and only files in the same buckets are compared.
+ */
+class DuplicateDetector {
+    static final int MAX_DISTANCE = 5;
+    private static final int INDEX_BLOCKS = MAX_DISTANCE + 1;
+    private static final int MAX_DURATION_DIFFERENCE = 3;
+    private static final int SAVE_BATCH_SIZE = 256;
+
+    private final PlaylistManager playlistManager;
+
+    public DuplicateDetector(PlaylistManager playlistManager) {
+        this.playlistManager = playlistManager;
+    }
+
+    /**
+     * Fingerprints any new or changed files and groups the duplicates. Progress is
+     * reported as (files done, files to fingerprint) from the calling thread.
+     */
+    public java.util.List<DuplicateGroup> findDuplicates(java.util.function.BiConsumer<Integer, Integer> progress) 
+            throws SQLException, InterruptedException {
+        Map<String, AudioFingerprint> stored = playlistManager.getFingerprints();
+        java.util.List<String> filePaths = new ArrayList<>();
+        java.util.List<String> missing = new ArrayList<>();
+        for (String filePath : playlistManager.getDistinctFilePaths()) {
+            File file = new File(filePath);
+            if (!file.isFile()) {
+                continue;
+            }
+            filePaths.add(filePath);
+            AudioFingerprint fingerprint = stored.get(filePath);
+            if (fingerprint == null || !fingerprint.isCurrent(file)) {
+                missing.add(filePath);
+            }
+        }
+        Map<String, AudioFingerprint> fingerprints = new HashMap<>(stored);
+        fingerprints.putAll(computeAll(missing, progress));
+
+        java.util.List<AudioFingerprint> files = new ArrayList<>();
+        for (String filePath : filePaths) {
+            AudioFingerprint fingerprint = fingerprints.get(filePath);
+            if (fingerprint != null) {
+                files.add(fingerprint);
+            }
+        }
+        return buildGroups(files, cluster(files));
+    }
+
+    /**
+     * Points every entry of each group at the kept file and drops entries that then
+     * repeat within a playlist. Returns the ids of the removed songs.
+     */
+    public java.util.List<Integer> merge(java.util.List<DuplicateGroup> groups) throws SQLException {
+        java.util.List<Integer> removed = new ArrayList<>();
+        for (DuplicateGroup group : groups) {
+            java.util.List<String> others = new ArrayList<>(group.filePaths);
+            others.remove(group.keepPath);
+            removed.addAll(playlistManager.mergeSongFiles(group.keepPath, others));
+        }
+        return removed;
+    }
+
+    private Map<String, AudioFingerprint> computeAll(java.util.List<String> filePaths, 
+            java.util.function.BiConsumer<Integer, Integer> progress) throws SQLException, InterruptedException {
+        Map<String, AudioFingerprint> results = new HashMap<>();
+        if (filePaths.isEmpty()) {
+            return results;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "fingerprinter");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        try {
+            CompletionService<AudioFingerprint> completion = new ExecutorCompletionService<>(pool);
+            for (String filePath : filePaths) {
+                completion.submit(() -> AudioFingerprint.compute(filePath));
+            }
+            java.util.List<AudioFingerprint> batch = new ArrayList<>();
+            for (int done = 1; done <= filePaths.size(); done++) {
+                try {
+                    AudioFingerprint fingerprint = completion.take().get();
+                    results.put(fingerprint.filePath, fingerprint);
+                    batch.add(fingerprint);
+                } catch (ExecutionException ex) {
+                    System.err.println("Error fingerprinting file: " + ex.getCause().getMessage());
+                }
+                if (batch.size() == SAVE_BATCH_SIZE || done == filePaths.size()) {
+                    playlistManager.saveFingerprints(batch);
+                    batch.clear();
+                    progress.accept(done, filePaths.size());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    // Union-find over file indices: exact matches by hash, near matches through the block index
+    private int[] cluster(java.util.List<AudioFingerprint> files) {
+        int[] parent = new int[files.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        Map<String, Integer> byHash = new HashMap<>();
+        Map<Long, java.util.List<Integer>> index = new HashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            AudioFingerprint file = files.get(i);
+            Integer same = byHash.putIfAbsent(file.contentHash, i);
+            if (same != null) {
+                union(parent, same, i);
+                continue; // Its copy is already in the index
+            }
+            if (!file.hasFingerprint()) {
+                continue;
+            }
+            for (int block = 0; block < INDEX_BLOCKS; block++) {
+                long key = ((long) block << 32) | blockValue(file.fingerprint, block);
+                java.util.List<Integer> bucket = index.computeIfAbsent(key, k -> new ArrayList<>(2));
+                for (int other : bucket) {
+                    if (find(parent, other) != find(parent, i) && isNearMatch(file, files.get(other))) {
+                        union(parent, other, i);
+                    }
+                }
+                bucket.add(i);
+            }
+        }
+        return parent;
+    }
+
+    private static long blockValue(long fingerprint, int block) {
+        int bits = 64 / INDEX_BLOCKS;
+        int shift = block * bits;
+        int width = block == INDEX_BLOCKS - 1 ? 64 - shift : bits;
+        return (fingerprint >>> shift) & ((1L << width) - 1);
+    }
+
+    private static boolean isNearMatch(AudioFingerprint a, AudioFingerprint b) {
+        if (a.durationSeconds >= 0 && b.durationSeconds >= 0 
+                && Math.abs(a.durationSeconds - b.durationSeconds) > MAX_DURATION_DIFFERENCE) {
+            return false;
+        }
+        return AudioFingerprint.hammingDistance(a.fingerprint, b.fingerprint) <= MAX_DISTANCE;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        parent[find(parent, b)] = find(parent, a);
+    }
+
+    private java.util.List<DuplicateGroup> buildGroups(java.util.List<AudioFingerprint> files, int[] parent) 
+            throws SQLException {
+        Map<Integer, java.util.List<AudioFingerprint>> clusters = new LinkedHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            clusters.computeIfAbsent(find(parent, i), k -> new ArrayList<>()).add(files.get(i));
+        }
+        Map<String, java.util.List<AudioFingerprint>> clusterByFile = new HashMap<>();
+        for (java.util.List<AudioFingerprint> cluster : clusters.values()) {
+            if (cluster.size() > 1) {
+                for (AudioFingerprint file : cluster) {
+                    clusterByFile.put(file.filePath, cluster);
+                }
+            }
+        }
+        if (clusterByFile.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        Map<java.util.List<AudioFingerprint>, java.util.List<SongSearchIndex.SearchResult>> entries = 
+            new IdentityHashMap<>();
+        playlistManager.forEachSongWithFile(clusterByFile.keySet(), (playlistName, song) -> 
+            entries.computeIfAbsent(clusterByFile.get(song.getFilePath()), k -> new ArrayList<>())
+                .add(new SongSearchIndex.SearchResult(song.getId(), playlistName, song)));
+
+        java.util.List<DuplicateGroup> groups = new ArrayList<>();
+        for (java.util.List<AudioFingerprint> cluster : clusters.values()) {
+            java.util.List<SongSearchIndex.SearchResult> clusterEntries = entries.get(cluster);
+            if (cluster.size() < 2 || clusterEntries == null) {
+                continue;
+            }
+            java.util.List<String> filePaths = new ArrayList<>();
+            boolean exact = true;
+            for (AudioFingerprint file : cluster) {
+                filePaths.add(file.filePath);
+                exact &= file.contentHash.equals(cluster.get(0).contentHash);
+            }
+            groups.add(new DuplicateGroup(filePaths, clusterEntries, exact, chooseKept(cluster, clusterEntries)));
+        }
+        return groups;
+    }
+
+    // Keeps the copy with the best format, then the largest file
+    private static String chooseKept(java.util.List<AudioFingerprint> cluster, 
+                                     java.util.List<SongSearchIndex.SearchResult> entries) {
+        Map<String, Long> quality = new HashMap<>();
+        for (SongSearchIndex.SearchResult entry : entries) {
+            quality.put(entry.song.getFilePath(), (long) entry.song.getSampleRate() * entry.song.getBitDepth());
+        }
+        AudioFingerprint best = cluster.get(0);
+        for (AudioFingerprint file : cluster) {
+            long fileQuality = quality.getOrDefault(file.filePath, 0L);
+            long bestQuality = quality.getOrDefault(best.filePath, 0L);
+            if (fileQuality > bestQuality || (fileQuality == bestQuality && file.size > best.size)) {
+                best = file;
+            }
+        }
+        return best.filePath;
+    }
+}
+
+/**
+ * Library Sync Service - Keeps the songs table in step with watched music folders.
+ * Every subdirectory is registered with a WatchService, since watches are not recursive.
+ * Events are debounced and handled in batches on one background thread. A file that
+ * disappears and shows up elsewhere with the same content hash is a move, and its playlist
+ * entries follow it; other deletions remove the songs, and new audio files are added to
+ * the playlist of the folder they appear in. Folders are reconciled against the database
+ * once when watching starts and again only if the watch queue overflows.
+ */
+class LibrarySyncService {
+    private static final long DEBOUNCE_MILLIS = 750;
+    private static final long MAX_BATCH_DELAY_MILLIS = 5000;
+    private static final long IDLE_POLL_MILLIS = 500;
+    private static final Set<String> AUDIO_EXTENSIONS = new HashSet<>(Arrays.asList("mp3", "wav", "flac"));
+
+    /**
+     * Sync Result - What one batch changed; delivered on the sync thread
+     */
+    static class SyncResult {
+        final java.util.List<SongSearchIndex.SearchResult> added = new ArrayList<>();
+        final java.util.List<Integer> removedSongIds = new ArrayList<>();
+        final Map<String, String> movedFiles = new LinkedHashMap<>();
+        final java.util.List<String> modifiedFiles = new ArrayList<>();
+
+        boolean isEmpty() {
+            return added.isEmpty() && removedSongIds.isEmpty() && movedFiles.isEmpty() && modifiedFiles.isEmpty();
+        }
+    }
+
+    private final PlaylistManager playlistManager;
+    private final java.util.function.Consumer<SyncResult> listener;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final Map<Path, String> folderPlaylists = new ConcurrentHashMap<>();
+    private final Thread thread = new Thread(this::run, "library-sync");
+    private WatchService watchService;
+    private volatile boolean running;
+
+    public LibrarySyncService(PlaylistManager playlistManager, java.util.function.Consumer<SyncResult> listener) {
+        this.playlistManager = playlistManager;
+        this.listener = listener;
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Starts watching the folders saved in the database.
+     */
+    public void start() throws IOException, SQLException {
+        watchService = FileSystems.getDefault().newWatchService();
+        running = true;
+        for (Map.Entry<String, String> folder : playlistManager.getWatchedFolders().entrySet()) {
+            Path root = Paths.get(folder.getKey());
+            folderPlaylists.put(root, folder.getValue());
+            tasks.add(() -> startWatching(root));
+        }
+        thread.start();
+    }
+
+    public void watchFolder(Path folder, String playlistName) throws SQLException {
+        Path root = folder.toAbsolutePath().normalize();
+        playlistManager.addWatchedFolder(root.toString(), playlistName);
+        folderPlaylists.put(root, playlistName);
+        tasks.add(() -> startWatching(root));
+    }
+
+    public void shutdown() {
+        running = false;
+        thread.interrupt();
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+        } catch (IOException ex) {
+            System.err.println("Error closing watch service: " + ex.getMessage());
+        }
+    }
+
+    private void run() {
+        Map<Path, WatchEvent.Kind<?>> pending = new LinkedHashMap<>();
+        Set<Path> overflowed = new LinkedHashSet<>();
+        long firstEvent = 0;
+        long lastEvent = 0;
+        try {
+            while (running) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                boolean idle = pending.isEmpty() && overflowed.isEmpty();
+                WatchKey key = watchService.poll(idle ? IDLE_POLL_MILLIS : DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                if (key != null) {
+                    collectEvents(key, pending, overflowed);
+                    if (idle) {
+                        firstEvent = now;
+                    }
+                    lastEvent = now;
+                    if (now - firstEvent < MAX_BATCH_DELAY_MILLIS) {
+                        continue; // Keep collecting until the folder goes quiet
+                    }
+                }
+                if (!pending.isEmpty() || !overflowed.isEmpty()) {
+                    if (now - lastEvent >= DEBOUNCE_MILLIS || now - firstEvent >= MAX_BATCH_DELAY_MILLIS) {
+                        processBatch(pending, overflowed);
+                        pending.clear();
+                        overflowed.clear();
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Shutting down
+        }
+    }
+
+    private void collectEvents(WatchKey key, Map<Path, WatchEvent.Kind<?>> pending, Set<Path> overflowed) {
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (directory == null) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflowed.add(directory);
+            } else {
+                coalesce(pending, directory.resolve((Path) event.context()), event.kind());
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    /**
+     * Folds a new event into what is already pending for the path. Copying a file in
+     * reports a create and then modifies; it must still count as a create, and a file
+     * created and deleted within one batch never needs to be seen at all.
+     */
+    private static void coalesce(Map<Path, WatchEvent.Kind<?>> pending, Path path, WatchEvent.Kind<?> kind) {
+        WatchEvent.Kind<?> previous = pending.get(path);
+        if (previous == StandardWatchEventKinds.ENTRY_CREATE && kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+            return;
+        }
+        if (previous == StandardWatchEventKinds.ENTRY_CREATE && kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            pending.remove(path);
+            return;
+        }
+        pending.put(path, kind);
+    }
+
+    private void startWatching(Path root) {
+        try {
+            registerTree(root);
+            reconcile(root);
+        } catch (IOException | SQLException ex) {
+            System.err.println("Error watching " + root + ": " + ex.getMessage());
+        }
+    }
+
+    private void registerTree(Path root) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (java.util.stream.Stream<Path> tree = Files.walk(root)) {
+            for (Path directory : (Iterable<Path>) tree.filter(Files::isDirectory)::iterator) {
+                WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, 
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                directories.put(key, directory);
+            }
+        }
+    }
+
+    // Compares one folder with the database; used when watching starts and after an overflow
+    private void reconcile(Path folder) throws IOException, SQLException {
+        Set<String> onDisk = new LinkedHashSet<>();
+        if (Files.isDirectory(folder)) {
+            try (java.util.stream.Stream<Path> tree = Files.walk(folder)) {
+                tree.filter(this::isAudioFile).forEach(path -> onDisk.add(path.toString()));
+            }
+        }
+        Set<String> deleted = new LinkedHashSet<>();
+        Set<String> present = new LinkedHashSet<>();
+        for (String filePath : playlistManager.getSongFilesUnder(folder.toString() + File.separator)) {
+            if (onDisk.remove(filePath) || Files.exists(Paths.get(filePath))) {
+                present.add(filePath);
+            } else {
+                deleted.add(filePath);
+            }
+        }
+
+        // Known files need a current content hash, or a later move could not be recognized
+        Map<String, AudioFingerprint> stored = playlistManager.getFingerprints(present);
+        java.util.List<AudioFingerprint> fingerprints = new ArrayList<>();
+        for (String filePath : present) {
+            AudioFingerprint fingerprint = stored.get(filePath);
+            if (fingerprint == null || !fingerprint.isCurrent(new File(filePath))) {
+                fingerprint = fingerprint(filePath);
+                if (fingerprint != null) {
+                    fingerprints.add(fingerprint);
+                }
+            }
+        }
+        playlistManager.saveFingerprints(fingerprints);
+        apply(onDisk, deleted, Collections.emptySet());
+    }
+
+    private void processBatch(Map<Path, WatchEvent.Kind<?>> pending, Set<Path> overflowed) {
+        Set<String> created = new LinkedHashSet<>();
+        Set<String> deleted = new LinkedHashSet<>();
+        Set<String> modified = new LinkedHashSet<>();
+        try {
+            for (Path directory : overflowed) {
+                reconcile(directory);
+            }
+            for (Map.Entry<Path, WatchEvent.Kind<?>> entry : pending.entrySet()) {
+                Path path = entry.getKey();
+                if (Files.isDirectory(path)) {
+                    // A folder moved or copied in: watch it and pick up everything inside
+                    registerTree(path);
+                    try (java.util.stream.Stream<Path> tree = Files.walk(path)) {
+                        tree.filter(this::isAudioFile).forEach(file -> created.add(file.toString()));
+                    }
+                } else if (!Files.exists(path)) {
+                    if (isAudioFile(path)) {
+                        deleted.add(path.toString());
+                    } else {
+                        // Possibly a folder that was removed or moved away
+                        deleted.addAll(playlistManager.getSongFilesUnder(path.toString() + File.separator));
+                    }
+                } else if (isAudioFile(path)) {
+                    if (entry.getValue() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                        modified.add(path.toString());
+                    } else {
+                        created.add(path.toString());
+                    }
+                }
+            }
+            apply(created, deleted, modified);
+        } catch (IOException | SQLException ex) {
+            System.err.println("Error syncing library: " + ex.getMessage());
+        }
+    }
+
+    private void apply(Set<String> created, Set<String> deleted, Set<String> modified) throws SQLException {
+        SyncResult result = new SyncResult();
+        java.util.List<AudioFingerprint> fingerprints = new ArrayList<>();
+
+        // Deleted files are matched to new ones by size first, then by content hash
+        Map<Long, java.util.List<AudioFingerprint>> missingBySize = new HashMap<>();
+        for (AudioFingerprint missing : playlistManager.getFingerprints(deleted).values()) {
+            missingBySize.computeIfAbsent(missing.size, k -> new ArrayList<>()).add(missing);
+        }
+        for (String filePath : created) {
+            AudioFingerprint fingerprint = fingerprint(filePath);
+            if (fingerprint == null) {
+                continue;
+            }
+            fingerprints.add(fingerprint);
+            AudioFingerprint moved = takeMatch(missingBySize.get(fingerprint.size), fingerprint.contentHash);
+            if (moved != null) {
+                playlistManager.moveSongFile(moved.filePath, filePath);
+                deleted.remove(moved.filePath);
+                result.movedFiles.put(moved.filePath, filePath);
+            } else {
+                addToFolderPlaylist(filePath, result);
+            }
+        }
+        for (String filePath : deleted) {
+            result.removedSongIds.addAll(playlistManager.removeSongsWithFile(filePath));
+        }
+        for (String filePath : modified) {
+            if (created.contains(filePath)) {
+                continue;
+            }
+            AudioFingerprint fingerprint = fingerprint(filePath);
+            if (fingerprint != null) {
+                fingerprints.add(fingerprint);
+                result.modifiedFiles.add(filePath);
+                // The create may have landed in an earlier batch while the copy was still running
+                addToFolderPlaylist(filePath, result);
+            }
+        }
+        playlistManager.saveFingerprints(fingerprints);
+
+        if (!result.isEmpty()) {
+            listener.accept(result);
+        }
+    }
+
+    private void addToFolderPlaylist(String filePath, SyncResult result) throws SQLException {
+        String playlistName = playlistFor(Paths.get(filePath));
+        if (playlistName == null || playlistManager.hasSongWithFile(playlistName, filePath)) {
+            return;
+        }
+        String songName = Paths.get(filePath).getFileName().toString();
+        int songId = playlistManager.addSongToPlaylist(playlistName, songName, filePath);
+        Song song = new Song(songId, songName, filePath, 0, "Unknown Artist");
+        result.added.add(new SongSearchIndex.SearchResult(songId, playlistName, song));
+    }
+
+    // The innermost watched folder decides the playlist
+    private String playlistFor(Path file) {
+        for (Path folder = file.getParent(); folder != null; folder = folder.getParent()) {
+            String playlistName = folderPlaylists.get(folder);
+            if (playlistName != null) {
+                return playlistName;
+            }
+        }
+        return null;
+    }
+
+    private static AudioFingerprint takeMatch(java.util.List<AudioFingerprint> candidates, String contentHash) {
+        if (candidates != null) {
+            for (Iterator<AudioFingerprint> it = candidates.iterator(); it.hasNext(); ) {
+                AudioFingerprint candidate = it.next();
+                if (candidate.contentHash.equals(contentHash)) {
+                    it.remove();
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static AudioFingerprint fingerprint(String filePath) {
+        try {
+            return AudioFingerprint.compute(filePath);
+        } catch (IOException ex) {
+            System.err.println("Error hashing " + filePath + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private boolean isAudioFile(Path path) {
+        String name = path.getFileName() == null ? "" : path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && AUDIO_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase()) 
+            && !Files.isDirectory(path);
+    }
+}
+
+/**
+ * Activity Log - Keeps the most recent log lines in a fixed-size ring buffer.
+ * Any thread may append. Lines are stamped with a shared formatter and copied to an
+ * optional file sink; the listener runs on the Event Dispatch Thread at most once per
+ * burst of appends, and pulls only the lines added since its last refresh.
+ */
+class ActivityLog {
+    static final int DEFAULT_CAPACITY = 500;
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    /**
+     * Snapshot - Lines appended after a given sequence number
+     */
+    static class Snapshot {
+        final java.util.List<String> lines;
+        final long end;
+        final boolean truncated;
+
+        Snapshot(java.util.List<String> lines, long end, boolean truncated) {
+            this.lines = lines;
+            this.end = end;
+            this.truncated = truncated;
+        }
+    }
+
+    private final String[] lines;
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+    private final Runnable listener;
+    private final LogFileSink sink;
+    private long count;
+
+    /**
+     * The sink may be null when nothing is written to disk.
+     */
+    public ActivityLog(int capacity, LogFileSink sink, Runnable listener) {
+        this.lines = new String[capacity];
+        this.sink = sink;
+        this.listener = listener;
+    }
+
+    public int getCapacity() {
+        return lines.length;
+    }
+
+    public void append(String message) {
+        long now = System.currentTimeMillis();
+        String line = "[" + TIME_FORMAT.format(Instant.ofEpochMilli(now)) + "] " + message;
+        synchronized (this) {
+            lines[(int) (count % lines.length)] = line;
+            count++;
+        }
+        if (sink != null) {
+            sink.write(now, message);
+        }
+        if (refreshPending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(() -> {
+                refreshPending.set(false);
+                listener.run();
+            });
+        }
+    }
+
+    /**
+     * Returns the lines appended after sequence number {@code since}. When some of them
+     * have already been overwritten, the whole buffer is returned and marked truncated.
+     */
+    public synchronized Snapshot linesSince(long since) {
+        long first = Math.max(since, count - lines.length);
+        java.util.List<String> result = new ArrayList<>((int) (count - first));
+        for (long i = first; i < count; i++) {
+            result.add(lines[(int) (i % lines.length)]);
+        }
+        return new Snapshot(result, count, first > since);
+    }
+
+    public void close() {
+        if (sink != null) {
+            sink.close();
+        }
+    }
+}
+
+/**
+ * Log File Sink - Writes log lines to disk on a background thread.
+ * Callers never block: lines go into a bounded queue and are dropped, and counted, when
+ * the writer falls behind. The file is rotated to name.1 .. name.N once it passes the
+ * size limit, so disk use is bounded as well. If the disk write fails, the file is
+ * reopened after a growing delay while new lines keep being queued, or dropped, as usual.
+ */
+class LogFileSink {
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final long MIN_RETRY_MILLIS = 500;
+    private static final long MAX_RETRY_MILLIS = 30_000;
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final Path path;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread thread = new Thread(this::run, "activity-log-writer");
+    private volatile boolean running = true;
+    private OutputStream writer;
+    private long written;
+
+    public LogFileSink(Path path, long maxBytes, int maxFiles) {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    public void write(long timeMillis, String message) {
+        String line = TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(timeMillis)) + " " + message;
+        if (!queue.offer(line)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes whatever is still queued and stops the writer thread.
+     */
+    public void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        java.util.List<String> batch = new ArrayList<>();
+        long retryMillis = 0;
+        try {
+            while (running || !queue.isEmpty() || !batch.isEmpty()) {
+                try {
+                    if (retryMillis > 0) {
+                        Thread.sleep(retryMillis);
+                    } else {
+                        String line = queue.poll(1, TimeUnit.SECONDS);
+                        if (line == null) {
+                            continue;
+                        }
+                        batch.add(line);
+                    }
+                } catch (InterruptedException ex) {
+                    running = false;
+                }
+                // Lines held over from a failed write count against the queue's capacity
+                queue.drainTo(batch, Math.max(0, QUEUE_CAPACITY - batch.size()));
+                try {
+                    writeBatch(batch);
+                    retryMillis = 0;
+                } catch (IOException ex) {
+                    closeWriter();
+                    if (!running) {
+                        System.err.println("Error writing activity log " + path + ": " + ex.getMessage() 
+                            + "; " + batch.size() + " lines lost");
+                        return;
+                    }
+                    if (retryMillis == 0) {
+                        System.err.println("Error writing activity log " + path + ": " + ex.getMessage() 
+                            + "; retrying");
+                    }
+                    retryMillis = Math.min(MAX_RETRY_MILLIS, Math.max(MIN_RETRY_MILLIS, retryMillis * 2));
+                }
+            }
+        } finally {
+            closeWriter();
+        }
+    }
+
+    // Lines handed to the file are removed from the batch, so a retry writes only the rest
+    private void writeBatch(java.util.List<String> batch) throws IOException {
+        long missed = dropped.getAndSet(0);
+        if (missed > 0) {
+            batch.add(0, TIMESTAMP_FORMAT.format(Instant.now()) + " (" + missed + " log lines dropped)");
+        }
+        int done = 0;
+        try {
+            for (String line : batch) {
+                if (writer == null || written >= maxBytes) {
+                    openWriter();
+                }
+                byte[] bytes = (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+                writer.write(bytes);
+                written += bytes.length;
+                done++;
+            }
+            if (writer != null) {
+                writer.flush();
+            }
+        } finally {
+            batch.subList(0, done).clear();
+        }
+    }
+
+    private void openWriter() throws IOException {
+        boolean rotate = writer != null || (Files.exists(path) && Files.size(path) >= maxBytes);
+        closeWriter();
+        if (rotate) {
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path older = rotated(i);
+                if (Files.exists(older)) {
+                    Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(path, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        written = Files.exists(path) ? Files.size(path) : 0;
+        writer = new BufferedOutputStream(Files.newOutputStream(path, 
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+    }
+
+    private Path rotated(int index) {
+        return path.resolveSibling(path.getFileName() + "." + index);
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                System.err.println("Error closing activity log: " + ex.getMessage());
+            }
+            writer = null;
+        }
+    }
+}
+
+/**
+ * Play Queue - Playback order for a playlist snapshot, independent of the song table.
+ * Shuffle uses a pre-computed Fisher-Yates permutation, so the songs behind the current
+ * position are the play history; every navigation step is O(1).
+ */
+class PlayQueue {
+    enum RepeatMode { OFF, ONE, ALL }
+
+    private final Random random = new Random();
+    private final ArrayDeque<Song> upNext = new ArrayDeque<>();
+    private java.util.List<Song> songs = new ArrayList<>();
+    private String playlistName;
+    private int[] order = new int[0];
+    private int[] positionOf = new int[0];
+    private int[] nextPassOrder;
+    private int size;
+    private int position = -1;
+    private Song current;
+    private int currentIndex = -1;
+    private boolean shuffle;
+    private RepeatMode repeatMode = RepeatMode.OFF;
+
+    public void load(String playlistName, java.util.List<Song> songs) {
+        this.playlistName = playlistName;
+        this.songs = new ArrayList<>(songs);
+        this.size = songs.size();
+        this.current = null;
+        this.currentIndex = -1;
+        this.position = -1;
+        setOrder(shuffle ? shuffledOrder(-1) : identityOrder());
+    }
+
+    public void clear() {
+        load(null, Collections.emptyList());
+        upNext.clear();
+    }
+
+    public boolean isLoaded(String playlistName) {
+        return playlistName != null && playlistName.equals(this.playlistName);
+    }
+
+    public String getPlaylistName() { return playlistName; }
+    public Song getCurrent() { return current; }
+
+    /**
+     * Index of the current song in the playlist, or -1 if it was enqueued from elsewhere.
+     */
+    public int getCurrentIndex() { return currentIndex; }
+
+    public Song jumpTo(int index) {
+        if (index < 0 || index >= size) {
+            return null;
+        }
+        position = positionOf[index];
+        return setCurrent(index);
+    }
+
+    /**
+     * Adds a song that was appended to the playlist; it is played at the end of the current pass.
+     */
+    public void append(Song song) {
+        songs.add(song);
+        if (size == order.length) {
+            order = Arrays.copyOf(order, Math.max(4, size * 2));
+            positionOf = Arrays.copyOf(positionOf, order.length);
+        }
+        order[size] = size;
+        positionOf[size] = size;
+        size++;
+        nextPassOrder = null;
+    }
+
+    /**
+     * Brings the queue in line with a fresh read of its playlist without reshuffling. Songs
+     * that are gone are dropped, the rest keep their place in the play order and history,
+     * and new ones are played at the end of the current pass, as with {@link #append}.
+     */
+    public void update(java.util.List<Song> latest) {
+        Map<Integer, Integer> latestIndexOf = new HashMap<>();
+        for (int i = 0; i < latest.size(); i++) {
+            latestIndexOf.put(latest.get(i).getId(), i);
+        }
+        int[] newOrder = new int[latest.size()];
+        boolean[] placed = new boolean[latest.size()];
+        int kept = 0;
+        int newPosition = -1;
+        for (int p = 0; p < size; p++) {
+            Integer index = latestIndexOf.get(songs.get(order[p]).getId());
+            if (index != null && !placed[index]) {
+                placed[index] = true;
+                newOrder[kept++] = index;
+            }
+            if (p == position) {
+                newPosition = kept - 1; // a removed current song leaves the one before it
+            }
+        }
+        for (int i = 0; i < latest.size(); i++) {
+            if (!placed[i]) {
+                newOrder[kept++] = i;
+            }
+        }
+        Integer current = currentIndex >= 0 ? latestIndexOf.get(songs.get(currentIndex).getId()) : null;
+        this.songs = new ArrayList<>(latest);
+        this.size = latest.size();
+        setOrder(newOrder);
+        position = newPosition;
+        if (current != null) {
+            setCurrent(current); // picks up a moved file
+        } else {
+            currentIndex = -1; // still playing, but no longer in the playlist
+        }
+    }
+
+    public void enqueueNext(Song song) {
+        upNext.addLast(song);
+    }
+
+    /**
+     * The song {@link #next()} will return, without moving the queue.
+     */
+    public Song peekNext() {
+        if (current != null && repeatMode == RepeatMode.ONE) {
+            return current;
+        }
+        if (!upNext.isEmpty()) {
+            return upNext.peekFirst();
+        }
+        if (position + 1 < size) {
+            return songs.get(order[position + 1]);
+        }
+        if (repeatMode == RepeatMode.ALL && size > 0) {
+            return songs.get(getNextPassOrder()[0]);
+        }
+        return null;
+    }
+
+    /**
+     * Advances for automatic playback; repeat-one keeps the current song.
+     */
+    public Song next() {
+        if (current != null && repeatMode == RepeatMode.ONE) {
+            return current;
+        }
+        return skipNext();
+    }
+
+    /**
+     * Advances on user request, ignoring repeat-one.
+     */
+    public Song skipNext() {
+        if (!upNext.isEmpty()) {
+            current = upNext.pollFirst();
+            currentIndex = -1;
+            return current;
+        }
+        if (position + 1 >= size) {
+            if (repeatMode != RepeatMode.ALL || size == 0) {
+                return null;
+            }
+            setOrder(getNextPassOrder());
+            position = -1;
+        }
+        position++;
+        return setCurrent(order[position]);
+    }
+
+    public Song previous() {
+        if (position > 0) {
+            position--;
+        } else if (repeatMode == RepeatMode.ALL && size > 0) {
+            position = size - 1;
+        } else {
+            return null;
+        }
+        return setCurrent(order[position]);
+    }
+
+    /**
+     * Turning shuffle on keeps the current song and shuffles everything after it.
+     */
+    public void setShuffle(boolean shuffle) {
+        this.shuffle = shuffle;
+        if (shuffle) {
+            setOrder(shuffledOrder(currentIndex));
+            position = currentIndex >= 0 ? 0 : -1;
+        } else {
+            setOrder(identityOrder());
+            position = currentIndex;
+        }
+    }
+
+    public void setRepeatMode(RepeatMode repeatMode) {
+        this.repeatMode = repeatMode;
+    }
+
+    private Song setCurrent(int index) {
+        currentIndex = index;
+        current = songs.get(index);
+        return current;
+    }
+
+    // Drawn once when first peeked so that peekNext() and next() agree
+    private int[] getNextPassOrder() {
+        if (nextPassOrder == null) {
+            nextPassOrder = shuffle ? shuffledOrder(-1) : identityOrder();
+            if (shuffle && size > 1 && nextPassOrder[0] == order[size - 1]) {
+                // Do not start the new pass with the song that ended the last one
+                int swap = 1 + random.nextInt(size - 1);
+                nextPassOrder[0] = nextPassOrder[swap];
+                nextPassOrder[swap] = order[size - 1];
+            }
+        }
+        return nextPassOrder;
+    }
+
+    private void setOrder(int[] newOrder) {
+        order = newOrder;
+        positionOf = new int[newOrder.length];
+        for (int i = 0; i < size; i++) {
+            positionOf[newOrder[i]] = i;
+        }
+        nextPassOrder = null;
+    }
+
+    private int[] identityOrder() {
+        int[] identity = new int[size];
+        for (int i = 0; i < size; i++) {
+            identity[i] = i;
+        }
+        return identity;
+    }
+
+    // Fisher-Yates shuffle; the given index, if any, is moved to the front
+    private int[] shuffledOrder(int first) {
+        int[] permutation = identityOrder();
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = swap;
+        }
+        if (first >= 0) {
+            for (int i = 0; i < size; i++) {
+                if (permutation[i] == first) {
+                    permutation[i] = permutation[0];
+                    permutation[0] = first;
+                    break;
+                }
+            }
+        }
+        return permutation;
+    }
+}
+
+/**
+ * Playlist Manager - Manages playlists and songs with database integration
+ */
+class PlaylistManager {
+    private static final String SONG_COLUMNS = 
+        "s.id, s.name, s.file_path, s.duration, s.artist, s.replay_gain, s.title, s.sample_rate, s.bit_depth";
+    private DatabaseManager databaseManager;
+
+    public PlaylistManager(DatabaseManager databaseManager) {
+        this.databaseManager = databaseManager;
+    }
+
+    public void createPlaylist(String playlistName) throws SQLException {
+        if (playlistName == null || playlistName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Playlist name cannot be empty");
+        }
+
+        String sql = "INSERT INTO playlists (name, created_date) VALUES (?, ?)";
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, playlistName);
+            stmt.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+            stmt.executeUpdate();
         }
     }
 
@@ -542,64 +5244,509 @@ class PlaylistManager {
         String sql = "DELETE FROM playlists WHERE name = ?";
         try (Connection conn = databaseManager.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, playlistName);
+            stmt.setString(1, playlistName);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Adds the song and returns its generated id.
+     */
+    public int addSongToPlaylist(String playlistName, String songName, String filePath) 
+            throws SQLException {
+        String getPlaylistIdSql = "SELECT id FROM playlists WHERE name = ?";
+        int playlistId = -1;
+
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(getPlaylistIdSql)) {
+            stmt.setString(1, playlistName);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                playlistId = rs.getInt("id");
+            }
+        }
+
+        if (playlistId == -1) {
+            throw new SQLException("Playlist not found");
+        }
+
+        String addSongSql = "INSERT INTO songs (playlist_id, name, file_path, duration, artist) " +
+                           "VALUES (?, ?, ?, ?, ?)";
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(addSongSql)) {
+            stmt.setInt(1, playlistId);
+            stmt.setString(2, songName);
+            stmt.setString(3, filePath);
+            stmt.setInt(4, 0); // Duration would be read from file
+            stmt.setString(5, "Unknown Artist");
+            stmt.executeUpdate();
+            ResultSet keys = stmt.getGeneratedKeys();
+            return keys.next() ? keys.getInt(1) : -1;
+        }
+    }
+
+    public java.util.List<Song> getPlaylistSongs(String playlistName) throws SQLException {
+        java.util.List<Song> songs = new ArrayList<>();
+        String sql = "SELECT " + SONG_COLUMNS + " FROM songs s " +
+                    "JOIN playlists p ON s.playlist_id = p.id WHERE p.name = ? ORDER BY s.id";
+
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, playlistName);
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                songs.add(readSong(rs));
+            }
+        }
+
+        return songs;
+    }
+
+    public int getPlaylistSongCount(String playlistName) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM songs s " +
+                    "JOIN playlists p ON s.playlist_id = p.id WHERE p.name = ?";
+
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, playlistName);
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Returns at most {@code limit} songs of the playlist starting at row {@code offset},
+     * in the same order as {@link #getPlaylistSongs(String)}.
+     */
+    public java.util.List<Song> getPlaylistSongs(String playlistName, int offset, int limit) 
+            throws SQLException {
+        java.util.List<Song> songs = new ArrayList<>(limit);
+        String sql = "SELECT " + SONG_COLUMNS + " FROM songs s " +
+                    "JOIN playlists p ON s.playlist_id = p.id WHERE p.name = ? " +
+                    "ORDER BY s.id LIMIT ? OFFSET ?";
+
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, playlistName);
+            stmt.setInt(2, limit);
+            stmt.setInt(3, offset);
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                songs.add(readSong(rs));
+            }
+        }
+
+        return songs;
+    }
+
+    /**
+     * Returns the row of the song within its playlist, in {@link #getPlaylistSongs} order.
+     */
+    public int getSongRow(String playlistName, int songId) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM songs s JOIN playlists p ON s.playlist_id = p.id " +
+                    "WHERE p.name = ? AND s.id < ?";
+
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, playlistName);
+            stmt.setInt(2, songId);
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? rs.getInt(1) : -1;
+        }
+    }
+
+    /**
+     * Streams every song of every playlist to the consumer without holding them all in memory.
+     */
+    public void forEachSong(java.util.function.BiConsumer<String, Song> consumer) throws SQLException {
+        String sql = "SELECT " + SONG_COLUMNS + ", p.name AS playlist " +
+                    "FROM songs s JOIN playlists p ON s.playlist_id = p.id ORDER BY s.id";
+
+        try (Connection conn = databaseManager.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+
+            while (rs.next()) {
+                consumer.accept(rs.getString("playlist"), readSong(rs));
+            }
+        }
+    }
+
+    /**
+     * Streams the songs that refer to any of the given files.
+     */
+    public void forEachSongWithFile(Collection<String> filePaths, 
+                                    java.util.function.BiConsumer<String, Song> consumer) throws SQLException {
+        if (filePaths.isEmpty()) {
+            return;
+        }
+        String placeholders = String.join(",", Collections.nCopies(filePaths.size(), "?"));
+        String sql = "SELECT " + SONG_COLUMNS + ", p.name AS playlist " +
+                    "FROM songs s JOIN playlists p ON s.playlist_id = p.id " +
+                    "WHERE s.file_path IN (" + placeholders + ") ORDER BY s.id";
+
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int index = 1;
+            for (String filePath : filePaths) {
+                stmt.setString(index++, filePath);
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                consumer.accept(rs.getString("playlist"), readSong(rs));
+            }
+        }
+    }
+
+    /**
+     * Returns the files whose stored modification time or size no longer match the file
+     * on disk, or that have never been indexed. Missing files are left alone.
+     */
+    public Set<String> getFilesWithStaleMetadata() throws SQLException {
+        String sql = "SELECT file_path, file_mtime, file_size FROM songs";
+        Set<String> stale = new LinkedHashSet<>();
+        try (Connection conn = databaseManager.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                String filePath = rs.getString("file_path");
+                if (stale.contains(filePath)) {
+                    continue;
+                }
+                File file = new File(filePath);
+                if (file.isFile() && (file.lastModified() != rs.getLong("file_mtime") 
+                        || file.length() != rs.getLong("file_size"))) {
+                    stale.add(filePath);
+                }
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * Stores probed metadata on every row that refers to each file, in one transaction.
+     * A missing artist or title keeps whatever the row already has.
+     */
+    public void updateMetadata(java.util.List<AudioMetadata> batch) throws SQLException {
+        String sql = "UPDATE songs SET duration = ?, sample_rate = ?, bit_depth = ?, " +
+                    "artist = COALESCE(?, artist), title = COALESCE(?, title), replay_gain = ?, " +
+                    "file_mtime = ?, file_size = ? WHERE file_path = ?";
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                for (AudioMetadata metadata : batch) {
+                    stmt.setInt(1, metadata.durationSeconds);
+                    stmt.setInt(2, metadata.sampleRate);
+                    stmt.setInt(3, metadata.bitDepth);
+                    stmt.setString(4, metadata.artist);
+                    stmt.setString(5, metadata.title);
+                    if (Float.isNaN(metadata.replayGain)) {
+                        stmt.setNull(6, Types.REAL);
+                    } else {
+                        stmt.setFloat(6, metadata.replayGain);
+                    }
+                    stmt.setLong(7, metadata.lastModified);
+                    stmt.setLong(8, metadata.size);
+                    stmt.setString(9, metadata.filePath);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Returns the stored waveform peaks if they were computed from this version of the file.
+     */
+    public byte[] getWaveform(String filePath, long lastModified, long size) throws SQLException {
+        String sql = "SELECT peaks FROM waveforms WHERE file_path = ? AND file_mtime = ? AND file_size = ?";
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, filePath);
+            stmt.setLong(2, lastModified);
+            stmt.setLong(3, size);
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? rs.getBytes("peaks") : null;
+        }
+    }
+
+    public void saveWaveform(String filePath, long lastModified, long size, byte[] peaks) throws SQLException {
+        String sql = "INSERT OR REPLACE INTO waveforms (file_path, file_mtime, file_size, peaks) " +
+                    "VALUES (?, ?, ?, ?)";
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, filePath);
+            stmt.setLong(2, lastModified);
+            stmt.setLong(3, size);
+            stmt.setBytes(4, peaks);
             stmt.executeUpdate();
         }
     }
 
-    public void addSongToPlaylist(String playlistName, String songName, String filePath) 
-            throws SQLException {
-        String getPlaylistIdSql = "SELECT id FROM playlists WHERE name = ?";
-        int playlistId = -1;
+    public java.util.List<String> getDistinctFilePaths() throws SQLException {
+        java.util.List<String> filePaths = new ArrayList<>();
+        try (Connection conn = databaseManager.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT DISTINCT file_path FROM songs")) {
+            while (rs.next()) {
+                filePaths.add(rs.getString("file_path"));
+            }
+        }
+        return filePaths;
+    }
 
+    public Map<String, AudioFingerprint> getFingerprints() throws SQLException {
+        String sql = "SELECT file_path, file_mtime, file_size, content_hash, fingerprint, duration FROM fingerprints";
+        Map<String, AudioFingerprint> fingerprints = new HashMap<>();
         try (Connection conn = databaseManager.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(getPlaylistIdSql)) {
-            stmt.setString(1, playlistName);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                playlistId = rs.getInt("id");
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                AudioFingerprint fingerprint = readFingerprint(rs);
+                fingerprints.put(fingerprint.filePath, fingerprint);
             }
         }
+        return fingerprints;
+    }
 
-        if (playlistId == -1) {
-            throw new SQLException("Playlist not found");
+    public Map<String, AudioFingerprint> getFingerprints(Collection<String> filePaths) throws SQLException {
+        Map<String, AudioFingerprint> fingerprints = new HashMap<>();
+        if (filePaths.isEmpty()) {
+            return fingerprints;
+        }
+        String sql = "SELECT file_path, file_mtime, file_size, content_hash, fingerprint, duration " +
+                    "FROM fingerprints WHERE file_path = ?";
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (String filePath : filePaths) {
+                stmt.setString(1, filePath);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        fingerprints.put(filePath, readFingerprint(rs));
+                    }
+                }
+            }
         }
+        return fingerprints;
+    }
 
-        String addSongSql = "INSERT INTO songs (playlist_id, name, file_path, duration, artist) " +
-                           "VALUES (?, ?, ?, ?, ?)";
+    private static AudioFingerprint readFingerprint(ResultSet rs) throws SQLException {
+        return new AudioFingerprint(
+            rs.getString("file_path"),
+            rs.getLong("file_mtime"),
+            rs.getLong("file_size"),
+            rs.getString("content_hash"),
+            rs.getLong("fingerprint"),
+            rs.getInt("duration")
+        );
+    }
+
+    /**
+     * Returns watched folder paths with the playlist each one feeds.
+     */
+    public Map<String, String> getWatchedFolders() throws SQLException {
+        String sql = "SELECT w.path, p.name FROM watched_folders w JOIN playlists p ON w.playlist_id = p.id";
+        Map<String, String> folders = new LinkedHashMap<>();
         try (Connection conn = databaseManager.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(addSongSql)) {
-            stmt.setInt(1, playlistId);
-            stmt.setString(2, songName);
-            stmt.setString(3, filePath);
-            stmt.setInt(4, 0); // Duration would be read from file
-            stmt.setString(5, "Unknown Artist");
-            stmt.executeUpdate();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                folders.put(rs.getString("path"), rs.getString("name"));
+            }
         }
+        return folders;
     }
 
-    public java.util.List<Song> getPlaylistSongs(String playlistName) throws SQLException {
-        java.util.List<Song> songs = new ArrayList<>();
-        String sql = "SELECT s.name, s.file_path, s.duration, s.artist FROM songs s " +
-                    "JOIN playlists p ON s.playlist_id = p.id WHERE p.name = ?";
+    public void addWatchedFolder(String path, String playlistName) throws SQLException {
+        String sql = "INSERT OR REPLACE INTO watched_folders (path, playlist_id) " +
+                    "SELECT ?, id FROM playlists WHERE name = ?";
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, path);
+            stmt.setString(2, playlistName);
+            if (stmt.executeUpdate() == 0) {
+                throw new SQLException("Playlist not found");
+            }
+        }
+    }
 
+    /**
+     * Distinct song files whose path starts with the given folder prefix.
+     */
+    public java.util.List<String> getSongFilesUnder(String folderPrefix) throws SQLException {
+        String sql = "SELECT DISTINCT file_path FROM songs WHERE substr(file_path, 1, ?) = ?";
+        java.util.List<String> filePaths = new ArrayList<>();
         try (Connection conn = databaseManager.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, playlistName);
+            stmt.setInt(1, folderPrefix.length());
+            stmt.setString(2, folderPrefix);
             ResultSet rs = stmt.executeQuery();
-
             while (rs.next()) {
-                Song song = new Song(
-                    rs.getString("name"),
-                    rs.getString("file_path"),
-                    rs.getInt("duration"),
-                    rs.getString("artist")
-                );
-                songs.add(song);
+                filePaths.add(rs.getString("file_path"));
             }
         }
+        return filePaths;
+    }
 
-        return songs;
+    public boolean hasSongWithFile(String playlistName, String filePath) throws SQLException {
+        String sql = "SELECT 1 FROM songs s JOIN playlists p ON s.playlist_id = p.id " +
+                    "WHERE p.name = ? AND s.file_path = ? LIMIT 1";
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, playlistName);
+            stmt.setString(2, filePath);
+            return stmt.executeQuery().next();
+        }
+    }
+
+    /**
+     * Follows a file that was moved or renamed: songs, fingerprint and waveform move with it.
+     */
+    public void moveSongFile(String oldPath, String newPath) throws SQLException {
+        String[] updates = {
+            "UPDATE songs SET file_path = ? WHERE file_path = ?",
+            "UPDATE OR REPLACE fingerprints SET file_path = ? WHERE file_path = ?",
+            "UPDATE OR REPLACE waveforms SET file_path = ? WHERE file_path = ?"
+        };
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                for (String sql : updates) {
+                    try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                        stmt.setString(1, newPath);
+                        stmt.setString(2, oldPath);
+                        stmt.executeUpdate();
+                    }
+                }
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Removes every song that refers to a deleted file; returns their ids.
+     */
+    public java.util.List<Integer> removeSongsWithFile(String filePath) throws SQLException {
+        java.util.List<Integer> removed = new ArrayList<>();
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement select = conn.prepareStatement("SELECT id FROM songs WHERE file_path = ?");
+                 PreparedStatement delete = conn.prepareStatement("DELETE FROM songs WHERE file_path = ?");
+                 PreparedStatement forget = conn.prepareStatement("DELETE FROM waveforms WHERE file_path = ?")) {
+                select.setString(1, filePath);
+                ResultSet rs = select.executeQuery();
+                while (rs.next()) {
+                    removed.add(rs.getInt("id"));
+                }
+                delete.setString(1, filePath);
+                delete.executeUpdate();
+                forget.setString(1, filePath);
+                forget.executeUpdate();
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        }
+        return removed;
+    }
+
+    public void saveFingerprints(java.util.List<AudioFingerprint> batch) throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        String sql = "INSERT OR REPLACE INTO fingerprints " +
+                    "(file_path, file_mtime, file_size, content_hash, fingerprint, duration) " +
+                    "VALUES (?, ?, ?, ?, ?, ?)";
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                for (AudioFingerprint fingerprint : batch) {
+                    stmt.setString(1, fingerprint.filePath);
+                    stmt.setLong(2, fingerprint.lastModified);
+                    stmt.setLong(3, fingerprint.size);
+                    stmt.setString(4, fingerprint.contentHash);
+                    stmt.setLong(5, fingerprint.fingerprint);
+                    stmt.setInt(6, fingerprint.durationSeconds);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Points every song using one of the duplicate files at the kept file, then removes
+     * songs that now appear twice in the same playlist. Returns the removed song ids.
+     */
+    public java.util.List<Integer> mergeSongFiles(String keepPath, Collection<String> duplicatePaths) 
+            throws SQLException {
+        String repointSql = "UPDATE songs SET file_path = ? WHERE file_path = ?";
+        String repeatsSql = "SELECT id FROM songs WHERE file_path = ? AND id NOT IN " +
+                           "(SELECT MIN(id) FROM songs WHERE file_path = ? GROUP BY playlist_id)";
+        String deleteSql = "DELETE FROM songs WHERE id = ?";
+        java.util.List<Integer> removed = new ArrayList<>();
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement repoint = conn.prepareStatement(repointSql);
+                 PreparedStatement repeats = conn.prepareStatement(repeatsSql);
+                 PreparedStatement delete = conn.prepareStatement(deleteSql)) {
+                for (String duplicatePath : duplicatePaths) {
+                    repoint.setString(1, keepPath);
+                    repoint.setString(2, duplicatePath);
+                    repoint.addBatch();
+                }
+                repoint.executeBatch();
+
+                repeats.setString(1, keepPath);
+                repeats.setString(2, keepPath);
+                ResultSet rs = repeats.executeQuery();
+                while (rs.next()) {
+                    removed.add(rs.getInt("id"));
+                }
+                for (int id : removed) {
+                    delete.setInt(1, id);
+                    delete.addBatch();
+                }
+                delete.executeBatch();
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        }
+        return removed;
+    }
+
+    private static Song readSong(ResultSet rs) throws SQLException {
+        Song song = new Song(
+            rs.getInt("id"),
+            rs.getString("name"),
+            rs.getString("file_path"),
+            rs.getInt("duration"),
+            rs.getString("artist")
+        );
+        float replayGain = rs.getFloat("replay_gain");
+        if (!rs.wasNull()) {
+            song.setReplayGain(replayGain);
+        }
+        song.setTitle(rs.getString("title"));
+        song.setSampleRate(rs.getInt("sample_rate"));
+        song.setBitDepth(rs.getInt("bit_depth"));
+        return song;
     }
 
     public java.util.List<String> getAllPlaylists() throws SQLException {
@@ -619,12 +5766,469 @@ class PlaylistManager {
     }
 }
 
+/**
+ * Song Table Model - Pages playlist songs in from the database as rows become visible,
+ * so only the rows in view plus a small prefetch window are held in memory
+ */
+class SongTableModel extends AbstractTableModel {
+    private static final String[] COLUMNS = {"Song Name", "Duration", "Artist", "Format"};
+    private static final int PAGE_SIZE = 256;
+    private static final int PREFETCH_PAGES = 1;
+    private static final int MAX_CACHED_PAGES = 16;
+
+    private final PlaylistManager playlistManager;
+    private final Map<Integer, SongPage> pages = 
+        new LinkedHashMap<Integer, SongPage>(MAX_CACHED_PAGES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, SongPage> eldest) {
+                return size() > MAX_CACHED_PAGES;
+            }
+        };
+    private String playlistName;
+    private int rowCount;
+
+    public SongTableModel(PlaylistManager playlistManager) {
+        this.playlistManager = playlistManager;
+    }
+
+    public void setPlaylist(String playlistName) throws SQLException {
+        int count = playlistManager.getPlaylistSongCount(playlistName);
+        this.playlistName = playlistName;
+        this.rowCount = count;
+        pages.clear();
+        fireTableDataChanged();
+    }
+
+    public void clear() {
+        playlistName = null;
+        rowCount = 0;
+        pages.clear();
+        fireTableDataChanged();
+    }
+
+    /**
+     * Reloads the visible rows after their metadata changed, keeping the selection.
+     */
+    public void refresh() {
+        pages.clear();
+        if (rowCount > 0) {
+            fireTableRowsUpdated(0, rowCount - 1);
+        }
+    }
+
+    public String getPlaylistName() {
+        return playlistName;
+    }
+
+    /**
+     * Returns the song shown at the given row, loading its page if needed,
+     * or null if the row could not be loaded.
+     */
+    public Song getSongAt(int row) {
+        SongPage page = getPage(row);
+        return page == null ? null : page.getSong(row % PAGE_SIZE);
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        SongPage page = getPage(row);
+        if (page == null) {
+            return "";
+        }
+        int index = row % PAGE_SIZE;
+        Song song = page.getSong(index);
+        if (song == null) {
+            return "";
+        }
+        switch (column) {
+            case 0: return song.getDisplayName();
+            case 1: return page.getFormattedDuration(index);
+            case 2: return song.getArtist();
+            case 3: return formatAudioFormat(song);
+            default: return "";
+        }
+    }
+
+    private static String formatAudioFormat(Song song) {
+        if (song.getSampleRate() <= 0) {
+            return "";
+        }
+        String rate = String.format("%.1f kHz", song.getSampleRate() / 1000.0);
+        return song.getBitDepth() > 0 ? rate + " / " + song.getBitDepth() + "-bit" : rate;
+    }
+
+    private SongPage getPage(int row) {
+        if (playlistName == null || row < 0 || row >= rowCount) {
+            return null;
+        }
+        int pageIndex = row / PAGE_SIZE;
+        SongPage page = pages.get(pageIndex);
+        if (page == null) {
+            loadPages(pageIndex);
+            page = pages.get(pageIndex);
+        }
+        return page;
+    }
+
+    // Fetches the requested page together with the prefetch window in a single query
+    private void loadPages(int firstPage) {
+        try {
+            java.util.List<Song> songs = playlistManager.getPlaylistSongs(playlistName, 
+                firstPage * PAGE_SIZE, PAGE_SIZE * (1 + PREFETCH_PAGES));
+            for (int p = 0; p * PAGE_SIZE < songs.size(); p++) {
+                int from = p * PAGE_SIZE;
+                int to = Math.min(from + PAGE_SIZE, songs.size());
+                pages.put(firstPage + p, new SongPage(songs.subList(from, to)));
+            }
+        } catch (SQLException ex) {
+            System.err.println("Error loading playlist page: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Song Page - A fixed-size block of rows; durations are formatted on first display
+     */
+    private static class SongPage {
+        private final Song[] songs;
+        private final String[] durations;
+
+        SongPage(java.util.List<Song> songs) {
+            this.songs = songs.toArray(new Song[0]);
+            this.durations = new String[this.songs.length];
+        }
+
+        Song getSong(int index) {
+            return index < songs.length ? songs[index] : null;
+        }
+
+        String getFormattedDuration(int index) {
+            if (durations[index] == null) {
+                durations[index] = MusicPlayerApp.formatDuration(songs[index].getDuration());
+            }
+            return durations[index];
+        }
+    }
+}
+
+/**
+ * Song Search Index - In-memory inverted index over song name, artist and file name.
+ * Terms of three or more characters are matched through trigram postings, shorter terms
+ * through word-prefix postings; candidates are then verified against the stored text.
+ */
+class SongSearchIndex {
+    private static final char PREFIX_MARKER = '\u0001';
+    private static final int SCAN_BUDGET = 4096;
+    private static final int COMPACT_MIN_DELETED = 1024;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, IntList> postings = new HashMap<>();
+    private final java.util.List<SearchResult> documents = new ArrayList<>();
+    private final java.util.List<String> texts = new ArrayList<>();
+    private final BitSet deleted = new BitSet();
+    private final Map<Integer, Integer> documentsBySongId = new HashMap<>();
+    private int deletedCount;
+
+    /**
+     * Indexes a song, replacing any earlier version of it. An unchanged text keeps its
+     * document; a changed one is appended and the old one dropped, and once most of the
+     * documents are dropped ones the index is rebuilt from the live ones.
+     */
+    public void add(String playlistName, Song song) {
+        String text = normalize(song.getName() + " " + song.getArtist() + " " 
+            + (song.getTitle() != null ? song.getTitle() + " " : "") + searchablePath(song.getFilePath()));
+        lock.writeLock().lock();
+        try {
+            Integer existing = documentsBySongId.get(song.getId());
+            if (existing != null && texts.get(existing).equals(text)) {
+                documents.set(existing, new SearchResult(song.getId(), playlistName, song));
+                return;
+            }
+            int document = documents.size();
+            documents.add(new SearchResult(song.getId(), playlistName, song));
+            texts.add(text);
+            documentsBySongId.put(song.getId(), document);
+            addPostings(document, text);
+            if (existing != null) {
+                delete(existing);
+                compactIfSparse();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int songId) {
+        lock.writeLock().lock();
+        try {
+            Integer document = documentsBySongId.remove(songId);
+            if (document != null) {
+                delete(document);
+                compactIfSparse();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removePlaylist(String playlistName) {
+        lock.writeLock().lock();
+        try {
+            for (int document = 0; document < documents.size(); document++) {
+                SearchResult result = documents.get(document);
+                if (!deleted.get(document) && result.playlistName.equals(playlistName)) {
+                    delete(document);
+                    documentsBySongId.remove(result.songId);
+                }
+            }
+            compactIfSparse();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} songs whose text contains every whitespace-separated term.
+     */
+    public java.util.List<SearchResult> search(String query, int limit) {
+        String[] terms = normalize(query).trim().split("\\s+");
+        java.util.List<SearchResult> results = new ArrayList<>();
+        if (terms.length == 0 || terms[0].isEmpty()) {
+            return results;
+        }
+
+        lock.readLock().lock();
+        try {
+            java.util.List<IntList> lists = postingsFor(terms);
+            if (lists.isEmpty()) {
+                return results;
+            }
+            // Common terms match densely, so verify the most selective list directly first;
+            // only when that does not fill the page is the rest narrowed by intersection
+            IntList candidates = lists.get(0);
+            int scanned = Math.min(candidates.size(), SCAN_BUDGET);
+            collect(candidates, 0, scanned, terms, limit, results);
+            if (results.size() < limit && scanned < candidates.size()) {
+                IntList rest = candidates.tail(scanned);
+                for (int i = 1; i < lists.size() && rest.size() > 0; i++) {
+                    rest = rest.intersect(lists.get(i));
+                }
+                collect(rest, 0, rest.size(), terms, limit, results);
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void collect(IntList candidates, int from, int to, String[] terms, int limit, 
+                         java.util.List<SearchResult> results) {
+        for (int i = from; i < to && results.size() < limit; i++) {
+            int document = candidates.get(i);
+            if (!deleted.get(document) && containsAll(texts.get(document), terms)) {
+                results.add(documents.get(document));
+            }
+        }
+    }
+
+    // Postings of every trigram and short-term prefix in the query, smallest first;
+    // empty when some key has no postings at all
+    private java.util.List<IntList> postingsFor(String[] terms) {
+        java.util.List<IntList> lists = new ArrayList<>();
+        for (String term : terms) {
+            if (term.length() < 3) {
+                lists.add(postings.get(prefixKey(term)));
+            } else {
+                for (int i = 0; i + 3 <= term.length(); i++) {
+                    lists.add(postings.get(trigramKey(term, i)));
+                }
+            }
+        }
+        if (lists.contains(null)) {
+            return Collections.emptyList();
+        }
+        lists.sort(Comparator.comparingInt(IntList::size));
+        return lists;
+    }
+
+    private void delete(int document) {
+        deleted.set(document);
+        deletedCount++;
+    }
+
+    // Renumbers the live documents densely and rebuilds their postings
+    private void compactIfSparse() {
+        if (deletedCount < COMPACT_MIN_DELETED || deletedCount * 2 < documents.size()) {
+            return;
+        }
+        java.util.List<SearchResult> liveDocuments = new ArrayList<>(documents.size() - deletedCount);
+        java.util.List<String> liveTexts = new ArrayList<>(documents.size() - deletedCount);
+        for (int document = 0; document < documents.size(); document++) {
+            if (!deleted.get(document)) {
+                liveDocuments.add(documents.get(document));
+                liveTexts.add(texts.get(document));
+            }
+        }
+        documents.clear();
+        texts.clear();
+        postings.clear();
+        deleted.clear();
+        documentsBySongId.clear();
+        deletedCount = 0;
+        for (int document = 0; document < liveDocuments.size(); document++) {
+            documents.add(liveDocuments.get(document));
+            texts.add(liveTexts.get(document));
+            documentsBySongId.put(liveDocuments.get(document).songId, document);
+            addPostings(document, liveTexts.get(document));
+        }
+    }
+
+    private void addPostings(int document, String text) {
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            addPosting(trigramKey(text, i), document);
+        }
+        for (String word : text.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                addPosting(prefixKey(word.substring(0, 1)), document);
+                if (word.length() > 1) {
+                    addPosting(prefixKey(word.substring(0, 2)), document);
+                }
+            }
+        }
+    }
+
+    // Documents are numbered in insertion order, so each list stays sorted
+    private void addPosting(long key, int document) {
+        IntList list = postings.computeIfAbsent(key, k -> new IntList());
+        if (list.size() == 0 || list.get(list.size() - 1) != document) {
+            list.add(document);
+        }
+    }
+
+    private static boolean containsAll(String text, String[] terms) {
+        for (String term : terms) {
+            if (!text.contains(term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long trigramKey(String text, int offset) {
+        return ((long) text.charAt(offset) << 32) | ((long) text.charAt(offset + 1) << 16) 
+            | text.charAt(offset + 2);
+    }
+
+    private static long prefixKey(String prefix) {
+        char second = prefix.length() > 1 ? prefix.charAt(1) : PREFIX_MARKER;
+        return ((long) PREFIX_MARKER << 32) | ((long) prefix.charAt(0) << 16) | second;
+    }
+
+    private static String normalize(String text) {
+        return text == null ? "" : text.toLowerCase(Locale.ROOT);
+    }
+
+    // Directory prefixes shared by the whole library only add noise, so keep the last two parts
+    private static String searchablePath(String filePath) {
+        if (filePath == null) {
+            return "";
+        }
+        File file = new File(filePath);
+        File parent = file.getParentFile();
+        return (parent != null ? parent.getName() + "/" : "") + file.getName();
+    }
+
+    /**
+     * Search Result - A matching song and the playlist it belongs to
+     */
+    static class SearchResult {
+        final int songId;
+        final String playlistName;
+        final Song song;
+
+        SearchResult(int songId, String playlistName, Song song) {
+            this.songId = songId;
+            this.playlistName = playlistName;
+            this.song = song;
+        }
+
+        @Override
+        public String toString() {
+            return song.getDisplayName() + " - " + song.getArtist() + "  [" + playlistName + "]";
+        }
+    }
+
+    /**
+     * Int List - Growable sorted int array used for postings
+     */
+    static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) { return values[index]; }
+        int size() { return size; }
+
+        IntList tail(int from) {
+            IntList result = new IntList();
+            result.values = Arrays.copyOfRange(values, from, Math.max(from + 1, size));
+            result.size = size - from;
+            return result;
+        }
+
+        // Galloping intersection of two sorted lists
+        IntList intersect(IntList other) {
+            IntList small = size <= other.size ? this : other;
+            IntList large = small == this ? other : this;
+            IntList result = new IntList();
+            int from = 0;
+            for (int i = 0; i < small.size && from < large.size; i++) {
+                int value = small.values[i];
+                int step = 1;
+                int to = from;
+                while (to < large.size && large.values[to] < value) {
+                    from = to;
+                    to += step;
+                    step <<= 1;
+                }
+                int found = Arrays.binarySearch(large.values, from, Math.min(to + 1, large.size), value);
+                if (found >= 0) {
+                    result.add(value);
+                    from = found + 1;
+                } else {
+                    from = -found - 1;
+                }
+            }
+            return result;
+        }
+    }
+}
+
 /**
  * Database Manager - Manages JDBC database operations
  */
 class DatabaseManager {
     private static final String DB_URL = "jdbc:sqlite:musicplayer.db";
-    private Connection connection;
 
     public DatabaseManager() {
         try {
@@ -634,9 +6238,15 @@ class DatabaseManager {
         }
     }
 
+    /**
+     * Opens a new connection. Callers close it with try-with-resources, so background
+     * threads never share a connection with the UI thread.
+     */
     public Connection getConnection() throws SQLException {
-        if (connection == null || connection.isClosed()) {
-            connection = DriverManager.getConnection(DB_URL);
+        Connection connection = DriverManager.getConnection(DB_URL);
+        try (Statement stmt = connection.createStatement()) {
+            // Needed for ON DELETE CASCADE; SQLite enables it per connection
+            stmt.execute("PRAGMA foreign_keys = ON");
         }
         return connection;
     }
@@ -664,19 +6274,68 @@ class DatabaseManager {
                 "FOREIGN KEY (playlist_id) REFERENCES playlists(id) ON DELETE CASCADE)";
             stmt.execute(createSongsTable);
 
+            // Waveform peaks, keyed by file and stamped like the song metadata
+            String createWaveformsTable = "CREATE TABLE IF NOT EXISTS waveforms (" +
+                "file_path TEXT PRIMARY KEY," +
+                "file_mtime INTEGER NOT NULL," +
+                "file_size INTEGER NOT NULL," +
+                "peaks BLOB NOT NULL)";
+            stmt.execute(createWaveformsTable);
+
+            // Content hashes and spectral fingerprints for duplicate detection
+            String createFingerprintsTable = "CREATE TABLE IF NOT EXISTS fingerprints (" +
+                "file_path TEXT PRIMARY KEY," +
+                "file_mtime INTEGER NOT NULL," +
+                "file_size INTEGER NOT NULL," +
+                "content_hash TEXT NOT NULL," +
+                "fingerprint INTEGER NOT NULL," +
+                "duration INTEGER NOT NULL)";
+            stmt.execute(createFingerprintsTable);
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_fingerprints_hash ON fingerprints (content_hash)");
+
+            // Music folders kept in sync with a playlist
+            String createWatchedFoldersTable = "CREATE TABLE IF NOT EXISTS watched_folders (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "path TEXT UNIQUE NOT NULL," +
+                "playlist_id INTEGER NOT NULL," +
+                "FOREIGN KEY (playlist_id) REFERENCES playlists(id) ON DELETE CASCADE)";
+            stmt.execute(createWatchedFoldersTable);
+
+            // Columns added after the first release
+            addColumnIfMissing(conn, "songs", "replay_gain", "REAL");
+            addColumnIfMissing(conn, "songs", "title", "TEXT");
+            addColumnIfMissing(conn, "songs", "sample_rate", "INTEGER DEFAULT 0");
+            addColumnIfMissing(conn, "songs", "bit_depth", "INTEGER DEFAULT 0");
+            addColumnIfMissing(conn, "songs", "file_mtime", "INTEGER DEFAULT 0");
+            addColumnIfMissing(conn, "songs", "file_size", "INTEGER DEFAULT -1");
+
+            // Index used by the paged playlist queries
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_songs_playlist ON songs (playlist_id, id)");
+            // Index used when metadata is stored per file
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_songs_file_path ON songs (file_path)");
+
         } catch (SQLException ex) {
             System.err.println("Database initialization error: " + ex.getMessage());
         }
     }
 
-    public void closeConnection() {
-        try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
+    private void addColumnIfMissing(Connection conn, String table, String column, String type) 
+            throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (rs.getString("name").equalsIgnoreCase(column)) {
+                    return;
+                }
             }
-        } catch (SQLException ex) {
-            System.err.println("Error closing connection: " + ex.getMessage());
         }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+        }
+    }
+
+    public void closeConnection() {
+        // Connections are closed by the code that opened them
     }
 }
 
@@ -684,10 +6343,15 @@ class DatabaseManager {
  * Song - Represents a song object
  */
 class Song {
+    private int id;
     private String name;
     private String filePath;
     private int duration;
     private String artist;
+    private float replayGain = Float.NaN;
+    private String title;
+    private int sampleRate;
+    private int bitDepth;
 
     public Song(String name, String filePath, int duration, String artist) {
         this.name = name;
@@ -696,13 +6360,39 @@ class Song {
         this.artist = artist;
     }
 
+    public Song(int id, String name, String filePath, int duration, String artist) {
+        this(name, filePath, duration, artist);
+        this.id = id;
+    }
+
+    public int getId() { return id; }
     public String getName() { return name; }
     public String getFilePath() { return filePath; }
     public int getDuration() { return duration; }
     public String getArtist() { return artist; }
 
+    /**
+     * Track gain in dB, or NaN when it has not been analyzed yet.
+     */
+    public float getReplayGain() { return replayGain; }
+
+    /**
+     * Title from the file's tags or name, or null when none was found.
+     */
+    public String getTitle() { return title; }
+    public int getSampleRate() { return sampleRate; }
+    public int getBitDepth() { return bitDepth; }
+
+    public String getDisplayName() {
+        return title != null ? title : name;
+    }
+
     public void setName(String name) { this.name = name; }
     public void setFilePath(String filePath) { this.filePath = filePath; }
     public void setDuration(int duration) { this.duration = duration; }
     public void setArtist(String artist) { this.artist = artist; }
+    public void setReplayGain(float replayGain) { this.replayGain = replayGain; }
+    public void setTitle(String title) { this.title = title; }
+    public void setSampleRate(int sampleRate) { this.sampleRate = sampleRate; }
+    public void setBitDepth(int bitDepth) { this.bitDepth = bitDepth; }
 }